@@ -0,0 +1,77 @@
+package com.wizenoze.prometheus;
+
+/**
+ * The interval between reports when it adapts to the health of the gateway: it's doubled (up to a
+ * maximum) while the push latency or the error rate, both smoothed over recent reports, exceed
+ * their thresholds, and halved again (down to the nominal report period) once they don't. The
+ * latency is the mean latency of the pushes of a report, so that it doesn't grow with the number
+ * of groups.
+ */
+final class AdaptiveInterval {
+
+    // Weight of the latest report in the smoothed latency and error rate
+    private static final double WEIGHT = 0.5;
+
+    private final long maxMillis;
+    private final long latencyThresholdNanos;
+    private final double errorRateThreshold;
+
+    private long nominalMillis;
+    private long intervalMillis;
+
+    private boolean updated;
+    private double latencyNanos;
+    private double errorRate;
+
+    /**
+     * @param maxMillis the maximum interval between reports
+     * @param latencyThresholdNanos the mean latency of pushes above which the interval is
+     * stretched
+     * @param errorRateThreshold the ratio of failed pushes above which the interval is stretched
+     */
+    AdaptiveInterval(long maxMillis, long latencyThresholdNanos, double errorRateThreshold) {
+        this.maxMillis = maxMillis;
+        this.latencyThresholdNanos = latencyThresholdNanos;
+        this.errorRateThreshold = errorRateThreshold;
+    }
+
+    /**
+     * Sets the report period the interval returns to, and resets the interval to it.
+     */
+    synchronized void setNominalMillis(long nominalMillis) {
+        this.nominalMillis = nominalMillis;
+        this.intervalMillis = nominalMillis;
+    }
+
+    synchronized long getMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Adapts the interval to the outcome of a report.
+     *
+     * @param pushNanos the time it took to push all groups
+     * @param pushes the number of pushes
+     * @param failures the number of pushes which failed
+     */
+    synchronized void update(long pushNanos, int pushes, int failures) {
+        double failureRate = pushes > 0 ? (double) failures / pushes : 0;
+        double latencyNanos = pushes > 0 ? (double) pushNanos / pushes : 0;
+
+        if (updated) {
+            this.latencyNanos += WEIGHT * (latencyNanos - this.latencyNanos);
+            this.errorRate += WEIGHT * (failureRate - this.errorRate);
+        } else {
+            this.latencyNanos = latencyNanos;
+            this.errorRate = failureRate;
+            updated = true;
+        }
+
+        if (this.latencyNanos > latencyThresholdNanos || this.errorRate > errorRateThreshold) {
+            intervalMillis = Math.max(Math.min(2 * intervalMillis, maxMillis), nominalMillis);
+        } else {
+            intervalMillis = Math.max(intervalMillis / 2, nominalMillis);
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+package com.wizenoze.prometheus;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Combines the same metric of several tasks into a single one. Counts and rates are summed up,
+ * while snapshots are merged by combining their sampled values, so that percentiles are
+ * calculated over all of them instead of being averaged. Snapshots of {@link BucketReservoir}s are
+ * merged by summing up their buckets instead.
+ *
+ * Aggregates are kept from one report to the next, and {@link #reset() reset} after being
+ * reported. The sampled values are collected into a buffer which is kept as well, growing
+ * geometrically, and sorted in place by the snapshot of the aggregate, so that merging snapshots
+ * neither copies the values merged before nor allocates once the buffer is large enough.
+ */
+class AggregatedMetric implements Metered, Sampling {
+
+    private final MetricNameAndGroupingKey key;
+
+    private Series[] series;
+    private boolean removed;
+    private int size;
+    private long count;
+    private double oneMinuteRate;
+    private double fiveMinuteRate;
+    private double fifteenMinuteRate;
+    private double meanRate;
+    private long[] values = new long[16];
+    private int valueCount;
+    private BucketSnapshot buckets;
+    private final MergedSnapshot mergedSnapshot = new MergedSnapshot();
+
+    AggregatedMetric(MetricNameAndGroupingKey key) {
+        this.key = key;
+    }
+
+    MetricNameAndGroupingKey getKey() {
+        return key;
+    }
+
+    Series[] getSeries() {
+        return series;
+    }
+
+    void setSeries(Series[] series) {
+        this.series = series;
+    }
+
+    /**
+     * Returns {@code true} if no metric has been added since the last reset.
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean isRemoved() {
+        return removed;
+    }
+
+    void remove() {
+        removed = true;
+    }
+
+    void reset() {
+        size = 0;
+        count = 0;
+        oneMinuteRate = 0;
+        fiveMinuteRate = 0;
+        fifteenMinuteRate = 0;
+        meanRate = 0;
+        valueCount = 0;
+        buckets = null;
+    }
+
+    void add(Metric metric) {
+        size++;
+
+        if (metric instanceof Counting) {
+            count += ((Counting) metric).getCount();
+        }
+
+        if (metric instanceof Metered) {
+            Metered metered = (Metered) metric;
+            oneMinuteRate += metered.getOneMinuteRate();
+            fiveMinuteRate += metered.getFiveMinuteRate();
+            fifteenMinuteRate += metered.getFifteenMinuteRate();
+            meanRate += metered.getMeanRate();
+        }
+
+        if (metric instanceof Sampling) {
+            Snapshot snapshot = ((Sampling) metric).getSnapshot();
+            if (snapshot instanceof BucketSnapshot) {
+                buckets = buckets != null
+                        ? BucketSnapshot.merge(buckets, (BucketSnapshot) snapshot)
+                        : (BucketSnapshot) snapshot;
+                return;
+            }
+
+            long[] newValues = snapshot.getValues();
+            if (valueCount + newValues.length > values.length) {
+                values = Arrays.copyOf(values,
+                        Math.max(2 * values.length, valueCount + newValues.length));
+            }
+            System.arraycopy(newValues, 0, values, valueCount, newValues.length);
+            valueCount += newValues.length;
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+        return fifteenMinuteRate;
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+        return fiveMinuteRate;
+    }
+
+    @Override
+    public double getMeanRate() {
+        return meanRate;
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+        return oneMinuteRate;
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        // Tasks of the same metric use the same kind of reservoir
+        if (buckets != null && valueCount == 0) {
+            return buckets;
+        }
+
+        Arrays.sort(values, 0, valueCount);
+        return mergedSnapshot;
+    }
+
+    /**
+     * The sorted values merged since the last reset, calculated like a {@code UniformSnapshot}.
+     * Only valid until the next reset.
+     */
+    private final class MergedSnapshot extends Snapshot {
+
+        @Override
+        public double getValue(double quantile) {
+            if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+                throw new IllegalArgumentException(quantile + " is not in [0..1]");
+            }
+
+            if (valueCount == 0) {
+                return 0.0;
+            }
+
+            double position = quantile * (valueCount + 1);
+            int index = (int) position;
+            if (index < 1) {
+                return values[0];
+            }
+
+            if (index >= valueCount) {
+                return values[valueCount - 1];
+            }
+
+            double lower = values[index - 1];
+            double upper = values[index];
+            return lower + (position - Math.floor(position)) * (upper - lower);
+        }
+
+        @Override
+        public long[] getValues() {
+            return Arrays.copyOf(values, valueCount);
+        }
+
+        @Override
+        public int size() {
+            return valueCount;
+        }
+
+        @Override
+        public long getMax() {
+            return valueCount == 0 ? 0 : values[valueCount - 1];
+        }
+
+        @Override
+        public double getMean() {
+            if (valueCount == 0) {
+                return 0;
+            }
+
+            double sum = 0;
+            for (int index = 0; index < valueCount; index++) {
+                sum += values[index];
+            }
+
+            return sum / valueCount;
+        }
+
+        @Override
+        public long getMin() {
+            return valueCount == 0 ? 0 : values[0];
+        }
+
+        @Override
+        public double getStdDev() {
+            if (valueCount <= 1) {
+                return 0;
+            }
+
+            double mean = getMean();
+            double sum = 0;
+            for (int index = 0; index < valueCount; index++) {
+                double diff = values[index] - mean;
+                sum += diff * diff;
+            }
+
+            return Math.sqrt(sum / (valueCount - 1));
+        }
+
+        @Override
+        public void dump(OutputStream output) {
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, UTF_8))) {
+                for (int index = 0; index < valueCount; index++) {
+                    out.printf("%d%n", values[index]);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.wizenoze.prometheus;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A reservoir counting every value into a bucket, instead of sampling values, so that histograms
+ * and timers exported as Prometheus histograms get exact bucket counts and sums, which can be
+ * summed up across tasks and workers. Its snapshots are {@link BucketSnapshot}s, whose quantiles
+ * are interpolated within buckets.
+ *
+ * Counts are cumulative since the reservoir has been created, like Prometheus expects them to be,
+ * rather than decaying or sliding like those of the other reservoirs.
+ */
+public class BucketReservoir implements Reservoir {
+
+    private final double[] bounds;
+    private final AtomicLongArray counts;
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Creates a reservoir for a histogram, whose bounds are in the unit of its values.
+     *
+     * @param buckets the buckets to count values into
+     */
+    public BucketReservoir(HistogramBuckets buckets) {
+        this(buckets, 1);
+    }
+
+    /**
+     * Creates a reservoir for a timer, whose bounds are in the given unit while the values are in
+     * nanoseconds, e.g. the unit the reporter converts durations to.
+     *
+     * @param buckets the buckets to count durations into
+     * @param durationUnit the unit of the bounds
+     */
+    public BucketReservoir(HistogramBuckets buckets, TimeUnit durationUnit) {
+        this(buckets, durationUnit.toNanos(1));
+    }
+
+    private BucketReservoir(HistogramBuckets buckets, double scale) {
+        bounds = new double[buckets.size()];
+        for (int index = 0; index < bounds.length; index++) {
+            bounds[index] = buckets.getBound(index) * scale;
+        }
+
+        // The last bucket is the +Inf one
+        counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    @Override
+    public int size() {
+        long size = 0;
+        for (int index = 0; index < counts.length(); index++) {
+            size += counts.get(index);
+        }
+
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void update(long value) {
+        int index = Arrays.binarySearch(bounds, value);
+        counts.incrementAndGet(index >= 0 ? index : -index - 1);
+        sum.addAndGet(value);
+
+        long current = min.get();
+        while (value < current && !min.compareAndSet(current, value)) {
+            current = min.get();
+        }
+
+        current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Returns a {@link BucketSnapshot}. Its counts are read one after the other, hence its sum
+     * may be off by the values being added meanwhile.
+     */
+    @Override
+    public Snapshot getSnapshot() {
+        long[] bucketCounts = new long[counts.length()];
+        for (int index = 0; index < bucketCounts.length; index++) {
+            bucketCounts[index] = counts.get(index);
+        }
+
+        return new BucketSnapshot(bounds, bucketCounts, sum.get(), min.get(), max.get());
+    }
+
+}
@@ -0,0 +1,211 @@
+package com.wizenoze.prometheus;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.codahale.metrics.Snapshot;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * A snapshot of a {@link BucketReservoir}, holding the number of values of every bucket along with
+ * their sum, minimum and maximum. Individual values aren't kept, hence {@link #getValues()} is
+ * empty, and quantiles are interpolated linearly within the bucket they fall into.
+ */
+public class BucketSnapshot extends Snapshot {
+
+    // Bounds of reporters and reservoirs of timers are converted differently
+    private static final double BOUND_TOLERANCE = 1e-9;
+
+    private static final long[] NO_VALUES = new long[0];
+
+    private final double[] bounds;
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long min;
+    private final long max;
+
+    /**
+     * @param bounds the upper bounds of the buckets, without the {@code +Inf} one
+     * @param counts the number of values of every bucket, the {@code +Inf} one included
+     */
+    BucketSnapshot(double[] bounds, long[] counts, long sum, long min, long max) {
+        long count = 0;
+        for (long bucketCount : counts) {
+            count += bucketCount;
+        }
+
+        this.bounds = bounds;
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.min = count > 0 ? min : 0;
+        this.max = count > 0 ? max : 0;
+    }
+
+    /**
+     * Returns a snapshot holding the values of both snapshots, in the buckets of the first one.
+     * Buckets of the second one which aren't buckets of the first one are counted into the next
+     * larger bucket of the first one.
+     */
+    static BucketSnapshot merge(BucketSnapshot snapshot, BucketSnapshot otherSnapshot) {
+        long[] counts = snapshot.counts.clone();
+
+        double[] otherBounds = otherSnapshot.bounds;
+        for (int index = 0; index < otherSnapshot.counts.length; index++) {
+            counts[index < otherBounds.length
+                    ? snapshot.bucketOf(otherBounds[index]) : counts.length - 1] +=
+                    otherSnapshot.counts[index];
+        }
+
+        if (otherSnapshot.count == 0) {
+            return new BucketSnapshot(snapshot.bounds, counts, snapshot.sum, snapshot.min,
+                    snapshot.max);
+        }
+
+        if (snapshot.count == 0) {
+            return new BucketSnapshot(snapshot.bounds, counts, otherSnapshot.sum,
+                    otherSnapshot.min, otherSnapshot.max);
+        }
+
+        return new BucketSnapshot(snapshot.bounds, counts,
+                snapshot.sum + otherSnapshot.sum,
+                Math.min(snapshot.min, otherSnapshot.min),
+                Math.max(snapshot.max, otherSnapshot.max));
+    }
+
+    /**
+     * Returns the number of values of the buckets whose upper bound is at most the given one,
+     * which is the exact number of values less than or equal to it if it's a bound of this
+     * snapshot.
+     */
+    public long getCumulativeCount(double upperBound) {
+        long cumulative = 0;
+        for (int index = 0; index < bounds.length; index++) {
+            if (bounds[index] - upperBound > Math.abs(upperBound) * BOUND_TOLERANCE) {
+                return cumulative;
+            }
+
+            cumulative += counts[index];
+        }
+
+        return upperBound == Double.POSITIVE_INFINITY ? count : cumulative;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the sum of all values.
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    @Override
+    public double getValue(double quantile) {
+        if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+            throw new IllegalArgumentException(quantile + " is not in [0..1]");
+        }
+
+        if (count == 0) {
+            return 0.0;
+        }
+
+        double rank = quantile * count;
+        long cumulative = 0;
+        for (int index = 0; index < counts.length; index++) {
+            long bucketCount = counts[index];
+            if (bucketCount > 0 && cumulative + bucketCount >= rank) {
+                double lower = index > 0 ? Math.max(bounds[index - 1], min) : min;
+                double upper = index < bounds.length ? Math.min(bounds[index], max) : max;
+                double value = lower + (upper - lower) * (rank - cumulative) / bucketCount;
+
+                return Math.max(min, Math.min(max, value));
+            }
+
+            cumulative += bucketCount;
+        }
+
+        return max;
+    }
+
+    /**
+     * Returns no values, as they aren't kept.
+     */
+    @Override
+    public long[] getValues() {
+        return NO_VALUES;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public double getMean() {
+        return count > 0 ? (double) sum / count : 0.0;
+    }
+
+    @Override
+    public long getMin() {
+        return min;
+    }
+
+    /**
+     * Returns the standard deviation of the midpoints of the buckets, weighted by their counts.
+     */
+    @Override
+    public double getStdDev() {
+        if (count <= 1) {
+            return 0.0;
+        }
+
+        double mean = getMean();
+        double variance = 0.0;
+        for (int index = 0; index < counts.length; index++) {
+            if (counts[index] == 0) {
+                continue;
+            }
+
+            double lower = index > 0 ? Math.max(bounds[index - 1], min) : min;
+            double upper = index < bounds.length ? Math.min(bounds[index], max) : max;
+            double difference = (lower + upper) / 2 - mean;
+            variance += counts[index] * difference * difference;
+        }
+
+        return Math.sqrt(variance / (count - 1));
+    }
+
+    /**
+     * Writes the upper bound and the number of values of every bucket, one bucket per line.
+     */
+    @Override
+    public void dump(OutputStream output) {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, UTF_8))) {
+            for (int index = 0; index < counts.length; index++) {
+                out.printf("%s %d%n",
+                        index < bounds.length ? bounds[index] : "+Inf", counts[index]);
+            }
+        }
+    }
+
+    private int bucketOf(double bound) {
+        for (int index = 0; index < bounds.length; index++) {
+            if (bounds[index] - bound >= -Math.abs(bound) * BOUND_TOLERANCE) {
+                return index;
+            }
+        }
+
+        return bounds.length;
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.wizenoze.prometheus;
+
+/**
+ * Formats sample values without allocating, as opposed to {@code Double.toString(double)} used by
+ * the Prometheus client library.
+ *
+ * Integral values are written as plain integers. Other values are written with the fewest
+ * fraction digits which parse back to exactly the same {@code double}: {@code scaled / 10^digits}
+ * is correctly rounded by IEEE 754 division, just like parsing the decimal text is, provided that
+ * both operands are exactly representable. Values outside of that range (e.g. {@code 1.0E-20} or
+ * values with 16-17 significant digits) fall back to the same digits as {@code
+ * Double.toString(double)}, appended through a reusable {@link StringBuilder}.
+ */
+final class DoubleFormat {
+
+    // Integers up to 2^53 are exactly representable as double
+    private static final double MAX_EXACT = 9007199254740992.0;
+
+    private static final int MAX_FRACTION_DIGITS = 17;
+
+    private static final double[] POWERS_OF_TEN = new double[MAX_FRACTION_DIGITS + 1];
+
+    private static final byte[] NAN = {'N', 'a', 'N'};
+    private static final byte[] POSITIVE_INFINITY = {'+', 'I', 'n', 'f'};
+    private static final byte[] NEGATIVE_INFINITY = {'-', 'I', 'n', 'f'};
+    private static final byte[] NEGATIVE_ZERO = {'-', '0'};
+
+    static {
+        double power = 1;
+        for (int index = 0; index < POWERS_OF_TEN.length; index++) {
+            POWERS_OF_TEN[index] = power;
+            power *= 10;
+        }
+    }
+
+    private DoubleFormat() {
+    }
+
+    static void write(ExpositionBuffer buffer, double value) {
+        if (Double.isNaN(value)) {
+            buffer.append(NAN);
+            return;
+        }
+
+        if (Double.isInfinite(value)) {
+            buffer.append(value > 0 ? POSITIVE_INFINITY : NEGATIVE_INFINITY);
+            return;
+        }
+
+        double absolute = Math.abs(value);
+
+        if (absolute < MAX_EXACT && value == (long) value) {
+            if (value == 0 && 1 / value < 0) {
+                buffer.append(NEGATIVE_ZERO);
+            } else {
+                writeLong(buffer, (long) value);
+            }
+            return;
+        }
+
+        for (int digits = 1; digits <= MAX_FRACTION_DIGITS; digits++) {
+            double scaled = absolute * POWERS_OF_TEN[digits];
+            if (scaled >= MAX_EXACT) {
+                break;
+            }
+
+            long rounded = Math.round(scaled);
+            if (rounded / POWERS_OF_TEN[digits] == absolute) {
+                if (value < 0) {
+                    buffer.append((byte) '-');
+                }
+                writeFraction(buffer, rounded, digits);
+                return;
+            }
+        }
+
+        buffer.appendDouble(value);
+    }
+
+    static void writeLong(ExpositionBuffer buffer, long value) {
+        if (value < 0) {
+            buffer.append((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                buffer.appendAscii("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+
+        int length = length(value);
+        int position = buffer.reserve(length);
+        byte[] bytes = buffer.array();
+
+        for (int index = position + length - 1; index >= position; index--) {
+            bytes[index] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static void writeFraction(ExpositionBuffer buffer, long scaled, int digits) {
+        long power = (long) POWERS_OF_TEN[digits];
+        long integral = scaled / power;
+        long fraction = scaled % power;
+
+        writeLong(buffer, integral);
+        buffer.append((byte) '.');
+
+        for (int length = length(fraction); length < digits; length++) {
+            buffer.append((byte) '0');
+        }
+
+        writeLong(buffer, fraction);
+    }
+
+    private static int length(long value) {
+        int length = 1;
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,314 @@
+package com.wizenoze.prometheus;
+
+import io.prometheus.client.Collector;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A reusable buffer of metrics encoded in Prometheus' text exposition format (version 0.0.4).
+ *
+ * Unlike {@code io.prometheus.client.exporter.common.TextFormat}, metrics are encoded straight
+ * into bytes, and sample values are formatted by {@link DoubleFormat} without boxing or creating
+ * strings. Once the buffer has grown large enough, writing to it doesn't allocate.
+ *
+ * @see <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Exposition
+ * formats</a>
+ */
+public final class ExpositionBuffer {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private static final byte[] HELP = {'#', ' ', 'H', 'E', 'L', 'P', ' '};
+    private static final byte[] TYPE = {'#', ' ', 'T', 'Y', 'P', 'E', ' '};
+
+    private final StringBuilder doubleBuilder = new StringBuilder(32);
+
+    private byte[] bytes;
+    private int size;
+
+    public ExpositionBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ExpositionBuffer(int capacity) {
+        bytes = new byte[capacity];
+    }
+
+    /**
+     * Writes the {@code HELP} and {@code TYPE} lines of a metric family.
+     *
+     * @param name name of the metric family
+     * @param help help text, escaped as needed
+     * @param type one of {@code counter}, {@code gauge}, {@code histogram}, {@code summary} or
+     * {@code untyped}
+     * @return {@code this}
+     */
+    public ExpositionBuffer writeFamily(String name, String help, String type) {
+        append(HELP);
+        appendAscii(name);
+        append((byte) ' ');
+        appendEscaped(help, false);
+        append((byte) '\n');
+
+        append(TYPE);
+        appendAscii(name);
+        append((byte) ' ');
+        appendAscii(type);
+        append((byte) '\n');
+
+        return this;
+    }
+
+    /**
+     * Writes a sample without labels.
+     *
+     * @param name name of the sample
+     * @param value value of the sample
+     * @return {@code this}
+     */
+    public ExpositionBuffer writeSample(String name, double value) {
+        appendAscii(name);
+        append((byte) ' ');
+        DoubleFormat.write(this, value);
+        append((byte) '\n');
+
+        return this;
+    }
+
+    /**
+     * Writes a sample with the given labels.
+     *
+     * @param name name of the sample
+     * @param labels labels of the sample, whose values are escaped as needed
+     * @param value value of the sample
+     * @return {@code this}
+     */
+    public ExpositionBuffer writeSample(String name, Map<String, String> labels, double value) {
+        appendAscii(name);
+        if (!labels.isEmpty()) {
+            append((byte) '{');
+            boolean first = true;
+            for (Map.Entry<String, String> label : labels.entrySet()) {
+                if (!first) {
+                    append((byte) ',');
+                }
+                first = false;
+
+                appendAscii(label.getKey());
+                append((byte) '=');
+                append((byte) '"');
+                appendEscaped(label.getValue(), true);
+                append((byte) '"');
+            }
+            append((byte) '}');
+        }
+        append((byte) ' ');
+        DoubleFormat.write(this, value);
+        append((byte) '\n');
+
+        return this;
+    }
+
+    /**
+     * Encodes the {@code HELP} and {@code TYPE} lines and the name of a series without labels, to
+     * be written by {@link #writeSeries(byte[], double)}.
+     */
+    static byte[] encodeSeries(String name, String help, String type) {
+        ExpositionBuffer buffer = new ExpositionBuffer(2 * name.length() + help.length() + 32);
+        buffer.writeFamily(name, help, type);
+        buffer.appendAscii(name);
+        buffer.append((byte) ' ');
+
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Encodes a series as {@link #encodeSeries(String, String, String)} does, except for those of
+     * histograms: the {@code HELP} and {@code TYPE} lines of their family precede their count only,
+     * and their buckets get the {@code le} label.
+     *
+     * @param counterType the type of counts, either {@code counter} or {@code gauge}
+     */
+    static byte[] encodeSeries(SeriesDescriptor series, String counterType) {
+        SeriesKind kind = series.getKind();
+        switch (kind) {
+            case HISTOGRAM_COUNT:
+            case HISTOGRAM_SUM:
+            case HISTOGRAM_BUCKET:
+                break;
+            default:
+                boolean counter = kind == SeriesKind.COUNTER || kind == SeriesKind.SUMMARY_COUNT;
+                return encodeSeries(series.getName(), series.getHelp(),
+                        counter ? counterType : "gauge");
+        }
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        if (kind == SeriesKind.HISTOGRAM_COUNT) {
+            buffer.writeFamily(series.getMetricName(), series.getHelp(), "histogram");
+        }
+
+        buffer.appendAscii(series.getName());
+        if (kind == SeriesKind.HISTOGRAM_BUCKET) {
+            buffer.append((byte) '{');
+            buffer.appendUpperBound(series.getUpperBound());
+            buffer.append((byte) '}');
+        }
+        buffer.append((byte) ' ');
+
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Writes a series encoded by {@link #encodeSeries(String, String, String)} along with its
+     * value.
+     */
+    void writeSeries(byte[] encodedSeries, double value) {
+        append(encodedSeries);
+        DoubleFormat.write(this, value);
+        append((byte) '\n');
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(bytes, 0, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, size, StandardCharsets.UTF_8);
+    }
+
+    void append(byte value) {
+        ensureCapacity(size + 1);
+        bytes[size++] = value;
+    }
+
+    void append(byte[] values) {
+        ensureCapacity(size + values.length);
+        System.arraycopy(values, 0, bytes, size, values.length);
+        size += values.length;
+    }
+
+    void append(byte[] values, int offset, int length) {
+        ensureCapacity(size + length);
+        System.arraycopy(values, offset, bytes, size, length);
+        size += length;
+    }
+
+    void append(ExpositionBuffer buffer) {
+        ensureCapacity(size + buffer.size);
+        System.arraycopy(buffer.bytes, 0, bytes, size, buffer.size);
+        size += buffer.size;
+    }
+
+    /**
+     * Appends the given string, which must consist of ASCII characters only, like metric and label
+     * names do.
+     */
+    void appendAscii(String value) {
+        int length = value.length();
+        ensureCapacity(size + length);
+        for (int index = 0; index < length; index++) {
+            bytes[size++] = (byte) value.charAt(index);
+        }
+    }
+
+    /**
+     * Appends the given value as {@code Double.toString(double)} would format it, without creating
+     * a string.
+     */
+    void appendDouble(double value) {
+        doubleBuilder.setLength(0);
+        doubleBuilder.append(value);
+
+        int length = doubleBuilder.length();
+        ensureCapacity(size + length);
+        for (int index = 0; index < length; index++) {
+            bytes[size++] = (byte) doubleBuilder.charAt(index);
+        }
+    }
+
+    /**
+     * Appends the {@code le} label of a bucket, formatted like the Prometheus client library does,
+     * so that buckets of other processes with the same bound are the same series.
+     */
+    void appendUpperBound(double upperBound) {
+        appendAscii("le=\"");
+        appendAscii(Collector.doubleToGoString(upperBound));
+        append((byte) '"');
+    }
+
+    /**
+     * Appends the given string encoded as UTF-8, escaping backslashes and new lines, and also double
+     * quotes for label values.
+     */
+    void appendEscaped(String value, boolean labelValue) {
+        int length = value.length();
+        for (int index = 0; index < length; index++) {
+            char c = value.charAt(index);
+            if (c == '\\') {
+                append((byte) '\\');
+                append((byte) '\\');
+            } else if (c == '\n') {
+                append((byte) '\\');
+                append((byte) 'n');
+            } else if (c == '"' && labelValue) {
+                append((byte) '\\');
+                append((byte) '"');
+            } else if (c < 0x80) {
+                append((byte) c);
+            } else if (c < 0x800) {
+                append((byte) (0xc0 | (c >> 6)));
+                append((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && index + 1 < length
+                    && Character.isLowSurrogate(value.charAt(index + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++index));
+                append((byte) (0xf0 | (codePoint >> 18)));
+                append((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                append((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                append((byte) (0x80 | (codePoint & 0x3f)));
+            } else {
+                append((byte) (0xe0 | (c >> 12)));
+                append((byte) (0x80 | ((c >> 6) & 0x3f)));
+                append((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    /**
+     * Reserves the given number of bytes at the end of the buffer and returns their position.
+     */
+    int reserve(int length) {
+        ensureCapacity(size + length);
+        int position = size;
+        size += length;
+        return position;
+    }
+
+    byte[] array() {
+        return bytes;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length << 1));
+        }
+    }
+
+}
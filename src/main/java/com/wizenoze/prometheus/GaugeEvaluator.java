@@ -0,0 +1,211 @@
+package com.wizenoze.prometheus;
+
+import com.codahale.metrics.Gauge;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates gauges on a small pool of threads, so that a gauge which is slow or blocks (e.g. one
+ * touching JMX or external state) can't stall the reporter: the reporter submits all gauges of a
+ * report at once, and then waits for each of them.
+ *
+ * Every gauge has got the timeout from the moment its evaluation starts, rather than from the start
+ * of the report, so that gauges waiting for a thread behind slow ones don't time out themselves. A
+ * gauge running longer than that times out, and its thread is interrupted. The reporter waits for
+ * the gauges of a report for at most twice the timeout though, after which gauges which haven't
+ * completed miss the report, but only those which ran longer than the timeout count as timed out.
+ *
+ * A gauge whose previous evaluation is still running isn't evaluated again, it simply times out
+ * once more. If the queue of the pool is full, gauges miss the report right away rather than
+ * being evaluated by the reporter itself. Evaluations are reused from one report to
+ * the next, so that evaluating gauges doesn't allocate.
+ */
+final class GaugeEvaluator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GaugeEvaluator.class);
+
+    private final long timeoutNanos;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param threads the number of threads evaluating gauges
+     * @param queueSize the maximum number of gauges waiting for a thread
+     * @param timeoutNanos the time a gauge has to be evaluated in, from the start of its evaluation
+     */
+    GaugeEvaluator(int threads, int queueSize, long timeoutNanos) {
+        this.timeoutNanos = timeoutNanos;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new DaemonThreadFactory("prometheus-gauge-evaluator"));
+    }
+
+    /**
+     * Returns the time until which the reporter waits for the gauges of a report starting now.
+     */
+    long deadline() {
+        return System.nanoTime() + 2 * timeoutNanos;
+    }
+
+    /**
+     * Starts evaluating the given gauge, unless its previous evaluation is still running.
+     */
+    void submit(Evaluation evaluation, long deadlineNanos) {
+        if (!evaluation.start(timeoutNanos, deadlineNanos)) {
+            return;
+        }
+
+        try {
+            executor.execute(evaluation);
+        } catch (RejectedExecutionException e) {
+            evaluation.reject();
+        }
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The evaluation of a gauge, along with how often it missed its deadline.
+     */
+    static final class Evaluation implements Runnable {
+
+        private final Gauge gauge;
+        private final String name;
+
+        private boolean running;
+        private boolean started;
+        private boolean done;
+        private Object value;
+        private long timeoutNanos;
+        private long deadlineNanos;
+        private long startNanos;
+        private Thread thread;
+
+        private int consecutiveTimeouts;
+        private long timeouts;
+
+        Evaluation(Gauge gauge, String name) {
+            this.gauge = gauge;
+            this.name = name;
+        }
+
+        /**
+         * Prepares the evaluation of the gauge in a report, unless the previous one is still
+         * running, in which case only the time waited for it is updated.
+         *
+         * @param timeoutNanos the time the gauge has got from the start of its evaluation
+         * @param deadlineNanos the time until which the reporter waits for the gauge at most
+         */
+        synchronized boolean start(long timeoutNanos, long deadlineNanos) {
+            this.deadlineNanos = deadlineNanos;
+            if (running) {
+                return false;
+            }
+
+            this.running = true;
+            this.started = false;
+            this.done = false;
+            this.value = null;
+            this.timeoutNanos = timeoutNanos;
+
+            return true;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                started = true;
+                startNanos = System.nanoTime();
+                thread = Thread.currentThread();
+                notifyAll();
+            }
+
+            Object value = null;
+            try {
+                value = gauge.getValue();
+            } catch (RuntimeException e) {
+                LOGGER.error("Unable to evaluate gauge {}", name, e);
+            }
+
+            synchronized (this) {
+                this.thread = null;
+                this.value = value;
+                this.running = false;
+                this.done = true;
+                notifyAll();
+            }
+
+            // In case it was interrupted after it had timed out, but didn't react to it
+            Thread.interrupted();
+        }
+
+        /**
+         * Gives up on the evaluation, which hasn't been started, so that it misses the report.
+         */
+        synchronized void reject() {
+            this.running = false;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the gauge to be evaluated, until it times out or the deadline of the report
+         * has passed. A gauge which timed out is interrupted.
+         *
+         * @return {@code false} if the gauge hasn't been evaluated in time
+         */
+        synchronized boolean await() throws InterruptedException {
+            long now = System.nanoTime();
+            while (running) {
+                long waitUntil = started
+                        ? Math.min(startNanos + timeoutNanos, deadlineNanos)
+                        : deadlineNanos;
+                if (waitUntil - now <= 0) {
+                    break;
+                }
+
+                TimeUnit.NANOSECONDS.timedWait(this, waitUntil - now);
+                now = System.nanoTime();
+            }
+
+            if (done) {
+                consecutiveTimeouts = 0;
+            } else if (started && now - startNanos >= timeoutNanos) {
+                consecutiveTimeouts++;
+                timeouts++;
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            }
+
+            return done;
+        }
+
+        /**
+         * Returns the value of the gauge, or {@code null} if it couldn't be evaluated.
+         */
+        synchronized Object getValue() {
+            return value;
+        }
+
+        /**
+         * Returns the number of reports in a row in which the gauge timed out.
+         */
+        synchronized int getConsecutiveTimeouts() {
+            return consecutiveTimeouts;
+        }
+
+        /**
+         * Returns the number of reports in which the gauge timed out.
+         */
+        synchronized long getTimeouts() {
+            return timeouts;
+        }
+
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.wizenoze.prometheus;
+
+import java.util.Arrays;
+
+/**
+ * The upper bounds of the buckets of histograms exported as Prometheus histograms, in increasing
+ * order and without the implicit {@code +Inf} bucket. All workers must use the same bounds for the
+ * buckets of a metric to be summed up across them.
+ */
+public final class HistogramBuckets {
+
+    private final double[] bounds;
+
+    private HistogramBuckets(double[] bounds) {
+        if (bounds.length == 0) {
+            throw new IllegalArgumentException("At least one bucket is needed.");
+        }
+
+        for (int index = 0; index < bounds.length; index++) {
+            if (Double.isNaN(bounds[index]) || Double.isInfinite(bounds[index])) {
+                throw new IllegalArgumentException("Bucket bounds must be finite.");
+            }
+
+            if (index > 0 && bounds[index] <= bounds[index - 1]) {
+                throw new IllegalArgumentException("Bucket bounds must be increasing.");
+            }
+        }
+
+        this.bounds = bounds;
+    }
+
+    /**
+     * Returns buckets with the given upper bounds.
+     *
+     * @param bounds finite upper bounds, in increasing order
+     * @return {@link HistogramBuckets}
+     */
+    public static HistogramBuckets of(double... bounds) {
+        return new HistogramBuckets(bounds.clone());
+    }
+
+    /**
+     * Returns buckets whose upper bounds grow exponentially, e.g. {@code exponential(0.001, 2,
+     * 15)} for latencies from 1 millisecond to about 16 seconds.
+     *
+     * @param start the upper bound of the first bucket, greater than 0
+     * @param factor the factor between consecutive bounds, greater than 1
+     * @param count the number of buckets
+     * @return {@link HistogramBuckets}
+     */
+    public static HistogramBuckets exponential(double start, double factor, int count) {
+        if (start <= 0 || factor <= 1 || count < 1) {
+            throw new IllegalArgumentException(
+                    "Exponential buckets need a positive start, a factor above 1 and a count.");
+        }
+
+        double[] bounds = new double[count];
+        double bound = start;
+        for (int index = 0; index < count; index++) {
+            bounds[index] = bound;
+            bound *= factor;
+        }
+
+        return new HistogramBuckets(bounds);
+    }
+
+    /**
+     * Returns buckets whose upper bounds are evenly spaced.
+     *
+     * @param start the upper bound of the first bucket
+     * @param width the width of the buckets, greater than 0
+     * @param count the number of buckets
+     * @return {@link HistogramBuckets}
+     */
+    public static HistogramBuckets linear(double start, double width, int count) {
+        if (width <= 0 || count < 1) {
+            throw new IllegalArgumentException("Linear buckets need a positive width and a count.");
+        }
+
+        double[] bounds = new double[count];
+        for (int index = 0; index < count; index++) {
+            bounds[index] = start + index * width;
+        }
+
+        return new HistogramBuckets(bounds);
+    }
+
+    /**
+     * Returns the upper bounds of the buckets.
+     */
+    public double[] getBounds() {
+        return bounds.clone();
+    }
+
+    int size() {
+        return bounds.length;
+    }
+
+    double getBound(int index) {
+        return bounds[index];
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof HistogramBuckets
+                && Arrays.equals(bounds, ((HistogramBuckets) other).bounds);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bounds);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(bounds);
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.wizenoze.prometheus;
+
+import static org.apache.storm.utils.Utils.hostname;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The name of the local host, looked up in the background, as the lookup may block for long on a
+ * slow resolver. The first caller waits for the lookup for at most the timeout, after which the
+ * {@code HOSTNAME} environment variable (or else an empty name) is used instead. Either way, the
+ * outcome is kept for good, so that the labels of series don't change later on.
+ */
+final class HostName {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HostName.class);
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    // Shared by all reporters and exporters of the JVM
+    private static final HostName LOCAL = new HostName(new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+            return hostname();
+        }
+    }, TIMEOUT_MILLIS);
+
+    private final FutureTask<String> lookup;
+    private final long timeoutMillis;
+
+    private boolean started;
+    private String value;
+
+    HostName(Callable<String> lookup, long timeoutMillis) {
+        this.lookup = new FutureTask<>(lookup);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns the name of the local host, starting to look it up if it isn't being looked up yet.
+     */
+    static HostName local() {
+        return LOCAL.start();
+    }
+
+    /**
+     * Starts looking up the name on a daemon thread, unless it's been started already.
+     *
+     * @return {@code this}
+     */
+    synchronized HostName start() {
+        if (!started) {
+            started = true;
+            new DaemonThreadFactory("prometheus-host-name").newThread(lookup).start();
+        }
+
+        return this;
+    }
+
+    /**
+     * Returns the name of the host, waiting for the lookup to complete if it hasn't yet.
+     */
+    synchronized String get() {
+        if (value == null) {
+            start();
+            value = await();
+        }
+
+        return value;
+    }
+
+    private String await() {
+        try {
+            return lookup.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted while getting hostname.", e);
+        } catch (ExecutionException e) {
+            LOGGER.warn("Couldn't get hostname.", e.getCause());
+        } catch (TimeoutException e) {
+            LOGGER.warn("Couldn't get hostname within {} ms.", timeoutMillis);
+        }
+
+        String fallback = System.getenv("HOSTNAME");
+        return fallback != null ? fallback : "";
+    }
+
+}
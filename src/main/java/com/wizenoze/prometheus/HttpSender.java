@@ -0,0 +1,173 @@
+package com.wizenoze.prometheus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * POSTs request bodies to an endpoint from a background thread pool, on behalf of the exporters
+ * which send all groups in a single request.
+ *
+ * Recoverable failures (network errors, {@code 429} and {@code 5xx} responses) are retried with
+ * exponential backoff. At most {@code maxInFlight} requests are being sent or retried at a time,
+ * further ones are dropped instead of piling up behind an unavailable endpoint.
+ */
+class HttpSender {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpSender.class);
+
+    private static final int TIMEOUT_MILLIS = 10 * 1000;
+
+    private final URL url;
+    private final Map<String, String> headers;
+    private final int maxRetries;
+    private final long retryBackoffMillis;
+
+    private final Semaphore inFlight;
+    private final ExecutorService executor;
+
+    /**
+     * @param url the endpoint
+     * @param headers the request headers, e.g. {@code Content-Type}
+     * @param maxInFlight the maximum number of requests being sent or retried at a time
+     * @param maxRetries the maximum number of retries of a request
+     * @param retryBackoffMillis the time to wait before the first retry, doubled for every further
+     * one
+     * @param threadName the name of the sender threads, followed by a number
+     */
+    HttpSender(URL url, Map<String, String> headers, int maxInFlight, int maxRetries,
+            long retryBackoffMillis, String threadName) {
+
+        this.url = url;
+        this.headers = headers;
+        this.maxRetries = maxRetries;
+        this.retryBackoffMillis = retryBackoffMillis;
+
+        inFlight = new Semaphore(maxInFlight);
+        executor = new ThreadPoolExecutor(maxInFlight, maxInFlight, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory(threadName));
+    }
+
+    /**
+     * Sends the given body in the background, unless too many requests are in flight already.
+     *
+     * @param body the request body, which must not be modified afterwards
+     * @param length the number of bytes of {@code body} to send
+     * @return {@code false} if the request was dropped
+     */
+    boolean send(byte[] body, int length) {
+        if (!inFlight.tryAcquire()) {
+            LOGGER.warn("Dropping {} bytes, too many requests to {} in flight.", length, url);
+            return false;
+        }
+
+        executor.execute(new Sender(body, length));
+
+        return true;
+    }
+
+    /**
+     * Waits for the requests in flight to complete, retries included.
+     */
+    void close() {
+        executor.shutdown();
+
+        try {
+            long timeout = (maxRetries + 1) * (2 * TIMEOUT_MILLIS + retryBackoffMillis);
+            if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Requests to {} haven't completed in time.", url);
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends a request.
+     *
+     * @return {@code true} if the request was accepted or can't be retried, {@code false} if it
+     * should be retried
+     */
+    private boolean doRequest(byte[] body, int length) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setFixedLengthStreamingMode(length);
+
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write(body, 0, length);
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode / 100 == 2) {
+                return true;
+            }
+
+            if (responseCode == 429 || responseCode / 100 == 5) {
+                LOGGER.warn("Response code from {} was {}, retrying.", url, responseCode);
+                return false;
+            }
+
+            LOGGER.error("Response code from {} was {}, dropping {} bytes.",
+                    url, responseCode, length);
+            return true;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to send to {}, retrying.", url, e);
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private class Sender implements Runnable {
+
+        private final byte[] body;
+        private final int length;
+
+        Sender(byte[] body, int length) {
+            this.body = body;
+            this.length = length;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int attempt = 0; !doRequest(body, length); attempt++) {
+                    if (attempt == maxRetries) {
+                        LOGGER.error("Unable to send to {} after {} retries, dropping {} bytes.",
+                                url, maxRetries, length);
+                        return;
+                    }
+
+                    Thread.sleep(retryBackoffMillis << Math.min(attempt, 16));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.release();
+            }
+        }
+
+    }
+
+}
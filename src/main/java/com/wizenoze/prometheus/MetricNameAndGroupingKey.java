@@ -1,8 +1,5 @@
 package com.wizenoze.prometheus;
 
-import static java.lang.Character.isAlphabetic;
-import static java.lang.Character.isDigit;
-
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -28,21 +25,39 @@ class MetricNameAndGroupingKey {
                     + "(?<workerPort>[\\d]+)-"
                     + "(?<name>([\\p{Alnum}[-_]]+|disruptor-[\\p{Alnum}[-_]]+\\[(?<threadId>-?[\\d]+\\p{Space}-?[\\d]+)\\]-[\\p{Alnum}[-_]]+))");
 
+    private static final String TASK_ID = "task_id";
+    private static final String THREAD_ID = "thread_id";
+
     private final String name;
     private final Map<String, String> groupingKey;
 
-    private MetricNameAndGroupingKey(String name, Map<String, String> groupingKey) {
+    MetricNameAndGroupingKey(String name, Map<String, String> groupingKey) {
         this.name = name;
         this.groupingKey = groupingKey;
     }
 
     static MetricNameAndGroupingKey parseMetric(String originalName) {
-        Matcher matcher = STORM_WORKER_METRIC_NAME_PATTERN.matcher(originalName);
-        if (!matcher.matches()) {
+        MetricNameAndGroupingKey metric = parseStormMetric(originalName);
+        if (metric == null) {
             throw new IllegalArgumentException(
                     originalName + " didn't match with the supported patterns.");
         }
 
+        return metric;
+    }
+
+    /**
+     * Parses the name of a Storm worker metric.
+     *
+     * @return the parsed metric, or {@code null} if the name didn't match with the supported
+     * patterns
+     */
+    static MetricNameAndGroupingKey parseStormMetric(String originalName) {
+        Matcher matcher = STORM_WORKER_METRIC_NAME_PATTERN.matcher(originalName);
+        if (!matcher.matches()) {
+            return null;
+        }
+
         Map<String, String> groupingKey = new LinkedHashMap<>();
 
         addToGroupingKey("topologyId", matcher, groupingKey);
@@ -71,11 +86,32 @@ class MetricNameAndGroupingKey {
         return new MetricNameAndGroupingKey(metricName, groupingKey);
     }
 
-    private static String escapeName(String name) {
+    /**
+     * Returns a metric named after the escaped original name, without any grouping labels, for
+     * names which aren't Storm worker metric names (e.g. metrics registered by users).
+     */
+    static MetricNameAndGroupingKey fallbackMetric(String originalName) {
+        return new MetricNameAndGroupingKey(
+                escapeMetricName(originalName), new LinkedHashMap<String, String>());
+    }
+
+    /**
+     * Escapes a whole metric name, which unlike the suffix of a name must not start with a digit.
+     */
+    static String escapeMetricName(String originalName) {
+        String name = escapeName(originalName);
+        if (name.isEmpty() || isDigit(name.charAt(0))) {
+            name = "_" + name;
+        }
+
+        return name;
+    }
+
+    static String escapeName(String name) {
         char[] charArray = name.toCharArray();
         for (int index = 0; index < charArray.length; index++) {
             char c = charArray[index];
-            if (!isAlphabetic(c) && !isDigit(c) && c != '_') {
+            if (!isLetter(c) && !isDigit(c) && c != '_') {
                 charArray[index] = '_';
             }
         }
@@ -83,6 +119,14 @@ class MetricNameAndGroupingKey {
         return String.valueOf(charArray);
     }
 
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
     private static void addToGroupingKey(
             String groupName, Matcher matcher, Map<String, String> groupingKey) {
 
@@ -109,4 +153,39 @@ class MetricNameAndGroupingKey {
         return groupingKey;
     }
 
+    boolean hasTaskId() {
+        return groupingKey.containsKey(TASK_ID);
+    }
+
+    /**
+     * Returns the same metric with the task specific labels removed from its grouping key, so that
+     * it identifies the metric of all tasks of the same component (and stream) in a worker.
+     */
+    MetricNameAndGroupingKey withoutTaskId() {
+        Map<String, String> newGroupingKey = new LinkedHashMap<>(groupingKey);
+        newGroupingKey.remove(TASK_ID);
+        newGroupingKey.remove(THREAD_ID);
+
+        return new MetricNameAndGroupingKey(name, newGroupingKey);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof MetricNameAndGroupingKey)) {
+            return false;
+        }
+
+        MetricNameAndGroupingKey other = (MetricNameAndGroupingKey) obj;
+        return name.equals(other.name) && groupingKey.equals(other.groupingKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * name.hashCode() + groupingKey.hashCode();
+    }
+
 }
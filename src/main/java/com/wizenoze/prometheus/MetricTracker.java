@@ -0,0 +1,217 @@
+package com.wizenoze.prometheus;
+
+import static com.wizenoze.prometheus.MetricNameAndGroupingKey.fallbackMetric;
+import static com.wizenoze.prometheus.MetricNameAndGroupingKey.parseStormMetric;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the metrics of a {@link com.codahale.metrics.MetricRegistry} incrementally, as
+ * they're added and removed. Metrics are filtered and their names are parsed only once, upon
+ * registration, so that reporting doesn't need to rescan and sort the whole registry.
+ *
+ * Names are parsed according to the naming scheme of Storm worker metrics, or else according to
+ * the user defined {@link NameTemplates}. The outcome is remembered per name, so that names
+ * aren't parsed (and warned about) over and over again when metrics are tracked on every report.
+ */
+class MetricTracker implements MetricRegistryListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricTracker.class);
+
+    // Bounds the memory spent on remembering names, should they be generated dynamically
+    private static final int MAX_CACHED_NAMES = 10000;
+
+    private final MetricFilter filter;
+    private final NameTemplates nameTemplates;
+    private final NameFallback nameFallback;
+
+    private final ConcurrentMap<String, MetricNameAndGroupingKey> parsedNames =
+            new ConcurrentHashMap<>();
+    private final Set<String> unmatchedNames =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ConcurrentMap<String, TrackedMetric<Gauge>> gauges =
+            new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, TrackedMetric<Counter>> counters =
+            new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, TrackedMetric<Histogram>> histograms =
+            new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, TrackedMetric<Meter>> meters =
+            new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, TrackedMetric<Timer>> timers =
+            new ConcurrentSkipListMap<>();
+
+    MetricTracker(MetricFilter filter, NameTemplates nameTemplates, NameFallback nameFallback) {
+        this.filter = filter;
+        this.nameTemplates = nameTemplates;
+        this.nameFallback = nameFallback;
+    }
+
+    /**
+     * Parses the names of the given metrics, without filtering them.
+     */
+    <T extends Metric> List<TrackedMetric<T>> track(Map<String, T> metrics) {
+        List<TrackedMetric<T>> trackedMetrics = new ArrayList<>(metrics.size());
+        for (Map.Entry<String, T> entry : metrics.entrySet()) {
+            String name = entry.getKey();
+            MetricNameAndGroupingKey key = parse(name);
+            if (key != null) {
+                trackedMetrics.add(new TrackedMetric<>(name, key, entry.getValue()));
+            }
+        }
+
+        return trackedMetrics;
+    }
+
+    Collection<TrackedMetric<Gauge>> getGauges() {
+        return gauges.values();
+    }
+
+    Collection<TrackedMetric<Counter>> getCounters() {
+        return counters.values();
+    }
+
+    Collection<TrackedMetric<Histogram>> getHistograms() {
+        return histograms.values();
+    }
+
+    Collection<TrackedMetric<Meter>> getMeters() {
+        return meters.values();
+    }
+
+    Collection<TrackedMetric<Timer>> getTimers() {
+        return timers.values();
+    }
+
+    private <T extends Metric> void add(
+            String name, T metric, ConcurrentMap<String, TrackedMetric<T>> trackedMetrics) {
+
+        if (!filter.matches(name, metric)) {
+            return;
+        }
+
+        MetricNameAndGroupingKey key = parse(name);
+        if (key != null) {
+            trackedMetrics.put(name, new TrackedMetric<>(name, key, metric));
+        }
+    }
+
+    /**
+     * Parses the given name, falling back to {@link NameFallback} if it's neither the name of a
+     * Storm worker metric nor does it follow any of the name templates. Nothing is thrown, as
+     * listeners are called by the thread registering the metric.
+     *
+     * @return the parsed name, or {@code null} if the metric shouldn't be reported
+     */
+    private MetricNameAndGroupingKey parse(String name) {
+        MetricNameAndGroupingKey key = parsedNames.get(name);
+        if (key != null) {
+            return key;
+        }
+
+        if (!unmatchedNames.contains(name)) {
+            key = parseStormMetric(name);
+            if (key == null) {
+                key = nameTemplates.parse(name);
+            }
+
+            if (key != null) {
+                if (parsedNames.size() < MAX_CACHED_NAMES) {
+                    parsedNames.put(name, key);
+                }
+                return key;
+            }
+
+            if (unmatchedNames.size() < MAX_CACHED_NAMES && unmatchedNames.add(name)) {
+                if (nameFallback == NameFallback.SKIP) {
+                    LOGGER.warn("Metric {} won't be reported: it didn't match with the supported "
+                            + "patterns and name templates.", name);
+                } else {
+                    LOGGER.info("Metric {} didn't match with the supported patterns and name "
+                            + "templates, it'll be reported under its escaped name.", name);
+                }
+            }
+        }
+
+        return nameFallback == NameFallback.SKIP ? null : fallbackMetric(name);
+    }
+
+    private void forget(String name) {
+        parsedNames.remove(name);
+        unmatchedNames.remove(name);
+    }
+
+    @Override
+    public void onGaugeAdded(String name, Gauge<?> gauge) {
+        add(name, (Gauge) gauge, gauges);
+    }
+
+    @Override
+    public void onGaugeRemoved(String name) {
+        gauges.remove(name);
+        forget(name);
+    }
+
+    @Override
+    public void onCounterAdded(String name, Counter counter) {
+        add(name, counter, counters);
+    }
+
+    @Override
+    public void onCounterRemoved(String name) {
+        counters.remove(name);
+        forget(name);
+    }
+
+    @Override
+    public void onHistogramAdded(String name, Histogram histogram) {
+        add(name, histogram, histograms);
+    }
+
+    @Override
+    public void onHistogramRemoved(String name) {
+        histograms.remove(name);
+        forget(name);
+    }
+
+    @Override
+    public void onMeterAdded(String name, Meter meter) {
+        add(name, meter, meters);
+    }
+
+    @Override
+    public void onMeterRemoved(String name) {
+        meters.remove(name);
+        forget(name);
+    }
+
+    @Override
+    public void onTimerAdded(String name, Timer timer) {
+        add(name, timer, timers);
+    }
+
+    @Override
+    public void onTimerRemoved(String name) {
+        timers.remove(name);
+        forget(name);
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.wizenoze.prometheus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Encodes and sends the series collected by {@link PrometheusReporter}.
+ *
+ * Series are encoded only once, when they're first reported, and the samples of a group (i.e.
+ * series having the same grouping key) are written into the same {@link ExpositionBuffer} on
+ * every report. All methods are called by the reporting thread.
+ *
+ * Every metric is reported as one or more series (e.g. a timer as its count, rates and
+ * quantiles), which are described by a {@link SeriesDescriptor}.
+ */
+public interface MetricsExporter extends Closeable {
+
+    /**
+     * Encodes the parts of a series which don't change from one report to the next, like its
+     * name and labels.
+     *
+     * @param series the series
+     * @return the encoded series
+     */
+    byte[] encodeSeries(SeriesDescriptor series);
+
+    /**
+     * Writes a sample of a series encoded by {@link #encodeSeries(SeriesDescriptor)}. The series
+     * of a histogram or a timer are written one after the other.
+     *
+     * @param buffer buffer of the group
+     * @param encodedSeries the encoded series
+     * @param value value of the sample
+     * @param timestamp time of the report in milliseconds since the epoch
+     */
+    void writeSample(ExpositionBuffer buffer, byte[] encodedSeries, double value, long timestamp);
+
+    /**
+     * Exports the samples of a group written in the current report. The buffer is reused by the
+     * next report, hence it must not be retained.
+     *
+     * @param samples samples of the group
+     * @param groupingKey labels of the group
+     * @throws IOException if the samples couldn't be sent
+     */
+    void export(ExpositionBuffer samples, Map<String, String> groupingKey) throws IOException;
+
+    /**
+     * Called once every group of the current report has been exported, e.g. to send them in a
+     * single request.
+     *
+     * @throws IOException if the samples couldn't be sent
+     */
+    void flush() throws IOException;
+
+    /**
+     * Deletes a group whose metrics have all been removed.
+     *
+     * @param groupingKey labels of the group
+     * @throws IOException if the group couldn't be deleted
+     */
+    void delete(Map<String, String> groupingKey) throws IOException;
+
+}
@@ -0,0 +1,20 @@
+package com.wizenoze.prometheus;
+
+/**
+ * What to do with metrics whose names don't match the naming scheme of Storm worker metrics, like
+ * metrics of daemons or metrics registered by users.
+ */
+public enum NameFallback {
+
+    /**
+     * Don't report them.
+     */
+    SKIP,
+
+    /**
+     * Report them under their full name, with every character which isn't allowed in metric names
+     * replaced by an underscore, and without any grouping labels.
+     */
+    ESCAPED_NAME
+
+}
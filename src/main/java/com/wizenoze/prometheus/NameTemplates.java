@@ -0,0 +1,233 @@
+package com.wizenoze.prometheus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parses metric names following user defined templates into a name and a grouping key, like
+ * {@code app.{service}.{endpoint}.{name}}.
+ *
+ * Every segment of a template is either a literal or a placeholder spanning the whole segment,
+ * which becomes a label of the grouping key, except for {@code {name}}, the name of the metric.
+ * Labels must be valid Prometheus label names, other than those set by the gateway, the reporter
+ * or histograms ({@code job}, {@code instance} and {@code le}).
+ * All templates are compiled into a single trie over the dot separated segments of metric names,
+ * in which literal segments are looked up through a hash map and preferred over placeholders. If
+ * several templates have got the same shape, the first one wins.
+ */
+final class NameTemplates {
+
+    private static final String NAME = "name";
+
+    private static final Set<String> RESERVED_LABELS =
+            new HashSet<>(Arrays.asList("job", "instance", "le"));
+
+    private final Node root = new Node();
+
+    private boolean empty = true;
+
+    /**
+     * Compiles the given templates.
+     *
+     * @throws IllegalArgumentException if a template is invalid
+     */
+    static NameTemplates compile(Collection<String> templates) {
+        NameTemplates nameTemplates = new NameTemplates();
+        for (String template : templates) {
+            nameTemplates.add(template);
+        }
+        return nameTemplates;
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Returns the metric the given name belongs to, or {@code null} if it doesn't follow any of the
+     * templates.
+     */
+    MetricNameAndGroupingKey parse(String name) {
+        if (empty) {
+            return null;
+        }
+
+        List<String> segments = split(name);
+
+        Template template = match(root, segments, 0);
+        if (template == null) {
+            return null;
+        }
+
+        Map<String, String> groupingKey = new LinkedHashMap<>();
+        String metricName = null;
+
+        for (int index = 0; index < segments.size(); index++) {
+            String label = template.labels[index];
+            if (label == null) {
+                continue;
+            }
+
+            if (NAME.equals(label)) {
+                metricName = MetricNameAndGroupingKey.escapeMetricName(segments.get(index));
+            } else {
+                groupingKey.put(label, segments.get(index));
+            }
+        }
+
+        return new MetricNameAndGroupingKey(metricName, groupingKey);
+    }
+
+    private void add(String template) {
+        if (template == null || template.isEmpty()) {
+            throw new IllegalArgumentException("Name template must not be empty.");
+        }
+
+        List<String> segments = split(template);
+        String[] labels = new String[segments.size()];
+        Set<String> seenLabels = new HashSet<>();
+
+        Node node = root;
+        for (int index = 0; index < segments.size(); index++) {
+            String segment = segments.get(index);
+
+            if (segment.startsWith("{") && segment.endsWith("}")) {
+                String label = segment.substring(1, segment.length() - 1);
+                if (!isLabelName(label) || !seenLabels.add(label)) {
+                    throw new IllegalArgumentException(
+                            "Name template " + template + " has an invalid placeholder: " + label);
+                }
+
+                labels[index] = label;
+                node = node.placeholder();
+            } else if (segment.indexOf('{') >= 0 || segment.indexOf('}') >= 0) {
+                throw new IllegalArgumentException("Placeholders of name template " + template
+                        + " must span whole segments.");
+            } else {
+                node = node.literal(segment);
+            }
+        }
+
+        if (!seenLabels.contains(NAME)) {
+            throw new IllegalArgumentException(
+                    "Name template " + template + " lacks a {" + NAME + "} placeholder.");
+        }
+
+        if (node.template == null) {
+            node.template = new Template(labels);
+        }
+
+        empty = false;
+    }
+
+    private static Template match(Node node, List<String> segments, int index) {
+        if (index == segments.size()) {
+            return node.template;
+        }
+
+        String segment = segments.get(index);
+
+        Node literal = node.literals.get(segment);
+        if (literal != null) {
+            Template template = match(literal, segments, index + 1);
+            if (template != null) {
+                return template;
+            }
+        }
+
+        if (node.placeholder != null && !segment.isEmpty()) {
+            return match(node.placeholder, segments, index + 1);
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns whether the given label matches {@code [a-zA-Z_][a-zA-Z0-9_]*} and isn't reserved.
+     */
+    private static boolean isLabelName(String label) {
+        if (label.isEmpty() || isDigit(label.charAt(0)) || RESERVED_LABELS.contains(label)) {
+            return false;
+        }
+
+        for (int index = 0; index < label.length(); index++) {
+            char c = label.charAt(index);
+            if (!isLetter(c) && !isDigit(c) && c != '_') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static List<String> split(String name) {
+        List<String> segments = new ArrayList<>();
+
+        int start = 0;
+        int end;
+        while ((end = name.indexOf('.', start)) >= 0) {
+            segments.add(name.substring(start, end));
+            start = end + 1;
+        }
+
+        segments.add(name.substring(start));
+
+        return segments;
+    }
+
+    private static class Node {
+
+        final Map<String, Node> literals = new HashMap<>();
+
+        Node placeholder;
+        Template template;
+
+        Node literal(String segment) {
+            Node child = literals.get(segment);
+            if (child == null) {
+                child = new Node();
+                literals.put(segment, child);
+            }
+
+            return child;
+        }
+
+        Node placeholder() {
+            if (placeholder == null) {
+                placeholder = new Node();
+            }
+
+            return placeholder;
+        }
+
+    }
+
+    /**
+     * The labels of a template by segment, {@code null} for literal segments.
+     */
+    private static class Template {
+
+        final String[] labels;
+
+        Template(String[] labels) {
+            this.labels = labels;
+        }
+
+    }
+
+}
@@ -0,0 +1,660 @@
+package com.wizenoze.prometheus;
+
+import static com.wizenoze.prometheus.Protobuf.messageLength;
+import static com.wizenoze.prometheus.Protobuf.writeDouble;
+import static com.wizenoze.prometheus.Protobuf.writeFixed64;
+import static com.wizenoze.prometheus.Protobuf.writeMessageHeader;
+import static com.wizenoze.prometheus.Protobuf.writeString;
+import static com.wizenoze.prometheus.Protobuf.writeVarint;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the metrics of all groups in a single {@code ExportMetricsServiceRequest} to an
+ * OpenTelemetry collector over OTLP/HTTP (binary protocol buffers).
+ *
+ * All metrics of a worker belong to the same resource, identified by {@code service.name} and
+ * {@code host.name}, while grouping keys become the attributes of data points. Counts of counters
+ * and meters are mapped to monotonic cumulative sums, histograms and timers to summaries (with
+ * their minimum and maximum as quantiles 0 and 1), everything else to gauges. Snapshots don't
+ * keep track of the sum of all values, hence the sum of summaries is left 0. Histograms and timers
+ * exported as histograms are mapped to cumulative histograms.
+ *
+ * Requests are sent in the background by an {@link HttpSender}, which retries recoverable failures
+ * and drops requests once too many are in flight.
+ *
+ * @see <a href="https://github.com/open-telemetry/opentelemetry-proto/blob/main/opentelemetry/proto/metrics/v1/metrics.proto">metrics.proto</a>
+ */
+public class OtlpExporter implements MetricsExporter {
+
+    private static final String SCOPE_NAME = "com.wizenoze.prometheus";
+
+    // ExportMetricsServiceRequest.resource_metrics
+    private static final int RESOURCE_METRICS_FIELD = 1;
+
+    // ResourceMetrics.resource, ResourceMetrics.scope_metrics, Resource.attributes
+    private static final int RESOURCE_FIELD = 1;
+    private static final int SCOPE_METRICS_FIELD = 2;
+    private static final int RESOURCE_ATTRIBUTES_FIELD = 1;
+
+    // ScopeMetrics.scope, ScopeMetrics.metrics, InstrumentationScope.name
+    private static final int SCOPE_FIELD = 1;
+    private static final int METRICS_FIELD = 2;
+    private static final int SCOPE_NAME_FIELD = 1;
+
+    // Metric.name, Metric.description, Metric.gauge, Metric.sum, Metric.histogram,
+    // Metric.summary
+    private static final int NAME_FIELD = 1;
+    private static final int DESCRIPTION_FIELD = 2;
+    private static final int GAUGE_FIELD = 5;
+    private static final int SUM_FIELD = 7;
+    private static final int HISTOGRAM_FIELD = 9;
+    private static final int SUMMARY_FIELD = 11;
+
+    // Gauge.data_points, Sum.data_points, Sum.aggregation_temporality, Sum.is_monotonic
+    private static final int DATA_POINTS_FIELD = 1;
+    private static final int AGGREGATION_TEMPORALITY_FIELD = 2;
+    private static final int IS_MONOTONIC_FIELD = 3;
+    private static final int AGGREGATION_TEMPORALITY_CUMULATIVE = 2;
+
+    // NumberDataPoint and SummaryDataPoint fields
+    private static final int START_TIME_FIELD = 2;
+    private static final int TIME_FIELD = 3;
+    private static final int AS_DOUBLE_FIELD = 4;
+    private static final int COUNT_FIELD = 4;
+    private static final int QUANTILE_VALUES_FIELD = 6;
+    private static final int ATTRIBUTES_FIELD = 7;
+
+    // HistogramDataPoint fields, besides those shared with the other data points
+    private static final int SUM_VALUE_FIELD = 5;
+    private static final int BUCKET_COUNTS_FIELD = 6;
+    private static final int EXPLICIT_BOUNDS_FIELD = 7;
+    private static final int HISTOGRAM_ATTRIBUTES_FIELD = 9;
+
+    // ValueAtQuantile.quantile, ValueAtQuantile.value
+    private static final int QUANTILE_FIELD = 1;
+    private static final int VALUE_FIELD = 2;
+
+    // KeyValue.key, KeyValue.value, AnyValue.string_value
+    private static final int KEY_FIELD = 1;
+    private static final int STRING_VALUE_FIELD = 1;
+
+    // A tagged fixed64 or double, a tagged single byte varint
+    private static final int FIXED64_LENGTH = 9;
+    private static final int SMALL_VARINT_LENGTH = 2;
+
+    private static final int VALUE_AT_QUANTILE_LENGTH = 2 * FIXED64_LENGTH;
+
+    // Kind, quantile (or upper bound) and length of the head preceding the encoded series
+    private static final int HEADER_LENGTH = 1 + 8 + 4;
+
+    private static final SeriesKind[] KINDS = SeriesKind.values();
+
+    private final Map<String, String> resourceAttributes;
+    private final HostName hostName;
+    private final byte[] scope;
+    private final long startTimeNanos;
+    private final int maxRequestSize;
+    private final HttpSender sender;
+
+    private final ExpositionBuffer request = new ExpositionBuffer();
+
+    // Encoded upon the first request, as the host name may still be looked up until then
+    private byte[] resource;
+
+    // The summary or histogram being written, as its series are written one after the other. The
+    // quantiles of a histogram are the upper bounds of its buckets, and its values their counts.
+    private ExpositionBuffer summaryBuffer;
+    private byte[] summarySeries;
+    private long summaryTimestamp;
+    private long summaryCount;
+    private double summarySum;
+    private double[] quantiles = new double[16];
+    private double[] values = new double[16];
+    private int quantileCount;
+
+    private OtlpExporter(URL url,
+            Map<String, String> resourceAttributes,
+            HostName hostName,
+            int maxRequestSize,
+            int maxInFlight,
+            int maxRetries,
+            long retryBackoffMillis) {
+
+        this.maxRequestSize = maxRequestSize;
+        this.startTimeNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+
+        this.resourceAttributes = resourceAttributes;
+        this.hostName = hostName;
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        writeString(buffer, SCOPE_NAME_FIELD, SCOPE_NAME);
+        scope = encodeMessage(SCOPE_FIELD, buffer);
+
+        sender = new HttpSender(url,
+                Collections.singletonMap("Content-Type", "application/x-protobuf"),
+                maxInFlight, maxRetries, retryBackoffMillis, "otlp-exporter");
+    }
+
+    /**
+     * Returns a new {@link OtlpExporter.Builder} for {@link OtlpExporter}.
+     *
+     * @param url the OTLP/HTTP metrics endpoint, e.g. {@code http://localhost:4318/v1/metrics}
+     * @return a {@link OtlpExporter.Builder} instance for a {@link OtlpExporter}
+     */
+    public static OtlpExporter.Builder forEndpoint(URL url) {
+        return new OtlpExporter.Builder(url);
+    }
+
+    /**
+     * Encodes the {@code Resource} of all metrics, with the host name looked up in the background
+     * added as {@code host.name}, unless it has been given.
+     */
+    private byte[] encodeResource() {
+        Map<String, String> attributes = new LinkedHashMap<>(resourceAttributes);
+        if (hostName != null) {
+            attributes.put("host.name", hostName.get());
+        }
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        writeAttributes(buffer, RESOURCE_ATTRIBUTES_FIELD, attributes);
+        return encodeMessage(RESOURCE_FIELD, buffer);
+    }
+
+    private static byte[] encodeMessage(int field, ExpositionBuffer message) {
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        writeMessageHeader(buffer, field, message.size());
+        buffer.append(message);
+        return buffer.toByteArray();
+    }
+
+    private static void writeAttributes(ExpositionBuffer buffer, int field,
+            Map<String, String> attributes) {
+
+        ExpositionBuffer value = new ExpositionBuffer();
+        ExpositionBuffer keyValue = new ExpositionBuffer();
+
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            value.reset();
+            writeString(value, STRING_VALUE_FIELD, entry.getValue());
+
+            keyValue.reset();
+            writeString(keyValue, KEY_FIELD, entry.getKey());
+            writeMessageHeader(keyValue, VALUE_FIELD, value.size());
+            keyValue.append(value);
+
+            writeMessageHeader(buffer, field, keyValue.size());
+            buffer.append(keyValue);
+        }
+    }
+
+    private static int getHeadLength(byte[] encodedSeries) {
+        return ((encodedSeries[9] & 0xff) << 24) | ((encodedSeries[10] & 0xff) << 16)
+                | ((encodedSeries[11] & 0xff) << 8) | (encodedSeries[12] & 0xff);
+    }
+
+    private static double getQuantile(byte[] encodedSeries) {
+        long bits = 0;
+        for (int index = 1; index <= 8; index++) {
+            bits = (bits << 8) | (encodedSeries[index] & 0xff);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * Returns {@code true} if both series belong to the same metric, i.e. they have got the same
+     * head (name and description) and attributes.
+     */
+    private static boolean isSameMetric(byte[] series, byte[] otherSeries) {
+        if (series.length != otherSeries.length) {
+            return false;
+        }
+
+        for (int index = series.length - 1; index >= HEADER_LENGTH; index--) {
+            if (series[index] != otherSeries[index]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isHistogram(SeriesKind kind) {
+        return kind == SeriesKind.HISTOGRAM_COUNT || kind == SeriesKind.HISTOGRAM_SUM
+                || kind == SeriesKind.HISTOGRAM_BUCKET;
+    }
+
+    /**
+     * Encodes the kind and the quantile (or upper bound) of the series, followed by the fields of
+     * its {@code Metric} (name and description) and the attributes of its data points. The series
+     * of a histogram or a timer are named after the metric, as they're combined into a single
+     * summary or histogram.
+     */
+    @Override
+    public byte[] encodeSeries(SeriesDescriptor series) {
+        SeriesKind kind = series.getKind();
+        boolean histogram = isHistogram(kind);
+        boolean summary = histogram
+                || kind == SeriesKind.SUMMARY_COUNT || kind == SeriesKind.SUMMARY_QUANTILE;
+
+        ExpositionBuffer head = new ExpositionBuffer();
+        writeString(head, NAME_FIELD, summary ? series.getMetricName() : series.getName());
+        writeString(head, DESCRIPTION_FIELD, series.getHelp());
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        buffer.append((byte) kind.ordinal());
+
+        long quantile = Double.doubleToRawLongBits(kind == SeriesKind.HISTOGRAM_BUCKET
+                ? series.getUpperBound() : series.getQuantile());
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer.append((byte) (quantile >>> shift));
+        }
+
+        int headLength = head.size();
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            buffer.append((byte) (headLength >>> shift));
+        }
+
+        buffer.append(head);
+        writeAttributes(buffer, histogram ? HISTOGRAM_ATTRIBUTES_FIELD : ATTRIBUTES_FIELD,
+                series.getGroupingKey());
+
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Writes gauges and counters right away, while the parts of a summary or histogram are
+     * collected until a part of another one arrives or the group is exported. The gauges of a
+     * histogram or timer (e.g. its mean) are written in between, as the order of metrics doesn't
+     * matter.
+     */
+    @Override
+    public void writeSample(ExpositionBuffer buffer, byte[] encodedSeries, double value,
+            long timestamp) {
+
+        SeriesKind kind = KINDS[encodedSeries[0]];
+
+        switch (kind) {
+            case GAUGE:
+                writeNumber(buffer, encodedSeries, GAUGE_FIELD, value, timestamp);
+                return;
+            case COUNTER:
+                writeNumber(buffer, encodedSeries, SUM_FIELD, value, timestamp);
+                return;
+            default:
+                break;
+        }
+
+        if (summarySeries != null && !isSameMetric(summarySeries, encodedSeries)) {
+            writeSummary();
+        }
+
+        startSummary(buffer, encodedSeries, timestamp);
+        switch (kind) {
+            case SUMMARY_COUNT:
+            case HISTOGRAM_COUNT:
+                summaryCount = (long) value;
+                break;
+            case HISTOGRAM_SUM:
+                summarySum = value;
+                break;
+            default:
+                if (quantileCount == quantiles.length) {
+                    quantiles = Arrays.copyOf(quantiles, 2 * quantileCount);
+                    values = Arrays.copyOf(values, 2 * quantileCount);
+                }
+
+                quantiles[quantileCount] = getQuantile(encodedSeries);
+                values[quantileCount] = value;
+                quantileCount++;
+        }
+    }
+
+    /**
+     * Appends the metrics of the group to the current request, which is sent first if it would
+     * exceed its maximum size.
+     */
+    @Override
+    public void export(ExpositionBuffer samples, Map<String, String> groupingKey) {
+        if (summarySeries != null) {
+            writeSummary();
+        }
+
+        if (request.size() > 0 && request.size() + samples.size() > maxRequestSize) {
+            send();
+        }
+
+        request.append(samples);
+    }
+
+    @Override
+    public void flush() {
+        // Completes the buffer of a group which wasn't exported, e.g. as it was carried over
+        if (summarySeries != null) {
+            writeSummary();
+        }
+
+        if (request.size() > 0) {
+            send();
+        }
+    }
+
+    /**
+     * Data points of removed metrics simply stop being sent.
+     */
+    @Override
+    public void delete(Map<String, String> groupingKey) {
+    }
+
+    /**
+     * Waits for the requests in flight to complete, retries included.
+     */
+    @Override
+    public void close() {
+        sender.close();
+    }
+
+    /**
+     * Writes a {@code Metric} with a single {@code NumberDataPoint} into the given field, which is
+     * either a gauge or a (monotonic, cumulative) sum.
+     */
+    private void writeNumber(ExpositionBuffer buffer, byte[] encodedSeries, int field,
+            double value, long timestamp) {
+
+        boolean sum = field == SUM_FIELD;
+
+        int headLength = getHeadLength(encodedSeries);
+        int attributesOffset = HEADER_LENGTH + headLength;
+        int attributesLength = encodedSeries.length - attributesOffset;
+
+        int dataPointLength = attributesLength + (sum ? 3 : 2) * FIXED64_LENGTH;
+        int valueLength = messageLength(dataPointLength) + (sum ? 2 * SMALL_VARINT_LENGTH : 0);
+        int metricLength = headLength + messageLength(valueLength);
+
+        writeMessageHeader(buffer, METRICS_FIELD, metricLength);
+        buffer.append(encodedSeries, HEADER_LENGTH, headLength);
+
+        writeMessageHeader(buffer, field, valueLength);
+        writeMessageHeader(buffer, DATA_POINTS_FIELD, dataPointLength);
+        buffer.append(encodedSeries, attributesOffset, attributesLength);
+        if (sum) {
+            writeFixed64(buffer, START_TIME_FIELD, startTimeNanos);
+        }
+        writeFixed64(buffer, TIME_FIELD, TimeUnit.MILLISECONDS.toNanos(timestamp));
+        writeDouble(buffer, AS_DOUBLE_FIELD, value);
+
+        if (sum) {
+            writeVarint(buffer, AGGREGATION_TEMPORALITY_FIELD,
+                    AGGREGATION_TEMPORALITY_CUMULATIVE);
+            writeVarint(buffer, IS_MONOTONIC_FIELD, 1);
+        }
+    }
+
+    private void startSummary(ExpositionBuffer buffer, byte[] encodedSeries, long timestamp) {
+        if (summarySeries == null) {
+            summaryBuffer = buffer;
+            summarySeries = encodedSeries;
+            summaryTimestamp = timestamp;
+            summaryCount = 0;
+            summarySum = 0;
+            quantileCount = 0;
+        }
+    }
+
+    /**
+     * Writes the summary collected from the series of a histogram or timer as a {@code Metric}
+     * with a single {@code SummaryDataPoint}, or with a single {@code HistogramDataPoint} if they
+     * are the series of a histogram.
+     */
+    private void writeSummary() {
+        ExpositionBuffer buffer = summaryBuffer;
+        byte[] encodedSeries = summarySeries;
+
+        summaryBuffer = null;
+        summarySeries = null;
+
+        sortQuantiles();
+
+        if (isHistogram(KINDS[encodedSeries[0]])) {
+            writeHistogram(buffer, encodedSeries);
+            return;
+        }
+
+        int headLength = getHeadLength(encodedSeries);
+        int attributesOffset = HEADER_LENGTH + headLength;
+        int attributesLength = encodedSeries.length - attributesOffset;
+
+        int dataPointLength = attributesLength + 3 * FIXED64_LENGTH
+                + quantileCount * messageLength(VALUE_AT_QUANTILE_LENGTH);
+        int summaryLength = messageLength(dataPointLength);
+        int metricLength = headLength + messageLength(summaryLength);
+
+        writeMessageHeader(buffer, METRICS_FIELD, metricLength);
+        buffer.append(encodedSeries, HEADER_LENGTH, headLength);
+
+        writeMessageHeader(buffer, SUMMARY_FIELD, summaryLength);
+        writeMessageHeader(buffer, DATA_POINTS_FIELD, dataPointLength);
+        buffer.append(encodedSeries, attributesOffset, attributesLength);
+        writeFixed64(buffer, START_TIME_FIELD, startTimeNanos);
+        writeFixed64(buffer, TIME_FIELD, TimeUnit.MILLISECONDS.toNanos(summaryTimestamp));
+        writeFixed64(buffer, COUNT_FIELD, summaryCount);
+
+        for (int index = 0; index < quantileCount; index++) {
+            writeMessageHeader(buffer, QUANTILE_VALUES_FIELD, VALUE_AT_QUANTILE_LENGTH);
+            writeDouble(buffer, QUANTILE_FIELD, quantiles[index]);
+            writeDouble(buffer, VALUE_FIELD, values[index]);
+        }
+    }
+
+    /**
+     * Writes a {@code HistogramDataPoint}, whose bucket counts aren't cumulative, unlike those of
+     * Prometheus, and whose {@code +Inf} bucket has got no explicit bound.
+     */
+    private void writeHistogram(ExpositionBuffer buffer, byte[] encodedSeries) {
+        int boundCount = quantileCount;
+        if (boundCount > 0 && quantiles[boundCount - 1] == Double.POSITIVE_INFINITY) {
+            boundCount--;
+        }
+
+        int headLength = getHeadLength(encodedSeries);
+        int attributesOffset = HEADER_LENGTH + headLength;
+        int attributesLength = encodedSeries.length - attributesOffset;
+
+        int dataPointLength = attributesLength + 4 * FIXED64_LENGTH
+                + messageLength(8 * (boundCount + 1))
+                + (boundCount > 0 ? messageLength(8 * boundCount) : 0);
+        int histogramLength = messageLength(dataPointLength) + SMALL_VARINT_LENGTH;
+        int metricLength = headLength + messageLength(histogramLength);
+
+        writeMessageHeader(buffer, METRICS_FIELD, metricLength);
+        buffer.append(encodedSeries, HEADER_LENGTH, headLength);
+
+        writeMessageHeader(buffer, HISTOGRAM_FIELD, histogramLength);
+        writeMessageHeader(buffer, DATA_POINTS_FIELD, dataPointLength);
+        buffer.append(encodedSeries, attributesOffset, attributesLength);
+        writeFixed64(buffer, START_TIME_FIELD, startTimeNanos);
+        writeFixed64(buffer, TIME_FIELD, TimeUnit.MILLISECONDS.toNanos(summaryTimestamp));
+        writeFixed64(buffer, COUNT_FIELD, summaryCount);
+        writeDouble(buffer, SUM_VALUE_FIELD, summarySum);
+
+        writeMessageHeader(buffer, BUCKET_COUNTS_FIELD, 8 * (boundCount + 1));
+        long previous = 0;
+        for (int index = 0; index < boundCount; index++) {
+            long cumulative = Math.max((long) values[index], previous);
+            writeFixed64(buffer, cumulative - previous);
+            previous = cumulative;
+        }
+        writeFixed64(buffer, Math.max(summaryCount - previous, 0));
+
+        if (boundCount > 0) {
+            writeMessageHeader(buffer, EXPLICIT_BOUNDS_FIELD, 8 * boundCount);
+            for (int index = 0; index < boundCount; index++) {
+                writeFixed64(buffer, Double.doubleToRawLongBits(quantiles[index]));
+            }
+        }
+
+        writeVarint(buffer, AGGREGATION_TEMPORALITY_FIELD, AGGREGATION_TEMPORALITY_CUMULATIVE);
+    }
+
+    private void sortQuantiles() {
+        for (int index = 1; index < quantileCount; index++) {
+            double quantile = quantiles[index];
+            double value = values[index];
+
+            int position = index;
+            for (; position > 0 && quantiles[position - 1] > quantile; position--) {
+                quantiles[position] = quantiles[position - 1];
+                values[position] = values[position - 1];
+            }
+
+            quantiles[position] = quantile;
+            values[position] = value;
+        }
+    }
+
+    /**
+     * Wraps the metrics collected so far into a request with a single {@code ResourceMetrics} and
+     * {@code ScopeMetrics}, and sends it.
+     */
+    private void send() {
+        if (resource == null) {
+            resource = encodeResource();
+        }
+
+        int scopeMetricsLength = scope.length + request.size();
+        int resourceMetricsLength = resource.length + messageLength(scopeMetricsLength);
+
+        ExpositionBuffer body = new ExpositionBuffer(messageLength(resourceMetricsLength));
+        writeMessageHeader(body, RESOURCE_METRICS_FIELD, resourceMetricsLength);
+        body.append(resource);
+        writeMessageHeader(body, SCOPE_METRICS_FIELD, scopeMetricsLength);
+        body.append(scope);
+        body.append(request);
+
+        request.reset();
+
+        sender.send(body.array(), body.size());
+    }
+
+    /**
+     * A builder for {@link OtlpExporter} instances. Defaults to using {@code storm} as {@code
+     * service.name} and the host name as {@code host.name}, sending at most 4 MiB of metrics per
+     * request, 2 requests in flight and retrying 3 times, starting from a backoff of 500
+     * milliseconds.
+     */
+    public static class Builder {
+
+        private final URL url;
+        private String serviceName;
+        private String hostName;
+        private int maxRequestSize;
+        private int maxInFlight;
+        private int maxRetries;
+        private long retryBackoffMillis;
+
+        private Builder(URL url) {
+            this.url = url;
+            this.serviceName = "storm";
+            this.hostName = null;
+            this.maxRequestSize = 4 * 1024 * 1024;
+            this.maxInFlight = 2;
+            this.maxRetries = 3;
+            this.retryBackoffMillis = 500;
+        }
+
+        /**
+         * Use the given value as {@code service.name} resource attribute.
+         *
+         * @param serviceName the name of the service
+         * @return {@code this}
+         */
+        public OtlpExporter.Builder withServiceName(String serviceName) {
+            this.serviceName = serviceName;
+            return this;
+        }
+
+        /**
+         * Use the given value as {@code host.name} resource attribute.
+         *
+         * @param hostName the name of the host
+         * @return {@code this}
+         */
+        public OtlpExporter.Builder withHostName(String hostName) {
+            this.hostName = hostName;
+            return this;
+        }
+
+        /**
+         * Send at most the given number of bytes of metrics per request. The metrics of a group are
+         * never split, though.
+         *
+         * @param maxRequestSize a number of bytes
+         * @return {@code this}
+         */
+        public OtlpExporter.Builder maxRequestSize(int maxRequestSize) {
+            this.maxRequestSize = maxRequestSize;
+            return this;
+        }
+
+        /**
+         * Send or retry at most the given number of requests at a time, and drop further ones.
+         *
+         * @param maxInFlight a number of requests
+         * @return {@code this}
+         */
+        public OtlpExporter.Builder maxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Retry failed requests at most the given number of times.
+         *
+         * @param maxRetries a number of retries
+         * @return {@code this}
+         */
+        public OtlpExporter.Builder maxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Wait for the given time before the first retry, doubling it for every further one.
+         *
+         * @param retryBackoff an amount of time
+         * @param unit the unit of {@code retryBackoff}
+         * @return {@code this}
+         */
+        public OtlpExporter.Builder retryBackoff(long retryBackoff, TimeUnit unit) {
+            this.retryBackoffMillis = unit.toMillis(retryBackoff);
+            return this;
+        }
+
+        /**
+         * Builds an {@link OtlpExporter} with the given properties.
+         *
+         * @return an {@link OtlpExporter}
+         */
+        public OtlpExporter build() {
+            Map<String, String> resourceAttributes = new LinkedHashMap<>();
+            resourceAttributes.put("service.name", serviceName);
+            if (hostName != null) {
+                resourceAttributes.put("host.name", hostName);
+            }
+
+            return new OtlpExporter(url,
+                    resourceAttributes,
+                    hostName != null ? null : HostName.local(),
+                    maxRequestSize,
+                    maxInFlight,
+                    maxRetries,
+                    retryBackoffMillis);
+        }
+    }
+
+}
@@ -1,22 +1,34 @@
 package com.wizenoze.prometheus;
 
-import static com.wizenoze.prometheus.MetricNameAndGroupingKey.parseMetric;
-
 import com.codahale.metrics.Clock;
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Sampling;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
-import io.prometheus.client.CollectorRegistry;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,23 +46,186 @@ public class PrometheusReporter extends ScheduledReporter {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PrometheusReporter.class);
 
-    private static final String JOB_NAME = "storm";
+    private static final Part[] GAUGE_PARTS = {
+            new Part(null, SeriesKind.GAUGE)};
+    private static final Part[] EVALUATED_GAUGE_PARTS = {
+            new Part(null, SeriesKind.GAUGE),
+            new Part("evaluation_timeouts", SeriesKind.COUNTER)};
+    private static final Part[] COUNTER_PARTS = {
+            new Part("count", SeriesKind.COUNTER)};
+    private static final Part[] HISTOGRAM_PARTS = {
+            new Part("count", SeriesKind.SUMMARY_COUNT),
+            new Part("max", 1),
+            new Part("mean", SeriesKind.GAUGE),
+            new Part("min", 0),
+            new Part("stddev", SeriesKind.GAUGE),
+            new Part("p50", 0.5),
+            new Part("p75", 0.75),
+            new Part("p95", 0.95),
+            new Part("p98", 0.98),
+            new Part("p99", 0.99),
+            new Part("p999", 0.999)};
+    private static final Part[] METERED_PARTS = {
+            new Part("count", SeriesKind.COUNTER),
+            new Part("m1_rate", SeriesKind.GAUGE),
+            new Part("m5_rate", SeriesKind.GAUGE),
+            new Part("m15_rate", SeriesKind.GAUGE),
+            new Part("mean_rate", SeriesKind.GAUGE)};
+    private static final Part[] TIMER_PARTS = {
+            new Part("max", 1),
+            new Part("mean", SeriesKind.GAUGE),
+            new Part("min", 0),
+            new Part("stddev", SeriesKind.GAUGE),
+            new Part("p50", 0.5),
+            new Part("p75", 0.75),
+            new Part("p95", 0.95),
+            new Part("p98", 0.98),
+            new Part("p99", 0.99),
+            new Part("p999", 0.999),
+            new Part("count", SeriesKind.SUMMARY_COUNT),
+            new Part("m1_rate", SeriesKind.GAUGE),
+            new Part("m5_rate", SeriesKind.GAUGE),
+            new Part("m15_rate", SeriesKind.GAUGE),
+            new Part("mean_rate", SeriesKind.GAUGE)};
+
+    // Without the rates, for raw counters
+    private static final Part[] RAW_METERED_PARTS = Arrays.copyOf(METERED_PARTS, 1);
+    private static final Part[] RAW_TIMER_PARTS = Arrays.copyOf(TIMER_PARTS, 11);
+
+    // The rates of timers exported as histograms
+    private static final Part[] RATE_PARTS = Arrays.copyOfRange(METERED_PARTS, 1, 5);
+
+    // Gauges missing their deadline this often in a row get their number of timeouts reported
+    private static final int SLOW_GAUGE_TIMEOUTS = 3;
+
+    private static final int GAUGE_QUEUE_SIZE = 4096;
+
+    private static final String INTERVAL_NAME = "storm_reporter_interval_seconds";
+    private static final String INTERVAL_HELP = "Effective interval between reports";
+
+    private static final String OVERRUNS_NAME = "storm_reporter_cycle_overruns";
+    private static final String OVERRUNS_HELP = "Number of reports which ran past their deadline";
+
+    private static final String DURATION_NAME = "storm_reporter_cycle_duration_seconds";
+    private static final String DURATION_HELP = "Duration of reports";
+
+    // From 1 millisecond to 16 seconds
+    private static final HistogramBuckets DURATION_BUCKETS =
+            HistogramBuckets.exponential(0.001, 4, 8);
+    private static final Part[] DURATION_PARTS = bucketParts(DURATION_BUCKETS, new Part[0]);
 
-    private final PushGatewayWrapper pushGatewayWrapper;
+    // Labels of the worker, which the group of the interval is identified by
+    private static final String[] WORKER_LABELS = {"topology_id", "host_name", "worker_port"};
+
+    private final MetricRegistry registry;
+    private final MetricTracker tracker;
+    private final MetricsExporter exporter;
     private final Clock clock;
     private final String prefix;
+    private final boolean aggregateTasks;
+    private final Set<String> perTaskNames;
+    private final boolean deleteStaleGroups;
+    private final boolean rawCounters;
+    private final Part[] gaugeParts;
+    private final Part[] histogramParts;
+    private final Part[] meteredParts;
+    private final Part[] timerParts;
+    private final HistogramBuckets histogramBuckets;
+    private final ScheduledExecutorService executor;
+    private final AdaptiveInterval adaptiveInterval;
+    private final SeriesTable seriesTable;
+    private final GaugeEvaluator gaugeEvaluator;
+    private final long cycleDeadlineNanos;
+
+    // The first tier reports every metric which isn't selected by any of the others
+    private final Tier[] tiers;
+
+    // The slices of the first tier, the first of which is the first tier itself
+    private final Tier[] slices;
+    private int nextSlice;
+
+    // The tier being reported
+    private Tier tier;
+
+    private long cycle;
+    private long timestamp;
+    private long cycleStart;
+
+    // The cumulative counts of the buckets of the histogram being collected
+    private final long[] bucketCounts;
+
+    private Series[] intervalSeries;
+    private int pushes;
+    private int failures;
+
+    // Reports which ran past their deadline, and the durations of all reports
+    private long overruns;
+    private final Histogram cycleDurations =
+            new Histogram(new BucketReservoir(DURATION_BUCKETS, TimeUnit.SECONDS));
+    private Series[] overrunSeries;
+    private Series[] durationSeries;
 
     private PrometheusReporter(MetricRegistry registry,
-            PushGatewayWrapper pushGatewayWrapper,
+            MetricsExporter exporter,
             Clock clock,
             String prefix,
             TimeUnit rateUnit,
             TimeUnit durationUnit,
-            MetricFilter filter) {
-        super(registry, "prometheus-reporter", filter, rateUnit, durationUnit);
-        this.pushGatewayWrapper = pushGatewayWrapper;
+            MetricFilter filter,
+            NameTemplates nameTemplates,
+            NameFallback nameFallback,
+            boolean aggregateTasks,
+            Set<String> perTaskNames,
+            boolean deleteStaleGroups,
+            boolean rawCounters,
+            HistogramBuckets histogramBuckets,
+            List<ReportTier> reportTiers,
+            int sliceCount,
+            SeriesTable seriesTable,
+            GaugeEvaluator gaugeEvaluator,
+            long cycleDeadlineNanos,
+            ScheduledExecutorService executor,
+            AdaptiveInterval adaptiveInterval) {
+        super(registry, "prometheus-reporter", filter, rateUnit, durationUnit, executor);
+        this.registry = registry;
+        this.tracker = new MetricTracker(filter, nameTemplates, nameFallback);
+        this.exporter = exporter;
         this.clock = clock;
         this.prefix = prefix;
+        this.aggregateTasks = aggregateTasks;
+        this.perTaskNames = perTaskNames;
+        this.deleteStaleGroups = deleteStaleGroups;
+        this.rawCounters = rawCounters;
+        this.meteredParts = rawCounters ? RAW_METERED_PARTS : METERED_PARTS;
+        this.histogramBuckets = histogramBuckets;
+        if (histogramBuckets != null) {
+            this.histogramParts = bucketParts(histogramBuckets, new Part[0]);
+            this.timerParts = bucketParts(histogramBuckets, rawCounters ? new Part[0] : RATE_PARTS);
+            this.bucketCounts = new long[histogramBuckets.size() + 1];
+        } else {
+            this.histogramParts = HISTOGRAM_PARTS;
+            this.timerParts = rawCounters ? RAW_TIMER_PARTS : TIMER_PARTS;
+            this.bucketCounts = null;
+        }
+        this.executor = executor;
+        this.adaptiveInterval = adaptiveInterval;
+        this.seriesTable = seriesTable;
+        this.gaugeEvaluator = gaugeEvaluator;
+        this.cycleDeadlineNanos = cycleDeadlineNanos;
+        this.gaugeParts = gaugeEvaluator != null ? EVALUATED_GAUGE_PARTS : GAUGE_PARTS;
+
+        slices = new Tier[sliceCount];
+        for (int index = 0; index < sliceCount; index++) {
+            slices[index] = new Tier(null);
+        }
+
+        tiers = new Tier[reportTiers.size() + 1];
+        tiers[0] = slices[0];
+        for (int index = 0; index < reportTiers.size(); index++) {
+            tiers[index + 1] = new Tier(reportTiers.get(index));
+        }
+
+        registry.addListener(tracker);
     }
 
     /**
@@ -63,6 +238,23 @@ public class PrometheusReporter extends ScheduledReporter {
         return new PrometheusReporter.Builder(registry);
     }
 
+    /**
+     * Returns the parts of a histogram exported as such: its count, sum and buckets, followed by
+     * the given parts.
+     */
+    private static Part[] bucketParts(HistogramBuckets buckets, Part[] otherParts) {
+        Part[] parts = new Part[3 + buckets.size() + otherParts.length];
+        parts[0] = new Part("count", SeriesKind.HISTOGRAM_COUNT);
+        parts[1] = new Part("sum", SeriesKind.HISTOGRAM_SUM);
+        for (int index = 0; index < buckets.size(); index++) {
+            parts[2 + index] = Part.bucket(buckets.getBound(index));
+        }
+        parts[2 + buckets.size()] = Part.bucket(Double.POSITIVE_INFINITY);
+        System.arraycopy(otherParts, 0, parts, 3 + buckets.size(), otherParts.length);
+
+        return parts;
+    }
+
     private static void append(StringBuilder builder, String part) {
         if (part != null && !part.isEmpty()) {
             if (builder.length() > 0) {
@@ -72,143 +264,869 @@ public class PrometheusReporter extends ScheduledReporter {
         }
     }
 
-    @Override
-    public void report(SortedMap<String, Gauge> gauges,
-            SortedMap<String, Counter> counters,
-            SortedMap<String, Histogram> histograms,
-            SortedMap<String, Meter> meters,
-            SortedMap<String, Timer> timers) {
+    /**
+     * Starts the reporter. If the report interval is adaptive, the given period is its nominal
+     * value, and every report is scheduled once the previous one has completed. If the first tier
+     * is sliced, one of its slices is reported every period divided by the number of slices.
+     * Additional tiers are reported at their own periods, by the same thread, which starts off
+     * with {@link #warmUp() warming up}.
+     *
+     * Unlike reports at a fixed rate, reports which are due while another one is still running
+     * are skipped, instead of being run back to back once it has completed.
+     */
+    @Override
+    public void start(long period, TimeUnit unit) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    warmUp();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Unable to warm up", e);
+                }
+            }
+        });
+
+        if (adaptiveInterval == null) {
+            long sliceNanos = Math.max(unit.toNanos(period) / slices.length, 1);
+            new Ticker(0, sliceNanos).schedule();
+        } else {
+            adaptiveInterval.setNominalMillis(unit.toMillis(period));
+            scheduleReport();
+        }
+
+        for (int index = 1; index < tiers.length; index++) {
+            long periodMillis = tiers[index].selector.getPeriodMillis();
+            new Ticker(index, TimeUnit.MILLISECONDS.toNanos(periodMillis)).schedule();
+        }
+    }
+
+    /**
+     * Reports the metrics tracked since the reporter had been created, instead of querying the
+     * registry for all of its metrics. If there are additional tiers, only the metrics not
+     * selected by any of them are reported, and if the first tier is sliced, only those of its
+     * next slice.
+     */
+    @Override
+    public void report() {
+        reportTier(0);
+    }
+
+    /**
+     * Reports the given metrics, those of every tier.
+     */
+    @Override
+    public synchronized void report(SortedMap<String, Gauge> gauges,
+            SortedMap<String, Counter> counters,
+            SortedMap<String, Histogram> histograms,
+            SortedMap<String, Meter> meters,
+            SortedMap<String, Timer> timers) {
+
+        List<TrackedMetric<Gauge>> trackedGauges = tracker.track(gauges);
+        List<TrackedMetric<Counter>> trackedCounters = tracker.track(counters);
+        List<TrackedMetric<Histogram>> trackedHistograms = tracker.track(histograms);
+        List<TrackedMetric<Meter>> trackedMeters = tracker.track(meters);
+        List<TrackedMetric<Timer>> trackedTimers = tracker.track(timers);
+
+        for (Tier slice : slices) {
+            report(slice, trackedGauges, trackedCounters, trackedHistograms, trackedMeters,
+                    trackedTimers);
+        }
+
+        for (int index = 1; index < tiers.length; index++) {
+            report(tiers[index], trackedGauges, trackedCounters, trackedHistograms, trackedMeters,
+                    trackedTimers);
+        }
+    }
+
+    /**
+     * Reports the tracked metrics of the given tier, the first one being the tier of the metrics
+     * not selected by any additional tier, of which the next slice is reported.
+     */
+    synchronized void reportTier(int index) {
+        if (index == 0) {
+            Tier slice = slices[nextSlice];
+            nextSlice = (nextSlice + 1) % slices.length;
+            reportTracked(slice);
+        } else {
+            reportTracked(tiers[index]);
+        }
+    }
+
+    private void reportTracked(Tier tier) {
+        report(tier,
+                tracker.getGauges(),
+                tracker.getCounters(),
+                tracker.getHistograms(),
+                tracker.getMeters(),
+                tracker.getTimers());
+    }
+
+    /**
+     * Looks up (and encodes) the series of the metrics tracked so far, so that the first report
+     * after starting doesn't take much longer than the next ones. Aggregated metrics are left to
+     * the first report, as their aggregates don't exist before.
+     */
+    synchronized void warmUp() {
+        for (Tier slice : slices) {
+            warmUp(slice);
+        }
+
+        for (int index = 1; index < tiers.length; index++) {
+            warmUp(tiers[index]);
+        }
+    }
+
+    private void warmUp(Tier tier) {
+        this.tier = tier;
+
+        for (TrackedMetric<Gauge> gauge : tracker.getGauges()) {
+            if (isInTier(gauge, ReportTier.MetricType.GAUGE)) {
+                getSeries(gauge, gaugeParts);
+            }
+        }
+
+        warmUp(tracker.getCounters(), ReportTier.MetricType.COUNTER, COUNTER_PARTS);
+        warmUp(tracker.getHistograms(), ReportTier.MetricType.HISTOGRAM, histogramParts);
+        warmUp(tracker.getMeters(), ReportTier.MetricType.METER, meteredParts);
+        warmUp(tracker.getTimers(), ReportTier.MetricType.TIMER, timerParts);
+    }
+
+    private <T extends Metric> void warmUp(Collection<TrackedMetric<T>> metrics,
+            ReportTier.MetricType type, Part[] parts) {
+
+        for (TrackedMetric<T> metric : metrics) {
+            if (isInTier(metric, type) && !isAggregated(metric)) {
+                getSeries(metric, parts);
+            }
+        }
+    }
+
+    /**
+     * Stops the reporter and, if stale groups are deleted, pushes the current values one last time
+     * before deleting all the groups pushed by this reporter. Then closes the exporter.
+     */
+    @Override
+    public void stop() {
+        registry.removeListener(tracker);
+        super.stop();
+
+        if (deleteStaleGroups) {
+            synchronized (this) {
+                for (Tier slice : slices) {
+                    reportTracked(slice);
+                }
+
+                for (int index = 1; index < tiers.length; index++) {
+                    reportTracked(tiers[index]);
+                }
+
+                for (Tier slice : slices) {
+                    deleteGroups(slice);
+                }
+
+                for (int index = 1; index < tiers.length; index++) {
+                    deleteGroups(tiers[index]);
+                }
+            }
+        }
+
+        if (gaugeEvaluator != null) {
+            gaugeEvaluator.close();
+        }
+
+        try {
+            exporter.close();
+        } catch (IOException e) {
+            LOGGER.error("Unable to close exporter", e);
+        }
+    }
+
+    private void report(Tier tier,
+            Collection<TrackedMetric<Gauge>> gauges,
+            Collection<TrackedMetric<Counter>> counters,
+            Collection<TrackedMetric<Histogram>> histograms,
+            Collection<TrackedMetric<Meter>> meters,
+            Collection<TrackedMetric<Timer>> timers) {
+
+        this.tier = tier;
+        cycle++;
+        timestamp = clock.getTime();
+        cycleStart = clock.getTick();
+
+        Aggregates counterAggregates = tier.counterAggregates;
+        Aggregates histogramAggregates = tier.histogramAggregates;
+        Aggregates meterAggregates = tier.meterAggregates;
+        Aggregates timerAggregates = tier.timerAggregates;
+
+        if (gaugeEvaluator != null) {
+            long deadline = gaugeEvaluator.deadline();
+            for (TrackedMetric<Gauge> gauge : gauges) {
+                if (isInTier(gauge, ReportTier.MetricType.GAUGE)) {
+                    gaugeEvaluator.submit(getEvaluation(gauge), deadline);
+                }
+            }
+        }
+
+        for (TrackedMetric<Gauge> gauge : gauges) {
+            if (!isInTier(gauge, ReportTier.MetricType.GAUGE)) {
+                continue;
+            }
+
+            Series[] series = getSeries(gauge, gaugeParts);
+            if (gaugeEvaluator != null) {
+                collectEvaluatedGauge(series, gauge.getOriginalName(), gauge.getEvaluation());
+            } else {
+                collectGauge(series, gauge.getOriginalName(), gauge.getMetric());
+            }
+        }
+
+        for (TrackedMetric<Counter> counter : counters) {
+            if (!isInTier(counter, ReportTier.MetricType.COUNTER)) {
+                continue;
+            }
+
+            if (!aggregate(counter, counterAggregates)) {
+                collectCounter(getSeries(counter, COUNTER_PARTS), counter.getOriginalName(),
+                        counter.getMetric());
+            }
+        }
+
+        counterAggregates.removeEmpty();
+        for (int index = 0; index < counterAggregates.size(); index++) {
+            AggregatedMetric aggregate = counterAggregates.get(index);
+            collectCounter(getSeries(aggregate, COUNTER_PARTS), aggregate.getKey().getName(),
+                    aggregate);
+        }
+
+        for (TrackedMetric<Histogram> histogram : histograms) {
+            if (!isInTier(histogram, ReportTier.MetricType.HISTOGRAM)) {
+                continue;
+            }
+
+            if (!aggregate(histogram, histogramAggregates)) {
+                collectHistogram(getSeries(histogram, histogramParts),
+                        histogram.getOriginalName(), histogram.getMetric());
+            }
+        }
+
+        histogramAggregates.removeEmpty();
+        for (int index = 0; index < histogramAggregates.size(); index++) {
+            AggregatedMetric aggregate = histogramAggregates.get(index);
+            collectHistogram(getSeries(aggregate, histogramParts),
+                    aggregate.getKey().getName(), aggregate);
+        }
+
+        for (TrackedMetric<Meter> meter : meters) {
+            if (!isInTier(meter, ReportTier.MetricType.METER)) {
+                continue;
+            }
+
+            if (!aggregate(meter, meterAggregates)) {
+                collectMetered(getSeries(meter, meteredParts), meter.getOriginalName(),
+                        meter.getMetric());
+            }
+        }
+
+        meterAggregates.removeEmpty();
+        for (int index = 0; index < meterAggregates.size(); index++) {
+            AggregatedMetric aggregate = meterAggregates.get(index);
+            collectMetered(getSeries(aggregate, meteredParts), aggregate.getKey().getName(),
+                    aggregate);
+        }
+
+        for (TrackedMetric<Timer> timer : timers) {
+            if (!isInTier(timer, ReportTier.MetricType.TIMER)) {
+                continue;
+            }
+
+            if (!aggregate(timer, timerAggregates)) {
+                collectTimer(getSeries(timer, timerParts), timer.getOriginalName(),
+                        timer.getMetric());
+            }
+        }
+
+        timerAggregates.removeEmpty();
+        for (int index = 0; index < timerAggregates.size(); index++) {
+            AggregatedMetric aggregate = timerAggregates.get(index);
+            collectTimer(getSeries(aggregate, timerParts), aggregate.getKey().getName(),
+                    aggregate);
+        }
+
+        counterAggregates.reset();
+        histogramAggregates.reset();
+        meterAggregates.reset();
+        timerAggregates.reset();
+
+        // The interval applies to (the slices of) the first tier only
+        boolean adaptive = adaptiveInterval != null && tier.selector == null;
+        if (tier.selector == null) {
+            collectReporterMetrics();
+        }
+
+        long start = clock.getTick();
+        pushGroups();
+
+        if (adaptive) {
+            adaptiveInterval.update(clock.getTick() - start, pushes, failures);
+        }
+
+        removeStaleGroups();
+
+        if (cycleDeadlineNanos > 0) {
+            long duration = clock.getTick() - cycleStart;
+            cycleDurations.update(duration);
+            if (duration > cycleDeadlineNanos) {
+                overruns++;
+            }
+        }
+    }
+
+    /**
+     * Returns {@code true} if the given metric belongs to the tier (or slice) being reported. The
+     * tier and slice of a metric are looked up only the first time it's reported.
+     */
+    private boolean isInTier(TrackedMetric<?> metric, ReportTier.MetricType type) {
+        if (tiers.length == 1) {
+            return slices.length == 1 || slices[getSlice(metric)] == tier;
+        }
+
+        int index = metric.getTier();
+        if (index < 0) {
+            index = 0;
+            for (int other = 1; other < tiers.length; other++) {
+                if (tiers[other].selector.matches(type, metric.getKey())) {
+                    index = other;
+                    break;
+                }
+            }
+
+            metric.setTier(index);
+        }
+
+        if (index == 0 && slices.length > 1) {
+            return slices[getSlice(metric)] == tier;
+        }
+
+        return tiers[index] == tier;
+    }
+
+    /**
+     * Returns the slice of the first tier the given metric belongs to, which is derived from its
+     * grouping key, so that a group is always pushed as a whole. If tasks are aggregated, the
+     * grouping key of the aggregate is used instead, so that all tasks of a component (and
+     * stream) are added to their aggregates in the same report.
+     */
+    private int getSlice(TrackedMetric<?> metric) {
+        int slice = metric.getSlice();
+        if (slice < 0) {
+            MetricNameAndGroupingKey key = aggregateTasks && metric.getAggregateKey() != null
+                    ? metric.getAggregateKey() : metric.getKey();
+            slice = (key.getGroupingKey().hashCode() & Integer.MAX_VALUE) % slices.length;
+            metric.setSlice(slice);
+        }
+
+        return slice;
+    }
+
+    private void scheduleReport() {
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        report();
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Unable to report", e);
+                    }
+
+                    scheduleReport();
+                }
+            }, Math.max(adaptiveInterval.getMillis() / slices.length, 1), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The reporter has been stopped
+            LOGGER.debug("Reporter stopped", e);
+        }
+    }
+
+    /**
+     * Reports the metrics of the reporter itself, i.e. the current interval between reports if
+     * it's adaptive, and the overruns and durations of reports if they've got a deadline.
+     */
+    private void collectReporterMetrics() {
+        if (adaptiveInterval != null) {
+            if (intervalSeries == null || intervalSeries[0].isRemoved()) {
+                intervalSeries = lookupReporterSeries(INTERVAL_NAME, INTERVAL_HELP, GAUGE_PARTS);
+            }
+
+            if (intervalSeries != null) {
+                registerGauge(intervalSeries[0], INTERVAL_HELP,
+                        adaptiveInterval.getMillis() / 1000.0);
+            }
+        }
+
+        if (cycleDeadlineNanos > 0) {
+            if (overrunSeries == null || overrunSeries[0].isRemoved()) {
+                overrunSeries = lookupReporterSeries(OVERRUNS_NAME, OVERRUNS_HELP, COUNTER_PARTS);
+                durationSeries = lookupReporterSeries(DURATION_NAME, DURATION_HELP,
+                        DURATION_PARTS);
+            }
+
+            if (overrunSeries != null) {
+                registerGauge(overrunSeries[0], OVERRUNS_HELP, overruns);
+                collectDurations(durationSeries);
+            }
+        }
+    }
+
+    /**
+     * Returns the series of a metric of the reporter in a group of its own, which is identified
+     * by the worker labels of the metrics reported so far, or {@code null} if there are none.
+     */
+    private Series[] lookupReporterSeries(String name, String help, Part[] parts) {
+        if (tier.groupList.isEmpty()) {
+            return null;
+        }
+
+        Map<String, String> metricGroupingKey = tier.groupList.get(0).getGroupingKey();
+        Map<String, String> groupingKey = new LinkedHashMap<>();
+        for (String label : WORKER_LABELS) {
+            if (metricGroupingKey.containsKey(label)) {
+                groupingKey.put(label, metricGroupingKey.get(label));
+            }
+        }
+
+        return lookupSeries(groupingKey, name, help, parts);
+    }
+
+    /**
+     * Writes the count, sum (in seconds) and cumulative bucket counts of the durations of
+     * reports.
+     */
+    private void collectDurations(Series[] series) {
+        BucketSnapshot snapshot = (BucketSnapshot) cycleDurations.getSnapshot();
+        double nanosPerSecond = TimeUnit.SECONDS.toNanos(1);
+
+        registerGauge(series[0], DURATION_HELP, snapshot.getCount());
+        registerGauge(series[1], DURATION_HELP, snapshot.getSum() / nanosPerSecond);
+        for (int index = 0; index < DURATION_BUCKETS.size(); index++) {
+            double bound = DURATION_BUCKETS.getBound(index) * nanosPerSecond;
+            registerGauge(series[2 + index], DURATION_HELP,
+                    snapshot.getCumulativeCount(bound));
+        }
+        registerGauge(series[2 + DURATION_BUCKETS.size()], DURATION_HELP, snapshot.getCount());
+    }
+
+    /**
+     * Returns the series of the given metric, looking them up only the first time it's reported,
+     * or when its group had been removed in the meantime.
+     */
+    private Series[] getSeries(TrackedMetric<?> metric, Part[] parts) {
+        Series[] series = metric.getSeries();
+        if (series == null || series[0].isRemoved()) {
+            series = lookupSeries(metric.getKey(), metric.getOriginalName(), parts);
+            metric.setSeries(series);
+        }
+
+        return series;
+    }
+
+    private Series[] getSeries(AggregatedMetric aggregate, Part[] parts) {
+        Series[] series = aggregate.getSeries();
+        if (series == null || series[0].isRemoved()) {
+            MetricNameAndGroupingKey key = aggregate.getKey();
+            series = lookupSeries(key, key.getName(), parts);
+            aggregate.setSeries(series);
+        }
+
+        return series;
+    }
+
+    private Series[] lookupSeries(MetricNameAndGroupingKey metric, String help, Part[] parts) {
+        return lookupSeries(metric.getGroupingKey(), metric.getName(), help, parts);
+    }
+
+    private Series[] lookupSeries(Map<String, String> groupingKey, String name, String help,
+            Part[] parts) {
+
+        SeriesGroup group = getGroup(groupingKey);
+        String metricName = prefix(name);
+
+        Series[] series = new Series[parts.length];
+        for (int index = 0; index < parts.length; index++) {
+            Part part = parts[index];
+            series[index] = group.getSeries(new SeriesDescriptor(prefix(name, part.suffix),
+                    metricName, help, part.kind, part.quantile, part.upperBound, groupingKey));
+        }
+
+        return series;
+    }
+
+    /**
+     * Returns the group collecting the metrics of the given grouping key in the tier being
+     * reported, so that they're pushed in a single request.
+     */
+    private SeriesGroup getGroup(Map<String, String> groupingKey) {
+        SeriesGroup group = tier.groups.get(groupingKey);
+        if (group == null) {
+            group = new SeriesGroup(groupingKey, exporter, seriesTable);
+            tier.groups.put(groupingKey, group);
+            tier.groupList.add(group);
+        }
+
+        return group;
+    }
+
+    /**
+     * Pushes the groups reported in this cycle, starting with those which were left over by the
+     * previous cycle of the tier. Once the deadline of the cycle has passed, no further pushes are
+     * started, and the remaining groups are carried over to the next cycle. At least one group is
+     * pushed though, so that groups keep being pushed in turn even if collecting them alone takes
+     * longer than the deadline.
+     */
+    private void pushGroups() {
+        pushes = 0;
+        failures = 0;
+
+        List<SeriesGroup> groupList = tier.groupList;
+        int size = groupList.size();
+        int first = tier.leftOver != null ? Math.max(groupList.indexOf(tier.leftOver), 0) : 0;
+        tier.leftOver = null;
+
+        for (int offset = 0; offset < size; offset++) {
+            SeriesGroup group = groupList.get((first + offset) % size);
+            if (!group.isReportedIn(cycle)) {
+                continue;
+            }
+
+            if (cycleDeadlineNanos > 0 && pushes > 0
+                    && clock.getTick() - cycleStart > cycleDeadlineNanos) {
+                LOGGER.warn("Report deadline passed, carrying the remaining groups over to the"
+                        + " next report.");
+                tier.leftOver = group;
+                break;
+            }
+
+            pushMetrics(group.getBuffer(), group.getGroupingKey());
+        }
+
+        try {
+            exporter.flush();
+        } catch (IOException e) {
+            failures++;
+            LOGGER.error("Unable to push to Prometheus", e);
+        }
+    }
+
+    /**
+     * Removes the groups which were pushed in the previous cycle of the tier, but whose metrics
+     * have all been removed since then, e.g. because their tasks were rebalanced to another
+     * worker. They're deleted from the gateway as well, if stale groups are deleted and no other
+     * tier still reports metrics of the same groups, as the gateway deletes groups as a whole.
+     */
+    private void removeStaleGroups() {
+        List<SeriesGroup> groupList = tier.groupList;
+
+        int size = 0;
+        for (int index = 0; index < groupList.size(); index++) {
+            SeriesGroup group = groupList.get(index);
+            if (group.isReportedIn(cycle)) {
+                groupList.set(size++, group);
+                continue;
+            }
+
+            tier.groups.remove(group.getGroupingKey());
+            group.remove();
+
+            if (deleteStaleGroups && !isInOtherTier(group.getGroupingKey())) {
+                deleteGroup(group);
+            }
+        }
+
+        while (groupList.size() > size) {
+            groupList.remove(groupList.size() - 1);
+        }
+    }
+
+    private boolean isInOtherTier(Map<String, String> groupingKey) {
+        for (Tier other : slices) {
+            if (other != tier && other.groups.containsKey(groupingKey)) {
+                return true;
+            }
+        }
+
+        for (Tier other : tiers) {
+            if (other != tier && other.groups.containsKey(groupingKey)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void deleteGroups(Tier tier) {
+        for (SeriesGroup group : tier.groupList) {
+            deleteGroup(group);
+            group.remove();
+        }
+
+        tier.groupList.clear();
+        tier.groups.clear();
+    }
+
+    private void deleteGroup(SeriesGroup group) {
+        try {
+            exporter.delete(group.getGroupingKey());
+        } catch (IOException e) {
+            LOGGER.error("Unable to delete from Prometheus", e);
+        }
+    }
+
+    /**
+     * Adds the given metric to the aggregate of its component (and stream), if task aggregation is
+     * enabled and the metric isn't kept per task.
+     *
+     * @return {@code true} if the metric was aggregated, {@code false} if it should be pushed as
+     * is
+     */
+    private boolean aggregate(TrackedMetric<?> metric, Aggregates aggregates) {
+        if (!aggregateTasks) {
+            return false;
+        }
+
+        AggregatedMetric aggregate = metric.getAggregate();
+        if (aggregate == null || aggregate.isRemoved()) {
+            if (!isAggregated(metric)) {
+                return false;
+            }
+
+            aggregate = aggregates.get(metric.getAggregateKey());
+            metric.setAggregate(aggregate);
+        }
+
+        aggregate.add(metric.getMetric());
+
+        return true;
+    }
+
+    /**
+     * Returns {@code true} if the given metric is added to the aggregate of its component (and
+     * stream) instead of being pushed as is.
+     */
+    private boolean isAggregated(TrackedMetric<?> metric) {
+        MetricNameAndGroupingKey aggregateKey = metric.getAggregateKey();
+        return aggregateTasks && aggregateKey != null
+                && !perTaskNames.contains(aggregateKey.getName());
+    }
 
-        CollectorRegistry registry = new CollectorRegistry();
+    private void collectGauge(Series[] series, String help, Gauge gauge) {
+        registerGauge(series[0], help, gauge.getValue());
+    }
 
-        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
-            pushGauge(entry.getKey(), entry.getValue());
-        }
+    /**
+     * Collects a gauge evaluated on the pool, or its last value if it missed its deadline. Gauges
+     * which have missed it several times in a row get their number of timeouts reported as well,
+     * from then on.
+     */
+    private void collectEvaluatedGauge(Series[] series, String help,
+            GaugeEvaluator.Evaluation evaluation) {
 
-        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
-            pushCounter(entry.getKey(), entry.getValue());
+        boolean evaluated;
+        try {
+            evaluated = evaluation.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            evaluated = false;
         }
 
-        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
-            pushHistogram(entry.getKey(), entry.getValue());
+        if (evaluated) {
+            Object value = evaluation.getValue();
+            if (value != null) {
+                registerGauge(series[0], help, value);
+            }
+        } else if (series[0].hasValue()) {
+            registerGauge(series[0], help, series[0].getLastValue());
         }
 
-        for (Map.Entry<String, Meter> entry : meters.entrySet()) {
-            pushMetered(entry.getKey(), entry.getValue());
+        // Once reported, the count keeps being reported, so that it doesn't come and go
+        if (evaluation.getConsecutiveTimeouts() >= SLOW_GAUGE_TIMEOUTS || series[1].hasValue()) {
+            registerGauge(series[1], help, evaluation.getTimeouts());
         }
+    }
 
-        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
-            pushTimer(entry.getKey(), entry.getValue());
+    private static GaugeEvaluator.Evaluation getEvaluation(TrackedMetric<Gauge> gauge) {
+        GaugeEvaluator.Evaluation evaluation = gauge.getEvaluation();
+        if (evaluation == null) {
+            evaluation = new GaugeEvaluator.Evaluation(gauge.getMetric(), gauge.getOriginalName());
+            gauge.setEvaluation(evaluation);
         }
-    }
 
-    private void pushGauge(String originalName, Gauge gauge) {
-        MetricNameAndGroupingKey metric = parseMetric(originalName);
-        CollectorRegistry registry = new CollectorRegistry();
-        registerGauge(registry, prefix(metric.getName()), originalName, gauge.getValue());
-        pushMetrics(registry, metric.getGroupingKey());
+        return evaluation;
     }
 
-    private void pushCounter(String originalName, Counter counter) {
-        MetricNameAndGroupingKey metric = parseMetric(originalName);
-        CollectorRegistry registry = new CollectorRegistry();
-        registerGauge(registry, prefix(metric.getName(), "count"), originalName,
-                counter.getCount());
-        pushMetrics(registry, metric.getGroupingKey());
+    private void collectCounter(Series[] series, String help, Counting counter) {
+        registerGauge(series[0], help, counter.getCount());
     }
 
-    private void pushHistogram(String originalName, Histogram histogram) {
-        MetricNameAndGroupingKey metric = parseMetric(originalName);
+    private <H extends Counting & Sampling> void collectHistogram(Series[] series, String help,
+            H histogram) {
 
-        CollectorRegistry registry = new CollectorRegistry();
-        String name = metric.getName();
+        if (histogramBuckets != null) {
+            collectBuckets(series, help, histogram, 1.0);
+            return;
+        }
 
-        registerGauge(registry, prefix(name, "count"), originalName, histogram.getCount());
+        registerGauge(series[0], help, histogram.getCount());
 
         Snapshot snapshot = histogram.getSnapshot();
-        registerGauge(registry, prefix(name, "max"), originalName, snapshot.getMax());
-        registerGauge(registry, prefix(name, "mean"), originalName, snapshot.getMean());
-        registerGauge(registry, prefix(name, "min"), originalName, snapshot.getMin());
-        registerGauge(registry, prefix(name, "stddev"), originalName, snapshot.getStdDev());
-        registerGauge(registry, prefix(name, "p50"), originalName, snapshot.getMedian());
-        registerGauge(registry, prefix(name, "p75"), originalName, snapshot.get75thPercentile());
-        registerGauge(registry, prefix(name, "p95"), originalName, snapshot.get95thPercentile());
-        registerGauge(registry, prefix(name, "p98"), originalName, snapshot.get98thPercentile());
-        registerGauge(registry, prefix(name, "p99"), originalName, snapshot.get99thPercentile());
-        registerGauge(registry, prefix(name, "p999"), originalName, snapshot.get999thPercentile());
+        registerGauge(series[1], help, snapshot.getMax());
+        registerGauge(series[2], help, snapshot.getMean());
+        registerGauge(series[3], help, snapshot.getMin());
+        registerGauge(series[4], help, snapshot.getStdDev());
+        registerGauge(series[5], help, snapshot.getMedian());
+        registerGauge(series[6], help, snapshot.get75thPercentile());
+        registerGauge(series[7], help, snapshot.get95thPercentile());
+        registerGauge(series[8], help, snapshot.get98thPercentile());
+        registerGauge(series[9], help, snapshot.get99thPercentile());
+        registerGauge(series[10], help, snapshot.get999thPercentile());
+    }
 
-        pushMetrics(registry, metric.getGroupingKey());
+    private void collectMetered(Series[] series, String help, Metered meter) {
+        doRegisterMetered(series, 0, help, meter);
     }
 
-    private void pushMetered(String originalName, Metered meter) {
-        MetricNameAndGroupingKey metric = parseMetric(originalName);
+    private <T extends Metered & Sampling> void collectTimer(Series[] series, String help,
+            T timer) {
+
+        if (histogramBuckets != null) {
+            collectBuckets(series, help, timer, convertDuration(1.0));
+            if (!rawCounters) {
+                registerRates(series, histogramBuckets.size() + 3, help, timer);
+            }
+            return;
+        }
 
-        CollectorRegistry registry = new CollectorRegistry();
-        String name = metric.getName();
+        Snapshot snapshot = timer.getSnapshot();
 
-        doRegisterMetered(registry, name, originalName, meter);
+        registerGauge(series[0], help, convertDuration(snapshot.getMax()));
+        registerGauge(series[1], help, convertDuration(snapshot.getMean()));
+        registerGauge(series[2], help, convertDuration(snapshot.getMin()));
+        registerGauge(series[3], help, convertDuration(snapshot.getStdDev()));
+        registerGauge(series[4], help, convertDuration(snapshot.getMedian()));
+        registerGauge(series[5], help, convertDuration(snapshot.get75thPercentile()));
+        registerGauge(series[6], help, convertDuration(snapshot.get95thPercentile()));
+        registerGauge(series[7], help, convertDuration(snapshot.get98thPercentile()));
+        registerGauge(series[8], help, convertDuration(snapshot.get99thPercentile()));
+        registerGauge(series[9], help, convertDuration(snapshot.get999thPercentile()));
 
-        pushMetrics(registry, metric.getGroupingKey());
+        doRegisterMetered(series, 10, help, timer);
     }
 
-    private void pushTimer(String originalName, Timer timer) {
-        MetricNameAndGroupingKey metric = parseMetric(originalName);
+    private void doRegisterMetered(Series[] series, int offset, String help, Metered meter) {
+        registerGauge(series[offset], help, meter.getCount());
 
-        CollectorRegistry registry = new CollectorRegistry();
-        String name = metric.getName();
-        Snapshot snapshot = timer.getSnapshot();
+        // Rates are left to the server, the moving averages aren't even read
+        if (rawCounters) {
+            return;
+        }
+
+        registerRates(series, offset + 1, help, meter);
+    }
+
+    private void registerRates(Series[] series, int offset, String help, Metered meter) {
+        registerGauge(series[offset], help, convertRate(meter.getOneMinuteRate()));
+        registerGauge(series[offset + 1], help, convertRate(meter.getFiveMinuteRate()));
+        registerGauge(series[offset + 2], help, convertRate(meter.getFifteenMinuteRate()));
+        registerGauge(series[offset + 3], help, convertRate(meter.getMeanRate()));
+    }
+
+    /**
+     * Writes the count, sum and cumulative bucket counts of a histogram exported as such. The
+     * counts of a {@link BucketSnapshot} are exact, whereas those of other snapshots are
+     * estimated from their sampled values, scaled up to the count of the histogram, and their sum
+     * from their mean. As estimates may go down while the count goes up, which {@code rate()}
+     * would take for a reset, they're kept from going below their previous values then.
+     *
+     * @param factor the factor converting values to the unit of the bounds, e.g. nanoseconds to
+     * the duration unit
+     */
+    private <H extends Counting & Sampling> void collectBuckets(Series[] series, String help,
+            H histogram, double factor) {
+
+        long count = histogram.getCount();
+        Snapshot snapshot = histogram.getSnapshot();
+        int buckets = histogramBuckets.size();
+
+        double sum;
+        if (snapshot instanceof BucketSnapshot) {
+            BucketSnapshot bucketSnapshot = (BucketSnapshot) snapshot;
+            for (int index = 0; index < buckets; index++) {
+                double bound = histogramBuckets.getBound(index) / factor;
+                bucketCounts[index] = bucketSnapshot.getCumulativeCount(bound);
+            }
+            sum = bucketSnapshot.getSum() * factor;
+        } else {
+            long[] values = snapshot.getValues();
+            Arrays.fill(bucketCounts, 0);
+            for (long value : values) {
+                bucketCounts[bucketOf(value * factor)]++;
+            }
+
+            long cumulative = 0;
+            for (int index = 0; index < buckets; index++) {
+                cumulative += bucketCounts[index];
+                bucketCounts[index] = values.length > 0
+                        ? Math.round((double) cumulative * count / values.length) : 0;
+            }
+            sum = snapshot.getMean() * factor * count;
+        }
+
+        // Unless the count went down too, i.e. was actually reset
+        boolean monotonic = !(snapshot instanceof BucketSnapshot) && series[0].hasValue()
+                && count >= series[0].getLastValue();
+
+        registerGauge(series[0], help, count);
+        registerGauge(series[1], help, monotonic ? Math.max(sum, series[1].getLastValue()) : sum);
+        for (int index = 0; index < buckets; index++) {
+            // Values may have been added between reading the count and the buckets
+            double bucketCount = Math.min(bucketCounts[index], count);
+            if (monotonic) {
+                bucketCount = Math.max(bucketCount, series[2 + index].getLastValue());
+            }
+            registerGauge(series[2 + index], help, bucketCount);
+        }
+        registerGauge(series[2 + buckets], help, count);
+    }
+
+    /**
+     * Returns the index of the first bucket whose upper bound is at least the given value.
+     */
+    private int bucketOf(double value) {
+        int low = 0;
+        int high = histogramBuckets.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (histogramBuckets.getBound(middle) < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    private void registerGauge(Series series, String help, double value) {
+        if (!series.write(cycle, value, timestamp) && series.warnConflict()) {
+            // Two metrics of the same group yield the same name, e.g. a counter and a meter
+            LOGGER.warn("Metric {} won't be reported: {} has already been reported in its group.",
+                    help, series.getName());
+        }
+    }
 
-        registerGauge(registry, prefix(name, "max"), originalName,
-                convertDuration(snapshot.getMax()));
-        registerGauge(registry, prefix(name, "mean"), originalName,
-                convertDuration(snapshot.getMean()));
-        registerGauge(registry, prefix(name, "min"), originalName,
-                convertDuration(snapshot.getMin()));
-        registerGauge(registry, prefix(name, "stddev"), originalName,
-                convertDuration(snapshot.getStdDev()));
-        registerGauge(registry, prefix(name, "p50"), originalName,
-                convertDuration(snapshot.getMedian()));
-        registerGauge(registry, prefix(name, "p75"), originalName,
-                convertDuration(snapshot.get75thPercentile()));
-        registerGauge(registry, prefix(name, "p95"), originalName,
-                convertDuration(snapshot.get95thPercentile()));
-        registerGauge(registry, prefix(name, "p98"), originalName,
-                convertDuration(snapshot.get98thPercentile()));
-        registerGauge(registry, prefix(name, "p99"), originalName,
-                convertDuration(snapshot.get99thPercentile()));
-        registerGauge(registry, prefix(name, "p999"), originalName,
-                convertDuration(snapshot.get999thPercentile()));
-
-        doRegisterMetered(registry, name, originalName, timer);
-
-        pushMetrics(registry, metric.getGroupingKey());
-    }
-
-    private void doRegisterMetered(CollectorRegistry registry, String name, String originalName,
-            Metered meter) {
-        registerGauge(registry, prefix(name, "count"), originalName, meter.getCount());
-        registerGauge(registry, prefix(name, "m1_rate"), originalName,
-                convertRate(meter.getOneMinuteRate()));
-        registerGauge(registry, prefix(name, "m5_rate"), originalName,
-                convertRate(meter.getFiveMinuteRate()));
-        registerGauge(registry, prefix(name, "m15_rate"), originalName,
-                convertRate(meter.getFifteenMinuteRate()));
-        registerGauge(registry, prefix(name, "mean_rate"), originalName,
-                convertRate(meter.getMeanRate()));
-    }
-
-    private void registerGauge(CollectorRegistry registry, String name, String help, Number value) {
-        assert (value != null);
-
-        io.prometheus.client.Gauge gauge = io.prometheus.client.Gauge.build()
-                .name(name).help(help).register(registry);
-
-        gauge.set(value.doubleValue());
-    }
-
-    private void registerGauge(CollectorRegistry registry, String name, String help, Object value) {
+    private void registerGauge(Series series, String help, Object value) {
         assert (value instanceof Number);
-        registerGauge(registry, name, help, (Number) value);
+        registerGauge(series, help, ((Number) value).doubleValue());
     }
 
     private String prefix(String... components) {
@@ -225,18 +1143,187 @@ public class PrometheusReporter extends ScheduledReporter {
         return builder.toString();
     }
 
-    private void pushMetrics(CollectorRegistry registry, Map<String, String> groupingKey) {
+    private void pushMetrics(ExpositionBuffer metrics, Map<String, String> groupingKey) {
+        pushes++;
         try {
-            pushGatewayWrapper.pushAdd(registry, JOB_NAME, groupingKey);
+            exporter.export(metrics, groupingKey);
         } catch (IOException e) {
+            failures++;
             LOGGER.error("Unable to push to Prometheus", e);
         }
     }
 
+    /**
+     * A series of a type of metrics, e.g. the 99th percentile of histograms.
+     */
+    private static class Part {
+
+        final String suffix;
+        final SeriesKind kind;
+        final double quantile;
+        final double upperBound;
+
+        Part(String suffix, SeriesKind kind) {
+            this(suffix, kind, Double.NaN, Double.NaN);
+        }
+
+        Part(String suffix, double quantile) {
+            this(suffix, SeriesKind.SUMMARY_QUANTILE, quantile, Double.NaN);
+        }
+
+        private Part(String suffix, SeriesKind kind, double quantile, double upperBound) {
+            this.suffix = suffix;
+            this.kind = kind;
+            this.quantile = quantile;
+            this.upperBound = upperBound;
+        }
+
+        static Part bucket(double upperBound) {
+            return new Part("bucket", SeriesKind.HISTOGRAM_BUCKET, Double.NaN, upperBound);
+        }
+
+    }
+
+    /**
+     * The groups and aggregates of the metrics reported at the same period, kept from one report to
+     * the next.
+     */
+    private static class Tier {
+
+        final ReportTier selector;
+
+        final Map<Map<String, String>, SeriesGroup> groups = new HashMap<>();
+        final List<SeriesGroup> groupList = new ArrayList<>();
+
+        // The first group not pushed before the deadline of the previous report, if any
+        SeriesGroup leftOver;
+
+        final Aggregates counterAggregates = new Aggregates();
+        final Aggregates histogramAggregates = new Aggregates();
+        final Aggregates meterAggregates = new Aggregates();
+        final Aggregates timerAggregates = new Aggregates();
+
+        Tier(ReportTier selector) {
+            this.selector = selector;
+        }
+
+    }
+
+    /**
+     * Reports a tier at a fixed rate, skipping the reports which are due while the previous one
+     * is still running, so that an overrunning report is followed by the next one on schedule,
+     * instead of all reports missed in the meantime.
+     */
+    private class Ticker implements Runnable {
+
+        private final int index;
+        private final long periodNanos;
+
+        private long nextTick;
+
+        Ticker(int index, long periodNanos) {
+            this.index = index;
+            this.periodNanos = periodNanos;
+        }
+
+        void schedule() {
+            nextTick = clock.getTick() + periodNanos;
+            scheduleNext();
+        }
+
+        @Override
+        public void run() {
+            try {
+                reportTier(index);
+            } catch (RuntimeException e) {
+                LOGGER.error("Unable to report", e);
+            }
+
+            nextTick += periodNanos;
+
+            long now = clock.getTick();
+            if (now > nextTick) {
+                long skipped = (now - nextTick) / periodNanos + 1;
+                LOGGER.warn("Report took longer than its period, skipping {} report(s).", skipped);
+                nextTick += skipped * periodNanos;
+            }
+
+            scheduleNext();
+        }
+
+        private void scheduleNext() {
+            try {
+                executor.schedule(this, nextTick - clock.getTick(), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // The reporter has been stopped
+                LOGGER.debug("Reporter stopped", e);
+            }
+        }
+
+    }
+
+    /**
+     * The aggregates of a type of metrics, kept from one report to the next.
+     */
+    private static class Aggregates {
+
+        private final Map<MetricNameAndGroupingKey, AggregatedMetric> aggregates = new HashMap<>();
+        private final List<AggregatedMetric> aggregateList = new ArrayList<>();
+
+        AggregatedMetric get(MetricNameAndGroupingKey key) {
+            AggregatedMetric aggregate = aggregates.get(key);
+            if (aggregate == null) {
+                aggregate = new AggregatedMetric(key);
+                aggregates.put(key, aggregate);
+                aggregateList.add(aggregate);
+            }
+
+            return aggregate;
+        }
+
+        AggregatedMetric get(int index) {
+            return aggregateList.get(index);
+        }
+
+        int size() {
+            return aggregateList.size();
+        }
+
+        /**
+         * Removes the aggregates no metric has been added to since the last reset, because all of
+         * their tasks are gone.
+         */
+        void removeEmpty() {
+            int size = 0;
+            for (int index = 0; index < aggregateList.size(); index++) {
+                AggregatedMetric aggregate = aggregateList.get(index);
+                if (aggregate.isEmpty()) {
+                    aggregates.remove(aggregate.getKey());
+                    aggregate.remove();
+                } else {
+                    aggregateList.set(size++, aggregate);
+                }
+            }
+
+            while (aggregateList.size() > size) {
+                aggregateList.remove(aggregateList.size() - 1);
+            }
+        }
+
+        void reset() {
+            for (int index = 0; index < aggregateList.size(); index++) {
+                aggregateList.get(index).reset();
+            }
+        }
+
+    }
+
     /**
      * A builder for {@link PrometheusReporter} instances. Defaults to not using a prefix, using the
-     * default clock, converting rates to events/second, converting durations to milliseconds, and
-     * not filtering metrics.
+     * default clock, converting rates to events/second, converting durations to milliseconds, not
+     * filtering metrics, not using name templates, skipping metrics which aren't Storm worker
+     * metrics, not aggregating tasks, deleting stale groups, adding metrics to groups instead of
+     * replacing them, pushing counts as gauges along with rates and reporting at a fixed rate.
      */
     public static class Builder {
 
@@ -246,6 +1333,23 @@ public class PrometheusReporter extends ScheduledReporter {
         private TimeUnit rateUnit;
         private TimeUnit durationUnit;
         private MetricFilter filter;
+        private List<String> nameTemplates;
+        private NameFallback nameFallback;
+        private boolean aggregateTasks;
+        private Set<String> perTaskNames;
+        private boolean deleteStaleGroups;
+        private boolean replaceGroups;
+        private boolean rawCounters;
+        private HistogramBuckets histogramBuckets;
+        private boolean offHeapSeries;
+        private long gaugeTimeoutNanos;
+        private int gaugeThreads;
+        private final List<ReportTier> tiers;
+        private int slices;
+        private long cycleDeadlineNanos;
+        private long maxPeriodMillis;
+        private long latencyThresholdNanos;
+        private double errorRateThreshold;
 
         private Builder(MetricRegistry registry) {
             this.registry = registry;
@@ -254,6 +1358,23 @@ public class PrometheusReporter extends ScheduledReporter {
             this.rateUnit = TimeUnit.SECONDS;
             this.durationUnit = TimeUnit.MILLISECONDS;
             this.filter = MetricFilter.ALL;
+            this.nameTemplates = Collections.emptyList();
+            this.nameFallback = NameFallback.SKIP;
+            this.aggregateTasks = false;
+            this.perTaskNames = Collections.emptySet();
+            this.deleteStaleGroups = true;
+            this.replaceGroups = false;
+            this.rawCounters = false;
+            this.histogramBuckets = null;
+            this.offHeapSeries = false;
+            this.gaugeTimeoutNanos = 0;
+            this.gaugeThreads = 2;
+            this.tiers = new ArrayList<>();
+            this.slices = 1;
+            this.cycleDeadlineNanos = 0;
+            this.maxPeriodMillis = 0;
+            this.latencyThresholdNanos = TimeUnit.SECONDS.toNanos(1);
+            this.errorRateThreshold = 0.1;
         }
 
         /**
@@ -311,21 +1432,297 @@ public class PrometheusReporter extends ScheduledReporter {
             return this;
         }
 
+        /**
+         * Parse the names of metrics which aren't Storm worker metrics according to the given
+         * templates, e.g. {@code app.{service}.{endpoint}.{name}}. Every segment is either a
+         * literal or a placeholder, which becomes a label of the grouping key, except for {@code
+         * {name}}, the name of the metric.
+         *
+         * @param nameTemplates the templates, of which the first matching one is used
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder nameTemplates(Collection<String> nameTemplates) {
+            this.nameTemplates = new ArrayList<>(nameTemplates);
+            return this;
+        }
+
+        /**
+         * Handle metrics whose names are neither names of Storm worker metrics nor follow any of
+         * the name templates as given.
+         *
+         * @param nameFallback a {@link NameFallback}
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder nameFallback(NameFallback nameFallback) {
+            this.nameFallback = nameFallback;
+            return this;
+        }
+
+        /**
+         * Sum counters and meters, and merge the snapshots of histograms and timers of all tasks of
+         * the same component (and stream) in a worker, instead of pushing them per task. Gauges are
+         * always pushed per task.
+         *
+         * @param aggregateTasks whether to aggregate the metrics of tasks
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder aggregateTasks(boolean aggregateTasks) {
+            this.aggregateTasks = aggregateTasks;
+            return this;
+        }
+
+        /**
+         * Keep pushing the given metrics per task, when tasks are aggregated.
+         *
+         * @param perTaskNames names of the metrics (without prefix), e.g. {@code
+         * storm_worker_emitted}
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder keepPerTask(Collection<String> perTaskNames) {
+            this.perTaskNames = new HashSet<>(perTaskNames);
+            return this;
+        }
+
+        /**
+         * Delete the groups from the gateway whose metrics have all been removed from the registry,
+         * and every group pushed by the reporter when it's stopped.
+         *
+         * @param deleteStaleGroups whether to delete stale groups
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder deleteStaleGroups(boolean deleteStaleGroups) {
+            this.deleteStaleGroups = deleteStaleGroups;
+            return this;
+        }
+
+        /**
+         * Replace the metrics of a group on every push (PUT), instead of adding them to the ones
+         * already pushed (POST), so that metrics removed from a group don't linger on the gateway.
+         * Can't be combined with reporting tiers, which push different metrics of the same groups.
+         *
+         * @param replaceGroups whether to replace groups
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder replaceGroups(boolean replaceGroups) {
+            this.replaceGroups = replaceGroups;
+            return this;
+        }
+
+        /**
+         * Push the counts of counters, meters, histograms and timers as counters, leaving it to
+         * Prometheus to calculate their rates (e.g. across restarts of workers), instead of pushing
+         * them as gauges along with the moving average and mean rates of meters and timers.
+         *
+         * @param rawCounters whether to push counts as counters, without rates
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder rawCounters(boolean rawCounters) {
+            this.rawCounters = rawCounters;
+            return this;
+        }
+
+        /**
+         * Export histograms and timers as Prometheus histograms with the given buckets, instead of
+         * summaries of quantiles, so that they can be aggregated across tasks and workers with
+         * {@code histogram_quantile}. Bounds of timers are in the unit durations are converted
+         * to. Buckets are counted exactly for histograms and timers with a {@link
+         * BucketReservoir} using the same bounds, and estimated from the sampled values
+         * otherwise.
+         *
+         * @param histogramBuckets the buckets, shared by all histograms and timers
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder histogramBuckets(HistogramBuckets histogramBuckets) {
+            this.histogramBuckets = histogramBuckets;
+            return this;
+        }
+
+        /**
+         * Keep the last values of all series in a direct buffer, instead of in arrays on the heap,
+         * which keeps large numbers of series out of the way of the garbage collector.
+         *
+         * @param offHeapSeries whether to keep the last values of series off the heap
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder offHeapSeries(boolean offHeapSeries) {
+            this.offHeapSeries = offHeapSeries;
+            return this;
+        }
+
+        /**
+         * Evaluate gauges on a pool of threads, giving each of them the given time from the start
+         * of its evaluation, instead of evaluating them one after the other on the reporting
+         * thread. A gauge running longer than that times out and is interrupted, and the
+         * reporter waits for the gauges of a report at most twice the given time. A gauge not
+         * completed by then is reported with its last value, if it has got one, and once it has
+         * timed out 3 times in a row, its number of timeouts is reported as {@code
+         * <name>_evaluation_timeouts}.
+         *
+         * @param gaugeTimeout an amount of time
+         * @param unit the unit of {@code gaugeTimeout}
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder gaugeTimeout(long gaugeTimeout, TimeUnit unit) {
+            this.gaugeTimeoutNanos = unit.toNanos(gaugeTimeout);
+            return this;
+        }
+
+        /**
+         * Evaluate gauges on the given number of threads, if they've got a timeout. Defaults to 2.
+         *
+         * @param gaugeThreads a number of threads
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder gaugeThreads(int gaugeThreads) {
+            this.gaugeThreads = gaugeThreads;
+            return this;
+        }
+
+        /**
+         * Report the metrics selected by the given tier at its own period, instead of the period
+         * passed to {@link #start(long, TimeUnit)}. A metric belongs to the first tier selecting
+         * it. Every tier is pushed in groups of its own by the same thread and exporter, hence
+         * tiers shouldn't be combined with replacing groups, unless they don't share grouping
+         * keys.
+         *
+         * @param tier a {@link ReportTier}
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder addTier(ReportTier tier) {
+            this.tiers.add(tier);
+            return this;
+        }
+
+        /**
+         * Split the metrics of the first tier into the given number of slices by grouping key,
+         * and report one slice every period divided by that number, instead of all of them at
+         * once, so that the work of a report is spread evenly over the period. Every group is
+         * still pushed once per period. Defaults to 1.
+         *
+         * @param slices a number of slices
+         * @return {@code this}
+         * @throws IllegalArgumentException if the number of slices is less than 1
+         */
+        public PrometheusReporter.Builder slices(int slices) {
+            if (slices < 1) {
+                throw new IllegalArgumentException("The number of slices must be at least 1.");
+            }
+
+            this.slices = slices;
+            return this;
+        }
+
+        /**
+         * Stop starting pushes once the given time has passed since the start of a report, and
+         * push the groups left over first in the next report of the same tier (or slice), so that
+         * an overloaded gateway doesn't make reports overrun their period. The number of reports
+         * which ran past their deadline is reported as {@code storm_reporter_cycle_overruns_count}
+         * and their durations as the histogram {@code storm_reporter_cycle_duration_seconds}.
+         *
+         * @param cycleDeadline an amount of time
+         * @param unit the unit of {@code cycleDeadline}
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder cycleDeadline(long cycleDeadline, TimeUnit unit) {
+            this.cycleDeadlineNanos = unit.toNanos(cycleDeadline);
+            return this;
+        }
+
+        /**
+         * Stretch the interval between reports up to the given period, while pushing is slow or
+         * failing, instead of reporting at a fixed rate. The period passed to {@link
+         * #start(long, TimeUnit)} is the nominal interval, which is returned to once the gateway
+         * recovers. The effective interval is reported as {@code storm_reporter_interval_seconds}.
+         *
+         * @param maxPeriod the maximum interval between reports
+         * @param unit the unit of {@code maxPeriod}
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder adaptivePeriod(long maxPeriod, TimeUnit unit) {
+            this.maxPeriodMillis = unit.toMillis(maxPeriod);
+            return this;
+        }
+
+        /**
+         * Stretch the interval between reports when a push takes longer than the given time, on
+         * average over the pushes of recent reports. Defaults to 1 second.
+         *
+         * @param latencyThreshold an amount of time
+         * @param unit the unit of {@code latencyThreshold}
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder latencyThreshold(long latencyThreshold, TimeUnit unit) {
+            this.latencyThresholdNanos = unit.toNanos(latencyThreshold);
+            return this;
+        }
+
+        /**
+         * Stretch the interval between reports when more than the given ratio of pushes fails, on
+         * average over recent reports. Defaults to 0.1.
+         *
+         * @param errorRateThreshold a ratio between 0 and 1
+         * @return {@code this}
+         */
+        public PrometheusReporter.Builder errorRateThreshold(double errorRateThreshold) {
+            this.errorRateThreshold = errorRateThreshold;
+            return this;
+        }
+
         /**
          * Builds a {@link PrometheusReporter} with the given properties, sending metrics using the
          * given {@link PushGatewayWrapper}.
          *
          * @param pushGatewayWrapper a {@link PushGatewayWrapper}
          * @return a {@link PrometheusReporter}
+         * @throws IllegalArgumentException if groups are replaced while reporting tiers
          */
         public PrometheusReporter build(PushGatewayWrapper pushGatewayWrapper) {
+            if (replaceGroups && !tiers.isEmpty()) {
+                throw new IllegalArgumentException(
+                        "Groups can't be replaced when reporting tiers.");
+            }
+
+            return build(new PushGatewayExporter(pushGatewayWrapper, replaceGroups, rawCounters));
+        }
+
+        /**
+         * Builds a {@link PrometheusReporter} with the given properties, sending metrics using the
+         * given {@link MetricsExporter}. Replacing groups only applies to {@link
+         * #build(PushGatewayWrapper)}, while raw counters only drop the rates here, as the types of
+         * series are up to the exporter.
+         *
+         * @param exporter a {@link MetricsExporter}
+         * @return a {@link PrometheusReporter}
+         * @throws IllegalArgumentException if a name template is invalid
+         */
+        public PrometheusReporter build(MetricsExporter exporter) {
             return new PrometheusReporter(registry,
-                    pushGatewayWrapper,
+                    exporter,
                     clock,
                     prefix,
                     rateUnit,
                     durationUnit,
-                    filter);
+                    filter,
+                    NameTemplates.compile(nameTemplates),
+                    nameFallback,
+                    aggregateTasks,
+                    perTaskNames,
+                    deleteStaleGroups,
+                    rawCounters,
+                    histogramBuckets,
+                    tiers,
+                    slices,
+                    offHeapSeries ? SeriesTable.offHeap() : SeriesTable.onHeap(),
+                    gaugeTimeoutNanos > 0
+                            ? new GaugeEvaluator(gaugeThreads, GAUGE_QUEUE_SIZE, gaugeTimeoutNanos)
+                            : null,
+                    cycleDeadlineNanos,
+                    Executors.newSingleThreadScheduledExecutor(
+                            new DaemonThreadFactory("prometheus-reporter")),
+                    maxPeriodMillis > 0
+                            ? new AdaptiveInterval(maxPeriodMillis, latencyThresholdNanos,
+                            errorRateThreshold)
+                            : null);
         }
     }
 
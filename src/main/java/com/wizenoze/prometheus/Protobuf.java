@@ -0,0 +1,92 @@
+package com.wizenoze.prometheus;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes the few protocol buffers wire types needed by {@link RemoteWriteExporter} and {@link
+ * OtlpExporter} into an {@link ExpositionBuffer}, without depending on generated message classes.
+ *
+ * @see <a href="https://developers.google.com/protocol-buffers/docs/encoding">Encoding</a>
+ */
+final class Protobuf {
+
+    static final int VARINT = 0;
+    static final int FIXED64 = 1;
+    static final int LENGTH_DELIMITED = 2;
+
+    private Protobuf() {
+    }
+
+    static void writeTag(ExpositionBuffer buffer, int field, int wireType) {
+        writeVarint(buffer, (field << 3) | wireType);
+    }
+
+    static void writeVarint(ExpositionBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.append((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+
+        buffer.append((byte) value);
+    }
+
+    static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+
+        return length;
+    }
+
+    static void writeFixed64(ExpositionBuffer buffer, long value) {
+        int position = buffer.reserve(8);
+        byte[] bytes = buffer.array();
+        for (int index = 0; index < 8; index++) {
+            bytes[position + index] = (byte) (value >>> (8 * index));
+        }
+    }
+
+    static void writeFixed64(ExpositionBuffer buffer, int field, long value) {
+        writeTag(buffer, field, FIXED64);
+        writeFixed64(buffer, value);
+    }
+
+    static void writeDouble(ExpositionBuffer buffer, int field, double value) {
+        writeTag(buffer, field, FIXED64);
+        writeFixed64(buffer, Double.doubleToRawLongBits(value));
+    }
+
+    static void writeVarint(ExpositionBuffer buffer, int field, long value) {
+        writeTag(buffer, field, VARINT);
+        writeVarint(buffer, value);
+    }
+
+    static void writeString(ExpositionBuffer buffer, int field, String value) {
+        writeBytes(buffer, field, value.getBytes(UTF_8));
+    }
+
+    static void writeBytes(ExpositionBuffer buffer, int field, byte[] value) {
+        writeTag(buffer, field, LENGTH_DELIMITED);
+        writeVarint(buffer, value.length);
+        buffer.append(value);
+    }
+
+    /**
+     * Writes the tag and the length of an embedded message, which must follow.
+     */
+    static void writeMessageHeader(ExpositionBuffer buffer, int field, int length) {
+        writeTag(buffer, field, LENGTH_DELIMITED);
+        writeVarint(buffer, length);
+    }
+
+    /**
+     * Returns the length of an embedded message including its tag and length, provided that its
+     * field number is less than 16.
+     */
+    static int messageLength(int length) {
+        return 1 + varintLength(length) + length;
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.wizenoze.prometheus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Pushes every group in its own request to a Prometheus Push Gateway, encoded in the text
+ * exposition format.
+ */
+public class PushGatewayExporter implements MetricsExporter {
+
+    private static final String JOB_NAME = "storm";
+
+    private final PushGatewayWrapper pushGatewayWrapper;
+    private final boolean replaceGroups;
+    private final boolean rawCounters;
+
+    /**
+     * @param pushGatewayWrapper the {@link PushGatewayWrapper} to push with
+     * @param replaceGroups whether to replace the metrics of a group on every push (PUT), instead
+     * of adding them (POST)
+     */
+    public PushGatewayExporter(PushGatewayWrapper pushGatewayWrapper, boolean replaceGroups) {
+        this(pushGatewayWrapper, replaceGroups, false);
+    }
+
+    /**
+     * @param pushGatewayWrapper the {@link PushGatewayWrapper} to push with
+     * @param replaceGroups whether to replace the metrics of a group on every push (PUT), instead
+     * of adding them (POST)
+     * @param rawCounters whether to push counts as counters, instead of gauges
+     */
+    public PushGatewayExporter(PushGatewayWrapper pushGatewayWrapper, boolean replaceGroups,
+            boolean rawCounters) {
+
+        this.pushGatewayWrapper = pushGatewayWrapper;
+        this.replaceGroups = replaceGroups;
+        this.rawCounters = rawCounters;
+    }
+
+    /**
+     * The grouping key is part of the URL, hence only the name is encoded. Every series is pushed
+     * as a gauge, except for counts when they're pushed as counters, and histograms exported as
+     * such.
+     */
+    @Override
+    public byte[] encodeSeries(SeriesDescriptor series) {
+        return ExpositionBuffer.encodeSeries(series, rawCounters ? "counter" : "gauge");
+    }
+
+    /**
+     * Samples are pushed without timestamp, the gateway doesn't support them.
+     */
+    @Override
+    public void writeSample(ExpositionBuffer buffer, byte[] encodedSeries, double value,
+            long timestamp) {
+
+        buffer.writeSeries(encodedSeries, value);
+    }
+
+    @Override
+    public void export(ExpositionBuffer samples, Map<String, String> groupingKey)
+            throws IOException {
+
+        if (replaceGroups) {
+            pushGatewayWrapper.push(samples, JOB_NAME, groupingKey);
+        } else {
+            pushGatewayWrapper.pushAdd(samples, JOB_NAME, groupingKey);
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void delete(Map<String, String> groupingKey) throws IOException {
+        pushGatewayWrapper.delete(JOB_NAME, groupingKey);
+    }
+
+    /**
+     * Closes the {@link PushGatewayWrapper}, if it's got to be closed, e.g. a client of a {@link
+     * SharedPushEngine}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (pushGatewayWrapper instanceof Closeable) {
+            ((Closeable) pushGatewayWrapper).close();
+        }
+    }
+
+}
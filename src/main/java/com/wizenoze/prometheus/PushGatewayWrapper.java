@@ -11,4 +11,15 @@ public interface PushGatewayWrapper {
     void pushAdd(CollectorRegistry registry, String job, Map<String, String> groupingKey)
             throws IOException;
 
+    void push(CollectorRegistry registry, String job, Map<String, String> groupingKey)
+            throws IOException;
+
+    void pushAdd(ExpositionBuffer metrics, String job, Map<String, String> groupingKey)
+            throws IOException;
+
+    void push(ExpositionBuffer metrics, String job, Map<String, String> groupingKey)
+            throws IOException;
+
+    void delete(String job, Map<String, String> groupingKey) throws IOException;
+
 }
@@ -1,44 +1,229 @@
 package com.wizenoze.prometheus;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.singletonMap;
-import static org.apache.storm.utils.Utils.hostname;
 
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.exporter.PushGateway;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
-import java.net.UnknownHostException;
+import java.net.URLEncoder;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.bind.DatatypeConverter;
 
+/**
+ * Pushes to a Prometheus Push Gateway, adding the host name as {@code instance} label to every
+ * group. The host name is looked up in the background, hence creating the wrapper doesn't block
+ * on the resolver, and only the first push waits for the lookup (for a limited time).
+ *
+ * The URL of a group pushed as {@link ExpositionBuffer} is encoded once, when it's first pushed,
+ * and reused until the group is deleted, as grouping keys are stable for the lifetime of a task.
+ */
 public class PushGatewayWrapperImpl implements PushGatewayWrapper {
 
-    private static final Logger LOG = LoggerFactory.getLogger(PushGatewayWrapperImpl.class);
+    private static final int TIMEOUT_MILLIS = 10 * 1000;
+
+    // Beyond this, URLs of further groups are encoded on every push
+    private static final int MAX_ENDPOINTS = 10000;
 
     private final PushGateway pushGateway;
-    private final String hostname;
+    private final String gatewayBaseUrl;
+    private final HostName hostName;
+
+    private volatile String instancePathElement;
+
+    private final ConcurrentMap<Map<String, String>, Endpoint> endpoints =
+            new ConcurrentHashMap<>();
 
     public PushGatewayWrapperImpl(String httpAddress) {
-        pushGateway = createPushGateway(httpAddress);
-        hostname = getHostName();
+        this(httpAddress, HostName.local());
+    }
+
+    PushGatewayWrapperImpl(String httpAddress, HostName hostName) {
+        this.pushGateway = createPushGateway(httpAddress);
+        this.gatewayBaseUrl = URI.create(httpAddress + "/metrics/").normalize().toString();
+        this.hostName = hostName.start();
     }
 
     @Override
     public void pushAdd(CollectorRegistry registry, String job) throws IOException {
-        pushGateway.pushAdd(registry, job, singletonMap("instance", hostname));
+        pushGateway.pushAdd(registry, job, singletonMap("instance", hostName.get()));
     }
 
     @Override
     public void pushAdd(CollectorRegistry registry, String job, Map<String, String> groupingKey)
             throws IOException {
 
+        pushGateway.pushAdd(registry, job, addInstance(groupingKey));
+    }
+
+    @Override
+    public void push(CollectorRegistry registry, String job, Map<String, String> groupingKey)
+            throws IOException {
+
+        pushGateway.push(registry, job, addInstance(groupingKey));
+    }
+
+    @Override
+    public void pushAdd(ExpositionBuffer metrics, String job, Map<String, String> groupingKey)
+            throws IOException {
+
+        doRequest(metrics, job, groupingKey, "POST");
+    }
+
+    @Override
+    public void push(ExpositionBuffer metrics, String job, Map<String, String> groupingKey)
+            throws IOException {
+
+        doRequest(metrics, job, groupingKey, "PUT");
+    }
+
+    /**
+     * Deletes the group, and forgets its URL.
+     */
+    @Override
+    public void delete(String job, Map<String, String> groupingKey) throws IOException {
+        URL url = getUrl(job, groupingKey);
+        endpoints.remove(groupingKey);
+
+        doRequest(url, null, "DELETE");
+    }
+
+    private Map<String, String> addInstance(Map<String, String> groupingKey) {
         Map<String, String> newGroupingKey = new LinkedHashMap<>(groupingKey);
-        newGroupingKey.put("instance", hostname);
+        newGroupingKey.put("instance", hostName.get());
+        return newGroupingKey;
+    }
 
-        pushGateway.pushAdd(registry, job, newGroupingKey);
+    private void doRequest(ExpositionBuffer metrics, String job, Map<String, String> groupingKey,
+            String method) throws IOException {
+
+        doRequest(getUrl(job, groupingKey), metrics, method);
+    }
+
+    /**
+     * Sends the already encoded metrics (if any) the same way as {@link PushGateway} does with a
+     * {@link CollectorRegistry}.
+     */
+    private static void doRequest(URL url, ExpositionBuffer metrics, String method)
+            throws IOException {
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (metrics != null) {
+            connection.setRequestProperty("Content-Type", ExpositionBuffer.CONTENT_TYPE);
+            connection.setDoOutput(true);
+        }
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+
+        try {
+            connection.connect();
+
+            if (metrics != null) {
+                try (OutputStream outputStream = connection.getOutputStream()) {
+                    metrics.writeTo(outputStream);
+                }
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode / 100 != 2) {
+                throw new IOException("Response code from " + url + " was " + responseCode
+                        + ", response body: " + readErrorStream(connection));
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Returns the URL of the given group, with the {@code instance} label appended, encoding it
+     * only if the group hasn't been pushed before.
+     */
+    private URL getUrl(String job, Map<String, String> groupingKey) throws IOException {
+        Endpoint endpoint = endpoints.get(groupingKey);
+        if (endpoint != null && endpoint.job.equals(job)) {
+            return endpoint.url;
+        }
+
+        URL url = new URL(encodeUrl(job, groupingKey));
+        if (endpoints.size() < MAX_ENDPOINTS) {
+            endpoints.put(groupingKey, new Endpoint(job, url));
+        }
+
+        return url;
+    }
+
+    private String encodeUrl(String job, Map<String, String> groupingKey) {
+        StringBuilder url = new StringBuilder(gatewayBaseUrl);
+        url.append(encodePathElement("job", job));
+
+        for (Map.Entry<String, String> entry : groupingKey.entrySet()) {
+            url.append('/');
+            url.append(encodePathElement(entry.getKey(), entry.getValue()));
+        }
+
+        url.append('/');
+        url.append(getInstancePathElement());
+
+        return url.toString();
+    }
+
+    private String getInstancePathElement() {
+        String pathElement = instancePathElement;
+        if (pathElement == null) {
+            pathElement = encodePathElement("instance", hostName.get());
+            instancePathElement = pathElement;
+        }
+
+        return pathElement;
+    }
+
+    private static String encodePathElement(String name, String value) {
+        if (value.contains("/")) {
+            return name + "@base64/" + base64url(value);
+        }
+
+        try {
+            return name + '/' + URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Can't happen, UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String base64url(String value) {
+        return DatatypeConverter.printBase64Binary(value.getBytes(UTF_8))
+                .replace('+', '-').replace('/', '_');
+    }
+
+    private static String readErrorStream(HttpURLConnection connection) throws IOException {
+        InputStream inputStream = connection.getErrorStream();
+        if (inputStream == null) {
+            return "";
+        }
+
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int length;
+            while ((length = inputStream.read(buffer)) >= 0) {
+                outputStream.write(buffer, 0, length);
+            }
+            return new String(outputStream.toByteArray(), UTF_8);
+        } finally {
+            inputStream.close();
+        }
     }
 
     private PushGateway createPushGateway(String httpAddress) {
@@ -49,15 +234,19 @@ public class PushGatewayWrapperImpl implements PushGatewayWrapper {
         }
     }
 
-    private String getHostName() {
-        String hostname = "";
-        try {
-            hostname = hostname();
-        } catch (UnknownHostException e) {
-            LOG.warn("Couldn't get hostname.", e);
+    /**
+     * The URL of a group, along with the job it has been encoded for.
+     */
+    private static final class Endpoint {
+
+        final String job;
+        final URL url;
+
+        Endpoint(String job, URL url) {
+            this.job = job;
+            this.url = url;
         }
 
-        return hostname;
     }
 
-}
\ No newline at end of file
+}
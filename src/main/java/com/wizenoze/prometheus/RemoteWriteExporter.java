@@ -0,0 +1,273 @@
+package com.wizenoze.prometheus;
+
+import static com.wizenoze.prometheus.Protobuf.LENGTH_DELIMITED;
+import static com.wizenoze.prometheus.Protobuf.VARINT;
+import static com.wizenoze.prometheus.Protobuf.varintLength;
+import static com.wizenoze.prometheus.Protobuf.writeBytes;
+import static com.wizenoze.prometheus.Protobuf.writeDouble;
+import static com.wizenoze.prometheus.Protobuf.writeString;
+import static com.wizenoze.prometheus.Protobuf.writeTag;
+import static com.wizenoze.prometheus.Protobuf.writeVarint;
+
+import io.prometheus.client.Collector;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.iq80.snappy.Snappy;
+
+/**
+ * Sends the metrics of all groups in a single request to an endpoint speaking the Prometheus
+ * remote write protocol (a snappy compressed {@code WriteRequest} protocol buffer), bypassing the
+ * Push Gateway. Samples carry the timestamp of the report.
+ *
+ * Requests are sent in the background by an {@link HttpSender}, which retries recoverable failures
+ * and drops requests once too many are in flight.
+ *
+ * @see <a href="https://prometheus.io/docs/concepts/remote_write_spec/">Prometheus Remote-Write
+ * Specification</a>
+ */
+public class RemoteWriteExporter implements MetricsExporter {
+
+    private static final String JOB_NAME = "storm";
+
+    private static final String METRIC_NAME_LABEL = "__name__";
+
+    // WriteRequest.timeseries, TimeSeries.labels, TimeSeries.samples
+    private static final int TIMESERIES_FIELD = 1;
+    private static final int LABELS_FIELD = 1;
+    private static final int SAMPLES_FIELD = 2;
+
+    // Label.name, Label.value, Sample.value, Sample.timestamp
+    private static final int NAME_FIELD = 1;
+    private static final int VALUE_FIELD = 2;
+    private static final int SAMPLE_VALUE_FIELD = 1;
+    private static final int SAMPLE_TIMESTAMP_FIELD = 2;
+
+    // The host name is only used if no instance has been given
+    private final String instance;
+    private final HostName hostName;
+    private final int maxRequestSize;
+    private final HttpSender sender;
+
+    private final ExpositionBuffer request = new ExpositionBuffer();
+
+    private RemoteWriteExporter(URL url,
+            String instance,
+            int maxRequestSize,
+            int maxInFlight,
+            int maxRetries,
+            long retryBackoffMillis) {
+
+        this.instance = instance;
+        this.hostName = instance != null ? null : HostName.local();
+        this.maxRequestSize = maxRequestSize;
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", "application/x-protobuf");
+        headers.put("Content-Encoding", "snappy");
+        headers.put("X-Prometheus-Remote-Write-Version", "0.1.0");
+
+        sender = new HttpSender(url, headers, maxInFlight, maxRetries, retryBackoffMillis,
+                "prometheus-remote-write");
+    }
+
+    /**
+     * Returns a new {@link RemoteWriteExporter.Builder} for {@link RemoteWriteExporter}.
+     *
+     * @param url the remote write endpoint, e.g. {@code http://localhost:9090/api/v1/write}
+     * @return a {@link RemoteWriteExporter.Builder} instance for a {@link RemoteWriteExporter}
+     */
+    public static RemoteWriteExporter.Builder forEndpoint(URL url) {
+        return new RemoteWriteExporter.Builder(url);
+    }
+
+    /**
+     * Encodes the labels of a {@code TimeSeries}: the name of the series, {@code job}, {@code
+     * instance}, the grouping key and the {@code le} label of buckets, sorted by name as the
+     * protocol requires.
+     */
+    @Override
+    public byte[] encodeSeries(SeriesDescriptor series) {
+        Map<String, String> labels = new TreeMap<>(series.getGroupingKey());
+        labels.put(METRIC_NAME_LABEL, series.getName());
+        labels.put("job", JOB_NAME);
+        labels.put("instance", instance != null ? instance : hostName.get());
+        if (series.getKind() == SeriesKind.HISTOGRAM_BUCKET) {
+            labels.put("le", Collector.doubleToGoString(series.getUpperBound()));
+        }
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        ExpositionBuffer label = new ExpositionBuffer();
+        for (Map.Entry<String, String> entry : labels.entrySet()) {
+            label.reset();
+            writeString(label, NAME_FIELD, entry.getKey());
+            writeString(label, VALUE_FIELD, entry.getValue());
+            writeBytes(buffer, LABELS_FIELD, label.toByteArray());
+        }
+
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Writes a {@code TimeSeries} with a single {@code Sample}.
+     */
+    @Override
+    public void writeSample(ExpositionBuffer buffer, byte[] encodedSeries, double value,
+            long timestamp) {
+
+        int sampleLength = 1 + 8 + 1 + varintLength(timestamp);
+        int seriesLength = encodedSeries.length + 1 + varintLength(sampleLength) + sampleLength;
+
+        writeTag(buffer, TIMESERIES_FIELD, LENGTH_DELIMITED);
+        writeVarint(buffer, seriesLength);
+        buffer.append(encodedSeries);
+
+        writeTag(buffer, SAMPLES_FIELD, LENGTH_DELIMITED);
+        writeVarint(buffer, sampleLength);
+        writeDouble(buffer, SAMPLE_VALUE_FIELD, value);
+        writeTag(buffer, SAMPLE_TIMESTAMP_FIELD, VARINT);
+        writeVarint(buffer, timestamp);
+    }
+
+    /**
+     * Appends the samples of the group to the current request, as {@code WriteRequest} is just a
+     * list of {@code TimeSeries}. The request is sent first if it would exceed its maximum size.
+     */
+    @Override
+    public void export(ExpositionBuffer samples, Map<String, String> groupingKey) {
+        if (request.size() > 0 && request.size() + samples.size() > maxRequestSize) {
+            send();
+        }
+
+        request.append(samples);
+    }
+
+    @Override
+    public void flush() {
+        if (request.size() > 0) {
+            send();
+        }
+    }
+
+    /**
+     * Remote write has no notion of groups, series of removed metrics go stale once they stop
+     * receiving samples.
+     */
+    @Override
+    public void delete(Map<String, String> groupingKey) {
+    }
+
+    /**
+     * Waits for the requests in flight to complete, retries included.
+     */
+    @Override
+    public void close() {
+        sender.close();
+    }
+
+    private void send() {
+        byte[] compressed = new byte[Snappy.maxCompressedLength(request.size())];
+        int length = Snappy.compress(request.array(), 0, request.size(), compressed, 0);
+        request.reset();
+
+        sender.send(compressed, length);
+    }
+
+    /**
+     * A builder for {@link RemoteWriteExporter} instances. Defaults to using the host name as
+     * {@code instance}, sending at most 4 MiB of uncompressed samples per request, 2 requests in
+     * flight and retrying 3 times, starting from a backoff of 500 milliseconds.
+     */
+    public static class Builder {
+
+        private final URL url;
+        private String instance;
+        private int maxRequestSize;
+        private int maxInFlight;
+        private int maxRetries;
+        private long retryBackoffMillis;
+
+        private Builder(URL url) {
+            this.url = url;
+            this.instance = null;
+            this.maxRequestSize = 4 * 1024 * 1024;
+            this.maxInFlight = 2;
+            this.maxRetries = 3;
+            this.retryBackoffMillis = 500;
+        }
+
+        /**
+         * Use the given value as {@code instance} label.
+         *
+         * @param instance the value of the {@code instance} label
+         * @return {@code this}
+         */
+        public RemoteWriteExporter.Builder withInstance(String instance) {
+            this.instance = instance;
+            return this;
+        }
+
+        /**
+         * Send at most the given number of bytes of (uncompressed) samples per request. The samples
+         * of a group are never split, though.
+         *
+         * @param maxRequestSize a number of bytes
+         * @return {@code this}
+         */
+        public RemoteWriteExporter.Builder maxRequestSize(int maxRequestSize) {
+            this.maxRequestSize = maxRequestSize;
+            return this;
+        }
+
+        /**
+         * Send or retry at most the given number of requests at a time, and drop further ones.
+         *
+         * @param maxInFlight a number of requests
+         * @return {@code this}
+         */
+        public RemoteWriteExporter.Builder maxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Retry failed requests at most the given number of times.
+         *
+         * @param maxRetries a number of retries
+         * @return {@code this}
+         */
+        public RemoteWriteExporter.Builder maxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Wait for the given time before the first retry, doubling it for every further one.
+         *
+         * @param retryBackoff an amount of time
+         * @param unit the unit of {@code retryBackoff}
+         * @return {@code this}
+         */
+        public RemoteWriteExporter.Builder retryBackoff(long retryBackoff, TimeUnit unit) {
+            this.retryBackoffMillis = unit.toMillis(retryBackoff);
+            return this;
+        }
+
+        /**
+         * Builds a {@link RemoteWriteExporter} with the given properties.
+         *
+         * @return a {@link RemoteWriteExporter}
+         */
+        public RemoteWriteExporter build() {
+            return new RemoteWriteExporter(url,
+                    instance,
+                    maxRequestSize,
+                    maxInFlight,
+                    maxRetries,
+                    retryBackoffMillis);
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+package com.wizenoze.prometheus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A set of metrics reported at a period of their own, e.g. queue metrics every few seconds and
+ * histograms every few minutes, see {@link PrometheusReporter.Builder#addTier(ReportTier)}.
+ *
+ * Metrics are selected by their type, their name (without prefix, e.g. {@code
+ * storm_worker_emitted}) and their labels. Names and label values are globs supporting {@code *}
+ * and {@code ?}. A metric is selected if it matches any of the types, any of the names and every
+ * label given, where no types or names at all match any metric.
+ */
+public final class ReportTier {
+
+    /**
+     * The types of metrics.
+     */
+    public enum MetricType {
+        GAUGE, COUNTER, HISTOGRAM, METER, TIMER
+    }
+
+    private final long periodMillis;
+    private final Set<MetricType> types;
+    private final List<String> names;
+    private final Map<String, String> labels;
+
+    private ReportTier(long periodMillis, Set<MetricType> types, List<String> names,
+            Map<String, String> labels) {
+
+        this.periodMillis = periodMillis;
+        this.types = types;
+        this.names = names;
+        this.labels = labels;
+    }
+
+    /**
+     * Returns a new {@link ReportTier.Builder} for {@link ReportTier}.
+     *
+     * @param period the period to report the metrics of the tier at
+     * @param unit the unit of {@code period}
+     * @return a {@link ReportTier.Builder} instance for a {@link ReportTier}
+     */
+    public static ReportTier.Builder every(long period, TimeUnit unit) {
+        return new ReportTier.Builder(unit.toMillis(period));
+    }
+
+    static boolean matchesGlob(String pattern, String value) {
+        return matchesGlob(pattern, 0, value, 0);
+    }
+
+    private static boolean matchesGlob(String pattern, int patternIndex, String value,
+            int valueIndex) {
+
+        while (patternIndex < pattern.length()) {
+            char p = pattern.charAt(patternIndex);
+
+            if (p == '*') {
+                for (int next = valueIndex; next <= value.length(); next++) {
+                    if (matchesGlob(pattern, patternIndex + 1, value, next)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            if (valueIndex == value.length()) {
+                return false;
+            }
+
+            if (p != '?' && p != value.charAt(valueIndex)) {
+                return false;
+            }
+
+            valueIndex++;
+            patternIndex++;
+        }
+
+        return valueIndex == value.length();
+    }
+
+    long getPeriodMillis() {
+        return periodMillis;
+    }
+
+    boolean matches(MetricType type, MetricNameAndGroupingKey metric) {
+        if (!types.isEmpty() && !types.contains(type)) {
+            return false;
+        }
+
+        if (!names.isEmpty() && !matchesAnyName(metric.getName())) {
+            return false;
+        }
+
+        Map<String, String> groupingKey = metric.getGroupingKey();
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            String value = groupingKey.get(label.getKey());
+            if (value == null || !matchesGlob(label.getValue(), value)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean matchesAnyName(String name) {
+        for (int index = 0; index < names.size(); index++) {
+            if (matchesGlob(names.get(index), name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * A builder for {@link ReportTier} instances. Defaults to selecting every metric.
+     */
+    public static class Builder {
+
+        private final long periodMillis;
+        private final Set<MetricType> types;
+        private final List<String> names;
+        private final Map<String, String> labels;
+
+        private Builder(long periodMillis) {
+            this.periodMillis = periodMillis;
+            this.types = EnumSet.noneOf(MetricType.class);
+            this.names = new ArrayList<>();
+            this.labels = new LinkedHashMap<>();
+        }
+
+        /**
+         * Select metrics of the given types.
+         *
+         * @param types types of metrics
+         * @return {@code this}
+         */
+        public ReportTier.Builder ofTypes(MetricType... types) {
+            this.types.addAll(Arrays.asList(types));
+            return this;
+        }
+
+        /**
+         * Select metrics whose names match any of the given globs.
+         *
+         * @param names globs of names without prefix, e.g. {@code *_percent_full}
+         * @return {@code this}
+         */
+        public ReportTier.Builder named(Collection<String> names) {
+            this.names.addAll(names);
+            return this;
+        }
+
+        /**
+         * Select metrics having the given label, with a value matching the given glob.
+         *
+         * @param name the name of the label, e.g. {@code component_id}
+         * @param value a glob of its value
+         * @return {@code this}
+         */
+        public ReportTier.Builder labelled(String name, String value) {
+            this.labels.put(name, value);
+            return this;
+        }
+
+        /**
+         * Builds a {@link ReportTier} with the given properties.
+         *
+         * @return a {@link ReportTier}
+         */
+        public ReportTier build() {
+            return new ReportTier(periodMillis,
+                    types.isEmpty() ? Collections.<MetricType>emptySet() : EnumSet.copyOf(types),
+                    new ArrayList<>(names),
+                    new LinkedHashMap<>(labels));
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.wizenoze.prometheus;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The samples of a batch of metrics pushed in a single request, e.g. the data points of a task
+ * delivered to a metrics consumer. Samples are collected by metric name, as all samples of a
+ * metric family must be written together, and written as gauges.
+ *
+ * The batch is meant to be reused from one request to the next: {@link #reset() resetting} it
+ * keeps its families and their buffers.
+ */
+public final class SampleBatch {
+
+    private static final String TOPOLOGY_PREFIX = "storm_topology";
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    private int size;
+
+    /**
+     * Returns the name of a topology metric, escaped and prefixed like the names of the metrics
+     * of the reporter, e.g. {@code storm_topology___execute_latency} for {@code
+     * __execute-latency}.
+     *
+     * @param prefix the prefix of all metric names, or {@code null}
+     * @param name the original name of the metric
+     */
+    public static String metricName(String prefix, String name) {
+        String metricName = TOPOLOGY_PREFIX + '_' + MetricNameAndGroupingKey.escapeName(name);
+        return prefix != null && !prefix.isEmpty() ? prefix + '_' + metricName : metricName;
+    }
+
+    /**
+     * Returns the name of a part of a metric, e.g. {@code storm_topology___sendqueue_population}
+     * for the {@code population} of {@code __sendqueue}.
+     */
+    public static String partName(String metricName, String part) {
+        return metricName + '_' + MetricNameAndGroupingKey.escapeName(part);
+    }
+
+    /**
+     * Adds a sample to the batch.
+     *
+     * @param name the name of the sample
+     * @param help the help of its family, used only for the first sample of the family
+     * @param labels the labels of the sample, besides those of its group
+     * @param value the value of the sample
+     */
+    public void add(String name, String help, Map<String, String> labels, double value) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family(help);
+            families.put(name, family);
+        }
+
+        family.samples.writeSample(name, labels, value);
+        size++;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Writes the samples of all families into the given buffer.
+     */
+    public void writeTo(ExpositionBuffer buffer) {
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            Family family = entry.getValue();
+            if (family.samples.size() > 0) {
+                buffer.writeFamily(entry.getKey(), family.help, "gauge");
+                buffer.append(family.samples);
+            }
+        }
+    }
+
+    public void reset() {
+        for (Family family : families.values()) {
+            family.samples.reset();
+        }
+
+        size = 0;
+    }
+
+    private static class Family {
+
+        final String help;
+        final ExpositionBuffer samples = new ExpositionBuffer(64);
+
+        Family(String help) {
+            this.help = help;
+        }
+
+    }
+
+}
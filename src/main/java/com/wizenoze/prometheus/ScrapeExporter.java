@@ -0,0 +1,412 @@
+package com.wizenoze.prometheus;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the metrics of all groups to Prometheus scraping the worker, instead of pushing them.
+ *
+ * The exposition is rendered once per report into an immutable response, along with its gzip
+ * compressed variant, and every scrape in between is served that response as is, however many
+ * scrapers there are. The {@code Age} header of the response is the number of seconds since it
+ * was rendered, and the time it took to render the previous response is exposed as {@code
+ * storm_reporter_render_seconds}.
+ */
+public class ScrapeExporter implements MetricsExporter {
+
+    private static final String RENDER_NAME = "storm_reporter_render_seconds";
+    private static final byte[] RENDER_SERIES = ExpositionBuffer.encodeSeries(RENDER_NAME,
+            "Time it took to render the scraped metrics", "gauge");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    // The samples of every group, as last exported
+    private final Map<Map<String, String>, ExpositionBuffer> groups = new LinkedHashMap<>();
+
+    private final Map<String, Family> familiesByName = new HashMap<>();
+    private final List<Family> families = new ArrayList<>();
+    private final ExpositionBuffer exposition = new ExpositionBuffer();
+
+    private long renderNanos;
+
+    private volatile Response response = new Response(new byte[0], new byte[0]);
+
+    private ScrapeExporter(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+
+        server.createContext("/metrics", new ScrapeHandler());
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Returns a new {@link ScrapeExporter.Builder} for {@link ScrapeExporter}.
+     *
+     * @param port the port to serve the metrics on, at {@code /metrics}, or {@code 0} for any
+     * free port
+     * @return a {@link ScrapeExporter.Builder} instance for a {@link ScrapeExporter}
+     */
+    public static ScrapeExporter.Builder forPort(int port) {
+        return new ScrapeExporter.Builder(port);
+    }
+
+    private static byte[] gzip(ExpositionBuffer buffer) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(buffer.size() / 4 + 64);
+        try (GZIPOutputStream outputStream = new GZIPOutputStream(compressed)) {
+            buffer.writeTo(outputStream);
+        } catch (IOException e) {
+            // Can't happen, it's all in memory
+            throw new IllegalStateException(e);
+        }
+
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Returns the port the metrics are served on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Encodes the index of the family of the series in 4 bytes, followed by the name and labels of
+     * the series. The {@code HELP} and {@code TYPE} lines are kept with the family, as all series
+     * of a family must be rendered together, regardless of their groups.
+     */
+    @Override
+    public byte[] encodeSeries(SeriesDescriptor series) {
+        Family family = getFamily(series);
+
+        ExpositionBuffer buffer = new ExpositionBuffer(4 + 2 * series.getName().length() + 64);
+        int position = buffer.reserve(4);
+        byte[] bytes = buffer.array();
+        bytes[position] = (byte) (family.index >>> 24);
+        bytes[position + 1] = (byte) (family.index >>> 16);
+        bytes[position + 2] = (byte) (family.index >>> 8);
+        bytes[position + 3] = (byte) family.index;
+
+        buffer.appendAscii(series.getName());
+
+        Map<String, String> groupingKey = series.getGroupingKey();
+        boolean bucket = series.getKind() == SeriesKind.HISTOGRAM_BUCKET;
+        if (!groupingKey.isEmpty() || bucket) {
+            buffer.append((byte) '{');
+            boolean first = true;
+            for (Map.Entry<String, String> label : groupingKey.entrySet()) {
+                if (!first) {
+                    buffer.append((byte) ',');
+                }
+                first = false;
+
+                buffer.appendAscii(label.getKey());
+                buffer.append((byte) '=');
+                buffer.append((byte) '"');
+                buffer.appendEscaped(label.getValue(), true);
+                buffer.append((byte) '"');
+            }
+            if (bucket) {
+                if (!first) {
+                    buffer.append((byte) ',');
+                }
+                buffer.appendUpperBound(series.getUpperBound());
+            }
+            buffer.append((byte) '}');
+        }
+
+        buffer.append((byte) ' ');
+
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Samples are served without timestamp, Prometheus assigns the time of the scrape.
+     */
+    @Override
+    public void writeSample(ExpositionBuffer buffer, byte[] encodedSeries, double value,
+            long timestamp) {
+
+        buffer.writeSeries(encodedSeries, value);
+    }
+
+    /**
+     * Keeps a copy of the samples of the group until it's exported again or deleted, so that
+     * groups reported at other periods are served as well.
+     */
+    @Override
+    public void export(ExpositionBuffer samples, Map<String, String> groupingKey) {
+        ExpositionBuffer group = groups.get(groupingKey);
+        if (group == null) {
+            group = new ExpositionBuffer(samples.size());
+            groups.put(groupingKey, group);
+        }
+
+        group.reset();
+        group.append(samples);
+    }
+
+    /**
+     * Renders the response served to scrapers until the next report.
+     */
+    @Override
+    public void flush() {
+        long start = System.nanoTime();
+
+        for (ExpositionBuffer group : groups.values()) {
+            byte[] bytes = group.array();
+            int size = group.size();
+
+            int position = 0;
+            while (position < size) {
+                int index = ((bytes[position] & 0xff) << 24) | ((bytes[position + 1] & 0xff) << 16)
+                        | ((bytes[position + 2] & 0xff) << 8) | (bytes[position + 3] & 0xff);
+
+                // New lines are escaped in label values, hence a sample ends at the first one
+                int end = position + 4;
+                while (bytes[end] != '\n') {
+                    end++;
+                }
+
+                families.get(index).samples.append(bytes, position + 4, end + 1 - position - 4);
+                position = end + 1;
+            }
+        }
+
+        exposition.reset();
+        for (Family family : families) {
+            if (family.samples.size() > 0) {
+                exposition.append(family.header);
+                exposition.append(family.samples);
+                family.samples.reset();
+            }
+        }
+
+        exposition.writeSeries(RENDER_SERIES, renderNanos / 1e9);
+
+        response = new Response(exposition.toByteArray(), gzip(exposition));
+
+        renderNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Stops serving the samples of the group from the next report on.
+     */
+    @Override
+    public void delete(Map<String, String> groupingKey) {
+        groups.remove(groupingKey);
+    }
+
+    /**
+     * Stops serving the metrics.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    /**
+     * Returns the family of the series, which is named after the metric for the count, sum and
+     * buckets of a histogram, and after the series otherwise.
+     */
+    private Family getFamily(SeriesDescriptor series) {
+        SeriesKind kind = series.getKind();
+        boolean histogram = kind == SeriesKind.HISTOGRAM_COUNT || kind == SeriesKind.HISTOGRAM_SUM
+                || kind == SeriesKind.HISTOGRAM_BUCKET;
+        String name = histogram ? series.getMetricName() : series.getName();
+
+        Family family = familiesByName.get(name);
+        if (family == null) {
+            String type = histogram ? "histogram"
+                    : kind == SeriesKind.COUNTER || kind == SeriesKind.SUMMARY_COUNT
+                            ? "counter" : "gauge";
+
+            family = new Family(families.size(), new ExpositionBuffer()
+                    .writeFamily(name, series.getHelp(), type).toByteArray());
+            familiesByName.put(name, family);
+            families.add(family);
+        }
+
+        return family;
+    }
+
+    private static class Family {
+
+        final int index;
+        final byte[] header;
+        final ExpositionBuffer samples = new ExpositionBuffer();
+
+        Family(int index, byte[] header) {
+            this.index = index;
+            this.header = header;
+        }
+
+    }
+
+    /**
+     * A rendered response, which is never modified once it's been published.
+     */
+    private static class Response {
+
+        final byte[] body;
+        final byte[] gzippedBody;
+        final long renderedAtMillis = System.currentTimeMillis();
+
+        Response(byte[] body, byte[] gzippedBody) {
+            this.body = body;
+            this.gzippedBody = gzippedBody;
+        }
+
+    }
+
+    private class ScrapeHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                Response response = ScrapeExporter.this.response;
+
+                boolean gzip = acceptsGzip(exchange.getRequestHeaders());
+                byte[] body = gzip ? response.gzippedBody : response.body;
+
+                Headers headers = exchange.getResponseHeaders();
+                headers.set("Content-Type", ExpositionBuffer.CONTENT_TYPE);
+                headers.set("Age", Long.toString(TimeUnit.MILLISECONDS.toSeconds(
+                        Math.max(System.currentTimeMillis() - response.renderedAtMillis, 0))));
+                if (gzip) {
+                    headers.set("Content-Encoding", "gzip");
+                }
+
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream outputStream = exchange.getResponseBody()) {
+                    outputStream.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private boolean acceptsGzip(Headers headers) {
+            List<String> values = headers.get("Accept-Encoding");
+            if (values == null) {
+                return false;
+            }
+
+            for (String value : values) {
+                if (value.contains("gzip")) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+    }
+
+    /**
+     * A builder for {@link ScrapeExporter} instances. Defaults to binding to all addresses and
+     * serving scrapes from 2 threads.
+     */
+    public static class Builder {
+
+        private final int port;
+        private String host;
+        private int ports;
+        private int threads;
+
+        private Builder(int port) {
+            this.port = port;
+            this.host = null;
+            this.ports = 1;
+            this.threads = 2;
+        }
+
+        /**
+         * Bind to the given host name or address only.
+         *
+         * @param host a host name or address
+         * @return {@code this}
+         */
+        public ScrapeExporter.Builder withHost(String host) {
+            this.host = host;
+            return this;
+        }
+
+        /**
+         * Bind to the first free port of the given number of consecutive ports, starting from the
+         * port of the builder, so that several workers of a host can serve their metrics.
+         *
+         * @param ports a number of ports
+         * @return {@code this}
+         */
+        public ScrapeExporter.Builder portRange(int ports) {
+            this.ports = ports;
+            return this;
+        }
+
+        /**
+         * Serve scrapes from the given number of threads.
+         *
+         * @param threads a number of threads
+         * @return {@code this}
+         */
+        public ScrapeExporter.Builder threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Builds a {@link ScrapeExporter} with the given properties, which starts serving the
+         * metrics right away.
+         *
+         * @return a {@link ScrapeExporter}
+         * @throws IOException if none of the ports could be bound to
+         */
+        public ScrapeExporter build() throws IOException {
+            HttpServer server = bind();
+            ExecutorService executor = Executors.newFixedThreadPool(threads,
+                    new DaemonThreadFactory("prometheus-scrape"));
+
+            return new ScrapeExporter(server, executor);
+        }
+
+        private HttpServer bind() throws IOException {
+            for (int offset = 0; ; offset++) {
+                InetSocketAddress address = host != null
+                        ? new InetSocketAddress(host, port + offset)
+                        : new InetSocketAddress(port + offset);
+                try {
+                    return HttpServer.create(address, 0);
+                } catch (BindException e) {
+                    if (port == 0 || offset + 1 >= ports) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+}
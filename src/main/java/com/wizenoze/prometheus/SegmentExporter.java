@@ -0,0 +1,171 @@
+package com.wizenoze.prometheus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes the metrics of all groups of a worker into its slot of a memory-mapped file shared by
+ * the workers of the host, from which a {@link SegmentPusher} pushes the metrics of all workers,
+ * so that there's a single process per host pushing to the gateway.
+ *
+ * Series are encoded exactly as by {@link PushGatewayExporter}, and the slot always holds the
+ * groups as last exported, so that groups reported at other periods are pushed as well.
+ */
+public class SegmentExporter implements MetricsExporter {
+
+    private final SegmentFile file;
+    private final int slot;
+    private final boolean rawCounters;
+
+    private final Map<Map<String, String>, ExpositionBuffer> groups = new LinkedHashMap<>();
+    private final ExpositionBuffer data = new ExpositionBuffer();
+
+    private SegmentExporter(SegmentFile file, int slot, boolean rawCounters) {
+        this.file = file;
+        this.slot = slot;
+        this.rawCounters = rawCounters;
+    }
+
+    /**
+     * Returns a new {@link SegmentExporter.Builder} for {@link SegmentExporter}.
+     *
+     * @param path the file shared by the workers of the host
+     * @param workerPort the port of the worker, which its slot is claimed by
+     * @return a {@link SegmentExporter.Builder} instance for a {@link SegmentExporter}
+     */
+    public static SegmentExporter.Builder forFile(File path, int workerPort) {
+        return new SegmentExporter.Builder(path, workerPort);
+    }
+
+    @Override
+    public byte[] encodeSeries(SeriesDescriptor series) {
+        return ExpositionBuffer.encodeSeries(series, rawCounters ? "counter" : "gauge");
+    }
+
+    @Override
+    public void writeSample(ExpositionBuffer buffer, byte[] encodedSeries, double value,
+            long timestamp) {
+
+        buffer.writeSeries(encodedSeries, value);
+    }
+
+    @Override
+    public void export(ExpositionBuffer samples, Map<String, String> groupingKey) {
+        ExpositionBuffer group = groups.get(groupingKey);
+        if (group == null) {
+            group = new ExpositionBuffer(samples.size());
+            groups.put(groupingKey, group);
+        }
+
+        group.reset();
+        group.append(samples);
+    }
+
+    /**
+     * Writes all groups into the slot of the worker.
+     *
+     * @throws IOException if they don't fit into the slot
+     */
+    @Override
+    public void flush() throws IOException {
+        data.reset();
+        for (Map.Entry<Map<String, String>, ExpositionBuffer> group : groups.entrySet()) {
+            SegmentFile.writeGroup(data, group.getKey(), group.getValue());
+        }
+
+        file.write(slot, data, System.currentTimeMillis());
+    }
+
+    /**
+     * Removes the group from the slot with the next report, which gets the pusher to delete it.
+     */
+    @Override
+    public void delete(Map<String, String> groupingKey) {
+        groups.remove(groupingKey);
+    }
+
+    /**
+     * Frees the slot of the worker, which gets the pusher to delete all of its groups.
+     */
+    @Override
+    public void close() throws IOException {
+        file.release(slot);
+        file.close();
+    }
+
+    /**
+     * A builder for {@link SegmentExporter} instances. Defaults to a file of 16 slots of 1 MiB.
+     */
+    public static class Builder {
+
+        private final File path;
+        private final int workerPort;
+        private int slots;
+        private int slotSize;
+        private boolean rawCounters;
+
+        private Builder(File path, int workerPort) {
+            this.path = path;
+            this.workerPort = workerPort;
+            this.slots = 16;
+            this.slotSize = 1024 * 1024;
+            this.rawCounters = false;
+        }
+
+        /**
+         * Create the file with the given number of slots, at least the number of workers of the
+         * host. All workers and the pusher must agree on it.
+         *
+         * @param slots a number of slots
+         * @return {@code this}
+         */
+        public SegmentExporter.Builder slots(int slots) {
+            this.slots = slots;
+            return this;
+        }
+
+        /**
+         * Create the file with slots of the given size, which must hold the samples of all groups
+         * of a worker. All workers and the pusher must agree on it.
+         *
+         * @param slotSize a number of bytes
+         * @return {@code this}
+         */
+        public SegmentExporter.Builder slotSize(int slotSize) {
+            this.slotSize = slotSize;
+            return this;
+        }
+
+        /**
+         * Encode counts as counters, instead of gauges, see {@link
+         * PrometheusReporter.Builder#rawCounters(boolean)}.
+         *
+         * @param rawCounters whether to encode counts as counters
+         * @return {@code this}
+         */
+        public SegmentExporter.Builder rawCounters(boolean rawCounters) {
+            this.rawCounters = rawCounters;
+            return this;
+        }
+
+        /**
+         * Builds a {@link SegmentExporter} with the given properties, opening the file and
+         * claiming the slot of the worker.
+         *
+         * @return a {@link SegmentExporter}
+         * @throws IOException if the file couldn't be opened, or all of its slots are taken
+         */
+        public SegmentExporter build() throws IOException {
+            SegmentFile file = SegmentFile.open(path, slots, slotSize);
+            try {
+                return new SegmentExporter(file, file.claim(workerPort), rawCounters);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+    }
+
+}
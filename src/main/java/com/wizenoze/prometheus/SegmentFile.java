@@ -0,0 +1,377 @@
+package com.wizenoze.prometheus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A file shared by the workers of a host, memory-mapped by each of them, holding a slot per worker
+ * into which it writes the encoded samples of all of its groups on every report, to be pushed by
+ * a single worker of the host, see {@link SegmentExporter} and {@link SegmentPusher}. The pusher is
+ * elected through a lock on a region past the end of the file, which is released when the process
+ * holding it stops or dies.
+ *
+ * The file starts with a header, followed by slots of a fixed size. A slot is claimed by the port
+ * of its worker (under a file lock, as workers start concurrently), and written and read without
+ * locking: its sequence number is odd while it's being written, and readers retry if it was
+ * odd or changed while they were reading. Writers make it odd whatever it was before, so that a
+ * slot left odd by a worker which died while writing it is readable again after the next write.
+ * As mapped memory is accessed without fences (which Java 7 doesn't offer), a reader may see the
+ * sequence of a write along with a part of the slot from before it, hence every write also stores
+ * a checksum of the slot, which readers verify. Slots are laid out as follows:
+ *
+ * <pre>
+ * 0   sequence  (long, 0 if the slot has never been written)
+ * 8   port      (int, 0 if the slot is free)
+ * 12  length    (int, of the data)
+ * 16  timestamp (long, of the last write)
+ * 24  checksum  (int, CRC32 of the port, length, timestamp and data)
+ * 32  data: per group, the number of labels, the labels and the length of the samples followed
+ *     by the samples, with strings as UTF-8 prefixed by their length
+ * </pre>
+ */
+final class SegmentFile {
+
+    private static final int MAGIC = 0x53544d53;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int SEQUENCE = 0;
+    private static final int PORT = 8;
+    private static final int LENGTH = 12;
+    private static final int TIMESTAMP = 16;
+    private static final int CHECKSUM = 24;
+    private static final int DATA = 32;
+
+    private static final int MAX_READ_ATTEMPTS = 8;
+
+    // Locked by the pusher, past the end of the file so as not to block claims
+    private static final long PUSHER_LOCK = Long.MAX_VALUE - 1;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final int slotSize;
+
+    private FileLock pusherLock;
+
+    private SegmentFile(RandomAccessFile file, MappedByteBuffer buffer, int slots, int slotSize) {
+        this.file = file;
+        this.buffer = buffer;
+        this.slots = slots;
+        this.slotSize = slotSize;
+    }
+
+    /**
+     * Opens the given file, creating it with the given number of slots of the given size if it
+     * doesn't exist yet.
+     *
+     * @throws IOException if the file exists with another number or size of slots
+     */
+    static SegmentFile open(File path, int slots, int slotSize) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = HEADER_SIZE + (long) slots * slotSize;
+
+            MappedByteBuffer buffer;
+            try (FileLock ignored = channel.lock(0, HEADER_SIZE, false)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+                if (buffer.getInt(0) == 0) {
+                    buffer.putInt(4, VERSION);
+                    buffer.putInt(8, slots);
+                    buffer.putInt(12, slotSize);
+                    buffer.putInt(0, MAGIC);
+                } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                        || buffer.getInt(8) != slots || buffer.getInt(12) != slotSize) {
+                    throw new IOException("Segment file " + path + " has another layout.");
+                }
+            }
+
+            return new SegmentFile(file, buffer, slots, slotSize);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    static void writeInt(ExpositionBuffer buffer, int value) {
+        int position = buffer.reserve(4);
+        byte[] bytes = buffer.array();
+        bytes[position] = (byte) (value >>> 24);
+        bytes[position + 1] = (byte) (value >>> 16);
+        bytes[position + 2] = (byte) (value >>> 8);
+        bytes[position + 3] = (byte) value;
+    }
+
+    static int readInt(byte[] bytes, int position) {
+        return ((bytes[position] & 0xff) << 24) | ((bytes[position + 1] & 0xff) << 16)
+                | ((bytes[position + 2] & 0xff) << 8) | (bytes[position + 3] & 0xff);
+    }
+
+    /**
+     * Writes a group into the data of a slot.
+     */
+    static void writeGroup(ExpositionBuffer data, Map<String, String> groupingKey,
+            ExpositionBuffer samples) {
+
+        writeInt(data, groupingKey.size());
+        for (Map.Entry<String, String> label : groupingKey.entrySet()) {
+            writeString(data, label.getKey());
+            writeString(data, label.getValue());
+        }
+
+        writeInt(data, samples.size());
+        data.append(samples);
+    }
+
+    /**
+     * Reads the groups of the given data of a slot, keyed by their grouping keys.
+     */
+    static Map<Map<String, String>, ExpositionBuffer> readGroups(ExpositionBuffer data) {
+        Map<Map<String, String>, ExpositionBuffer> groups = new LinkedHashMap<>();
+
+        byte[] bytes = data.array();
+        int position = 0;
+        while (position < data.size()) {
+            int labels = readInt(bytes, position);
+            position += 4;
+
+            Map<String, String> groupingKey = new LinkedHashMap<>();
+            for (int index = 0; index < labels; index++) {
+                int nameLength = readInt(bytes, position);
+                String name = new String(bytes, position + 4, nameLength, StandardCharsets.UTF_8);
+                position += 4 + nameLength;
+
+                int valueLength = readInt(bytes, position);
+                String value =
+                        new String(bytes, position + 4, valueLength, StandardCharsets.UTF_8);
+                position += 4 + valueLength;
+
+                groupingKey.put(name, value);
+            }
+
+            int length = readInt(bytes, position);
+            ExpositionBuffer samples = new ExpositionBuffer(length);
+            samples.append(bytes, position + 4, length);
+            position += 4 + length;
+
+            groups.put(groupingKey, samples);
+        }
+
+        return groups;
+    }
+
+    private static void writeString(ExpositionBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeInt(buffer, bytes.length);
+        buffer.append(bytes);
+    }
+
+    int getSlots() {
+        return slots;
+    }
+
+    /**
+     * Returns the largest data a slot can hold.
+     */
+    int getCapacity() {
+        return slotSize - DATA;
+    }
+
+    /**
+     * Claims the slot of the given port, i.e. the slot it had before or a free one.
+     *
+     * @return the index of the slot
+     * @throws IOException if all slots are taken
+     */
+    int claim(int port) throws IOException {
+        try (FileLock ignored = file.getChannel().lock(0, HEADER_SIZE, false)) {
+            int free = -1;
+            for (int slot = 0; slot < slots; slot++) {
+                int slotPort = buffer.getInt(offset(slot) + PORT);
+                if (slotPort == port) {
+                    return slot;
+                }
+
+                if (slotPort == 0 && free < 0) {
+                    free = slot;
+                }
+            }
+
+            if (free < 0) {
+                throw new IOException("All " + slots + " slots of the segment file are taken.");
+            }
+
+            int offset = offset(free);
+            long sequence = buffer.getLong(offset + SEQUENCE) | 1;
+            long timestamp = buffer.getLong(offset + TIMESTAMP);
+
+            buffer.putLong(offset + SEQUENCE, sequence);
+            buffer.putInt(offset + LENGTH, 0);
+            buffer.putInt(offset + PORT, port);
+            buffer.putInt(offset + CHECKSUM, checksum(port, timestamp, null, 0));
+            buffer.putLong(offset + SEQUENCE, sequence + 1);
+
+            return free;
+        }
+    }
+
+    /**
+     * Replaces the data of the given slot.
+     *
+     * @throws IOException if the data doesn't fit into the slot
+     */
+    void write(int slot, ExpositionBuffer data, long timestamp) throws IOException {
+        if (data.size() > getCapacity()) {
+            throw new IOException("Samples of " + data.size()
+                    + " bytes don't fit into a slot of the segment file.");
+        }
+
+        int offset = offset(slot);
+        long sequence = buffer.getLong(offset + SEQUENCE) | 1;
+
+        buffer.putLong(offset + SEQUENCE, sequence);
+
+        ByteBuffer region = buffer.duplicate();
+        region.position(offset + DATA);
+        region.put(data.array(), 0, data.size());
+        buffer.putInt(offset + LENGTH, data.size());
+        buffer.putLong(offset + TIMESTAMP, timestamp);
+        buffer.putInt(offset + CHECKSUM, checksum(buffer.getInt(offset + PORT), timestamp,
+                data.array(), data.size()));
+
+        buffer.putLong(offset + SEQUENCE, sequence + 1);
+    }
+
+    /**
+     * Frees the given slot.
+     */
+    void release(int slot) {
+        int offset = offset(slot);
+        long sequence = buffer.getLong(offset + SEQUENCE) | 1;
+        long timestamp = buffer.getLong(offset + TIMESTAMP);
+
+        buffer.putLong(offset + SEQUENCE, sequence);
+        buffer.putInt(offset + LENGTH, 0);
+        buffer.putInt(offset + PORT, 0);
+        buffer.putInt(offset + CHECKSUM, checksum(0, timestamp, null, 0));
+        buffer.putLong(offset + SEQUENCE, sequence + 1);
+    }
+
+    /**
+     * Reads the given slot into the given snapshot.
+     *
+     * @return {@code false} if it couldn't be read consistently, as it was written all the time
+     */
+    boolean read(int slot, Snapshot snapshot) {
+        int offset = offset(slot);
+
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long sequence = buffer.getLong(offset + SEQUENCE);
+            if (sequence == 0) {
+                snapshot.data.reset();
+                snapshot.sequence = 0;
+                snapshot.port = 0;
+                snapshot.timestamp = 0;
+                return true;
+            }
+
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+
+            int port = buffer.getInt(offset + PORT);
+            int length = Math.min(Math.max(buffer.getInt(offset + LENGTH), 0), getCapacity());
+            long timestamp = buffer.getLong(offset + TIMESTAMP);
+            int checksum = buffer.getInt(offset + CHECKSUM);
+
+            ExpositionBuffer data = snapshot.data;
+            data.reset();
+            int position = data.reserve(length);
+            ByteBuffer region = buffer.duplicate();
+            region.position(offset + DATA);
+            region.get(data.array(), position, length);
+
+            if (buffer.getLong(offset + SEQUENCE) == sequence
+                    && checksum(port, timestamp, data.array(), length) == checksum) {
+                snapshot.sequence = sequence;
+                snapshot.port = port;
+                snapshot.timestamp = timestamp;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Tries to become the pusher of the file, unless this file is the pusher already.
+     *
+     * @return whether this file is the pusher
+     */
+    synchronized boolean tryLockPusher() throws IOException {
+        if (pusherLock == null) {
+            try {
+                pusherLock = file.getChannel().tryLock(PUSHER_LOCK, 1, false);
+            } catch (OverlappingFileLockException e) {
+                // Held by another pusher of this JVM
+            }
+        }
+
+        return pusherLock != null;
+    }
+
+    synchronized boolean isPusher() {
+        return pusherLock != null;
+    }
+
+    /**
+     * Closes the file, releasing the pusher lock if this file held it.
+     */
+    void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Returns the checksum of a slot holding the given data, which starts the given array.
+     */
+    private static int checksum(int port, long timestamp, byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(16).putInt(port).putInt(length).putLong(timestamp).array());
+        if (length > 0) {
+            crc.update(data, 0, length);
+        }
+
+        return (int) crc.getValue();
+    }
+
+    private int offset(int slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+
+    /**
+     * The contents of a slot, as last read.
+     */
+    static final class Snapshot {
+
+        final ExpositionBuffer data = new ExpositionBuffer();
+
+        long sequence;
+        int port;
+        long timestamp;
+
+    }
+
+}
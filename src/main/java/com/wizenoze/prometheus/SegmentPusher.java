@@ -0,0 +1,276 @@
+package com.wizenoze.prometheus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pushes the metrics written by the {@link SegmentExporter}s of all workers of a host into their
+ * shared file, in a single batch per period. Every worker runs a pusher, but only the one which
+ * holds the lock of the file pushes; the others try to take it over on every period, so that
+ * another worker pushes once the pusher has stopped or died.
+ *
+ * Slots which haven't been written since the previous push are skipped. Groups which are gone
+ * from a slot, as well as all groups of a slot which has been freed or hasn't been written for a
+ * while (e.g. because its worker crashed), are deleted from the gateway.
+ */
+public class SegmentPusher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentPusher.class);
+
+    private final SegmentFile file;
+    private final MetricsExporter exporter;
+    private final long staleAfterMillis;
+    private final boolean deleteStaleGroups;
+    private final ScheduledExecutorService executor;
+
+    private final SegmentFile.Snapshot snapshot = new SegmentFile.Snapshot();
+    private final long[] sequences;
+    private final Set<Map<String, String>>[] pushedGroups;
+
+    @SuppressWarnings("unchecked")
+    private SegmentPusher(SegmentFile file,
+            MetricsExporter exporter,
+            long staleAfterMillis,
+            boolean deleteStaleGroups) {
+
+        this.file = file;
+        this.exporter = exporter;
+        this.staleAfterMillis = staleAfterMillis;
+        this.deleteStaleGroups = deleteStaleGroups;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("prometheus-segment-pusher"));
+
+        sequences = new long[file.getSlots()];
+        pushedGroups = new Set[file.getSlots()];
+        for (int slot = 0; slot < pushedGroups.length; slot++) {
+            sequences[slot] = -1;
+            pushedGroups[slot] = Collections.emptySet();
+        }
+    }
+
+    /**
+     * Returns a new {@link SegmentPusher.Builder} for {@link SegmentPusher}.
+     *
+     * @param path the file shared by the workers of the host
+     * @return a {@link SegmentPusher.Builder} instance for a {@link SegmentPusher}
+     */
+    public static SegmentPusher.Builder forFile(File path) {
+        return new SegmentPusher.Builder(path);
+    }
+
+    /**
+     * Starts pushing at the given period.
+     */
+    public void start(long period, TimeUnit unit) {
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (file.tryLockPusher()) {
+                        push();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.error("Unable to push segments", e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops pushing and closes the file, after a last push if this is the pusher of the file, so
+     * that the groups of slots freed meanwhile are deleted.
+     */
+    public void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            if (file.isPusher()) {
+                push();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to push segments", e);
+        }
+
+        try {
+            exporter.close();
+            file.close();
+        } catch (IOException e) {
+            LOGGER.error("Unable to close segment file", e);
+        }
+    }
+
+    /**
+     * Pushes the groups of all slots written since the previous push.
+     */
+    synchronized void push() {
+        long now = System.currentTimeMillis();
+
+        for (int slot = 0; slot < sequences.length; slot++) {
+            if (!file.read(slot, snapshot)) {
+                LOGGER.warn("Skipping slot {} of segment file, it's being written.", slot);
+                continue;
+            }
+
+            boolean live = snapshot.port != 0 && now - snapshot.timestamp <= staleAfterMillis;
+            if (live && snapshot.sequence == sequences[slot]) {
+                continue;
+            }
+
+            Map<Map<String, String>, ExpositionBuffer> groups = live
+                    ? SegmentFile.readGroups(snapshot.data)
+                    : Collections.<Map<String, String>, ExpositionBuffer>emptyMap();
+
+            if (!live && sequences[slot] < 0 && snapshot.port != 0) {
+                // Pushed by a previous pusher, before the worker went stale
+                pushedGroups[slot] = SegmentFile.readGroups(snapshot.data).keySet();
+            }
+
+            for (Map.Entry<Map<String, String>, ExpositionBuffer> group : groups.entrySet()) {
+                try {
+                    exporter.export(group.getValue(), group.getKey());
+                } catch (IOException e) {
+                    LOGGER.error("Unable to push to Prometheus", e);
+                }
+            }
+
+            if (deleteStaleGroups) {
+                for (Map<String, String> groupingKey : pushedGroups[slot]) {
+                    if (!groups.containsKey(groupingKey)) {
+                        delete(groupingKey);
+                    }
+                }
+            }
+
+            sequences[slot] = snapshot.sequence;
+            pushedGroups[slot] = groups.isEmpty()
+                    ? Collections.<Map<String, String>>emptySet()
+                    : new HashSet<>(groups.keySet());
+        }
+
+        try {
+            exporter.flush();
+        } catch (IOException e) {
+            LOGGER.error("Unable to push to Prometheus", e);
+        }
+    }
+
+    private void delete(Map<String, String> groupingKey) {
+        try {
+            exporter.delete(groupingKey);
+        } catch (IOException e) {
+            LOGGER.error("Unable to delete from Prometheus", e);
+        }
+    }
+
+    /**
+     * A builder for {@link SegmentPusher} instances. Defaults to a file of 16 slots of 1 MiB,
+     * adding to groups, deleting stale groups and considering slots stale after a minute without
+     * writes.
+     */
+    public static class Builder {
+
+        private final File path;
+        private int slots;
+        private int slotSize;
+        private boolean replaceGroups;
+        private boolean deleteStaleGroups;
+        private long staleAfterMillis;
+
+        private Builder(File path) {
+            this.path = path;
+            this.slots = 16;
+            this.slotSize = 1024 * 1024;
+            this.replaceGroups = false;
+            this.deleteStaleGroups = true;
+            this.staleAfterMillis = TimeUnit.MINUTES.toMillis(1);
+        }
+
+        /**
+         * Create the file with the given number of slots, see {@link
+         * SegmentExporter.Builder#slots(int)}.
+         *
+         * @param slots a number of slots
+         * @return {@code this}
+         */
+        public SegmentPusher.Builder slots(int slots) {
+            this.slots = slots;
+            return this;
+        }
+
+        /**
+         * Create the file with slots of the given size, see {@link
+         * SegmentExporter.Builder#slotSize(int)}.
+         *
+         * @param slotSize a number of bytes
+         * @return {@code this}
+         */
+        public SegmentPusher.Builder slotSize(int slotSize) {
+            this.slotSize = slotSize;
+            return this;
+        }
+
+        /**
+         * Replace the metrics of a group on every push (PUT), instead of adding them (POST).
+         *
+         * @param replaceGroups whether to replace groups
+         * @return {@code this}
+         */
+        public SegmentPusher.Builder replaceGroups(boolean replaceGroups) {
+            this.replaceGroups = replaceGroups;
+            return this;
+        }
+
+        /**
+         * Delete groups from the gateway once they're gone from their slot.
+         *
+         * @param deleteStaleGroups whether to delete stale groups
+         * @return {@code this}
+         */
+        public SegmentPusher.Builder deleteStaleGroups(boolean deleteStaleGroups) {
+            this.deleteStaleGroups = deleteStaleGroups;
+            return this;
+        }
+
+        /**
+         * Consider slots which haven't been written for the given time stale, like freed ones.
+         *
+         * @param staleAfter an amount of time, longer than the report period of the workers
+         * @param unit the unit of {@code staleAfter}
+         * @return {@code this}
+         */
+        public SegmentPusher.Builder staleAfter(long staleAfter, TimeUnit unit) {
+            this.staleAfterMillis = unit.toMillis(staleAfter);
+            return this;
+        }
+
+        /**
+         * Builds a {@link SegmentPusher} with the given properties, pushing using the given {@link
+         * PushGatewayWrapper}.
+         *
+         * @param pushGatewayWrapper a {@link PushGatewayWrapper}
+         * @return a {@link SegmentPusher}
+         * @throws IOException if the file couldn't be opened
+         */
+        public SegmentPusher build(PushGatewayWrapper pushGatewayWrapper) throws IOException {
+            return new SegmentPusher(SegmentFile.open(path, slots, slotSize),
+                    new PushGatewayExporter(pushGatewayWrapper, replaceGroups),
+                    staleAfterMillis,
+                    deleteStaleGroups);
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.wizenoze.prometheus;
+
+/**
+ * A single series of a {@link SeriesGroup}, with its name (and labels, depending on the {@link
+ * MetricsExporter}) encoded up front, so that writing its value on every report doesn't need to
+ * build any strings. Its last value is kept in the {@link SeriesTable} of the reporter.
+ */
+final class Series {
+
+    private final SeriesGroup group;
+    private final String name;
+    private final byte[] encodedSeries;
+    private final SeriesTable table;
+    private final int id;
+
+    private boolean conflictWarned;
+
+    Series(SeriesGroup group, String name, byte[] encodedSeries, SeriesTable table) {
+        this.group = group;
+        this.name = name;
+        this.encodedSeries = encodedSeries;
+        this.table = table;
+        this.id = table.add();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Returns {@code true} if the group of the series has been removed, in which case the series
+     * must be looked up again.
+     */
+    boolean isRemoved() {
+        return group.isRemoved();
+    }
+
+    boolean hasValue() {
+        return table.hasValue(id);
+    }
+
+    /**
+     * Returns the last value written into the series, or {@code NaN} if there's none.
+     */
+    double getLastValue() {
+        return table.getValue(id);
+    }
+
+    /**
+     * Writes the value of the series into the buffer of its group.
+     *
+     * @return {@code false} if the series has already been written in the given cycle
+     */
+    boolean write(long cycle, double value, long timestamp) {
+        if (table.getCycle(id) == cycle) {
+            return false;
+        }
+
+        table.write(id, cycle, value);
+        group.write(cycle, encodedSeries, value, timestamp);
+
+        return true;
+    }
+
+    /**
+     * Returns {@code true} the first time it's called, so that a metric yielding the same series
+     * as another one is only warned about once, rather than on every report.
+     */
+    boolean warnConflict() {
+        if (conflictWarned) {
+            return false;
+        }
+
+        conflictWarned = true;
+        return true;
+    }
+
+    /**
+     * Releases the id of the series, once its group has been removed.
+     */
+    void release() {
+        table.release(id);
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.wizenoze.prometheus;
+
+import java.util.Map;
+
+/**
+ * Describes a series to be encoded by a {@link MetricsExporter}.
+ */
+public final class SeriesDescriptor {
+
+    private final String name;
+    private final String metricName;
+    private final String help;
+    private final SeriesKind kind;
+    private final double quantile;
+    private final double upperBound;
+    private final Map<String, String> groupingKey;
+
+    SeriesDescriptor(String name, String metricName, String help, SeriesKind kind,
+            double quantile, double upperBound, Map<String, String> groupingKey) {
+
+        this.name = name;
+        this.metricName = metricName;
+        this.help = help;
+        this.kind = kind;
+        this.quantile = quantile;
+        this.upperBound = upperBound;
+        this.groupingKey = groupingKey;
+    }
+
+    /**
+     * Returns the name of the series, e.g. {@code storm_worker_latency_p99}.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the name of the metric the series belongs to, e.g. {@code storm_worker_latency}.
+     */
+    public String getMetricName() {
+        return metricName;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    public SeriesKind getKind() {
+        return kind;
+    }
+
+    /**
+     * Returns the quantile of a {@link SeriesKind#SUMMARY_QUANTILE} series, between 0 and 1.
+     */
+    public double getQuantile() {
+        return quantile;
+    }
+
+    /**
+     * Returns the upper bound of a {@link SeriesKind#HISTOGRAM_BUCKET} series, the {@code le}
+     * label of Prometheus, which is {@code +Inf} for the last bucket.
+     */
+    public double getUpperBound() {
+        return upperBound;
+    }
+
+    /**
+     * Returns what identifies the series within its group, i.e. its name and upper bound.
+     */
+    String getKey() {
+        return kind == SeriesKind.HISTOGRAM_BUCKET ? name + '{' + upperBound + '}' : name;
+    }
+
+    /**
+     * Returns the labels of the group the series belongs to.
+     */
+    public Map<String, String> getGroupingKey() {
+        return groupingKey;
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.wizenoze.prometheus;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The series sharing the same grouping key, which are pushed together in a single request. The
+ * group and its buffer are kept from one report to the next, hence they're encoded into the same
+ * bytes over and over again.
+ */
+final class SeriesGroup {
+
+    private final Map<String, String> groupingKey;
+    private final MetricsExporter exporter;
+    private final SeriesTable table;
+    private final ExpositionBuffer buffer = new ExpositionBuffer();
+    private final Map<String, Series> series = new HashMap<>();
+
+    private long cycle = -1;
+    private boolean removed;
+
+    SeriesGroup(Map<String, String> groupingKey, MetricsExporter exporter, SeriesTable table) {
+        this.groupingKey = groupingKey;
+        this.exporter = exporter;
+        this.table = table;
+    }
+
+    Map<String, String> getGroupingKey() {
+        return groupingKey;
+    }
+
+    ExpositionBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Writes a sample into the buffer of the group, clearing it first if nothing has been written
+     * into it in the given cycle yet.
+     */
+    void write(long cycle, byte[] encodedSeries, double value, long timestamp) {
+        if (this.cycle != cycle) {
+            this.cycle = cycle;
+            buffer.reset();
+        }
+
+        exporter.writeSample(buffer, encodedSeries, value, timestamp);
+    }
+
+    /**
+     * Returns the series with the name (and upper bound) of the given one, creating it if needed.
+     *
+     * @param descriptor the series, used only when it's created
+     */
+    Series getSeries(SeriesDescriptor descriptor) {
+        String key = descriptor.getKey();
+
+        Series result = series.get(key);
+        if (result == null) {
+            result = new Series(this, descriptor.getName(), exporter.encodeSeries(descriptor),
+                    table);
+            series.put(key, result);
+        }
+
+        return result;
+    }
+
+    boolean isReportedIn(long cycle) {
+        return this.cycle == cycle;
+    }
+
+    boolean isRemoved() {
+        return removed;
+    }
+
+    /**
+     * Removes the group, releasing the ids of its series.
+     */
+    void remove() {
+        if (removed) {
+            return;
+        }
+
+        removed = true;
+        for (Series value : series.values()) {
+            value.release();
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.wizenoze.prometheus;
+
+/**
+ * What a series represents, so that exporters supporting richer types than Prometheus gauges can
+ * map it accordingly.
+ */
+public enum SeriesKind {
+
+    /**
+     * A value which can go up and down, e.g. the value of a gauge, a rate or the mean of a
+     * histogram.
+     */
+    GAUGE,
+
+    /**
+     * The count of a counter or a meter, which only goes up.
+     */
+    COUNTER,
+
+    /**
+     * The count of a histogram or a timer.
+     */
+    SUMMARY_COUNT,
+
+    /**
+     * A quantile of a histogram or a timer, including its minimum (0) and maximum (1).
+     */
+    SUMMARY_QUANTILE,
+
+    /**
+     * The count of a histogram or a timer exported as a histogram, which is written before its
+     * sum and buckets.
+     */
+    HISTOGRAM_COUNT,
+
+    /**
+     * The sum of the values of a histogram or a timer exported as a histogram.
+     */
+    HISTOGRAM_SUM,
+
+    /**
+     * The number of values of a histogram or a timer exported as a histogram which are less than
+     * or equal to the upper bound of the bucket, written in increasing order of the bounds.
+     */
+    HISTOGRAM_BUCKET
+
+}
@@ -0,0 +1,241 @@
+package com.wizenoze.prometheus;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The last values written into the series of a reporter, along with the cycles they were written
+ * in, kept in primitive arrays indexed by an id assigned to every series
+ * when it's created, instead of in a map or an object per series.
+ *
+ * The arrays are either on the heap, or in a single direct buffer (see {@link #offHeap()}), which
+ * takes the series off the garbage collector's hands altogether. Ids of removed series are reused.
+ * Not thread-safe, the reporter only accesses it while reporting.
+ */
+abstract class SeriesTable {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Flags of a series
+    private static final byte IN_USE = 1;
+    private static final byte HAS_VALUE = 2;
+
+    private int capacity;
+    private int next;
+    private int size;
+
+    private int[] freeIds = new int[16];
+    private int freeCount;
+
+    private SeriesTable(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns a table keeping its arrays on the heap.
+     */
+    static SeriesTable onHeap() {
+        return new HeapSeriesTable(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Returns a table keeping its arrays in a direct buffer.
+     */
+    static SeriesTable offHeap() {
+        return new DirectSeriesTable(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Assigns an id to a new series, which hasn't got a value and hasn't been written in any cycle
+     * yet.
+     */
+    final int add() {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            if (next == capacity) {
+                capacity *= 2;
+                grow(capacity);
+            }
+            id = next++;
+        }
+
+        set(id, -1, Double.NaN);
+        setFlags(id, IN_USE);
+        size++;
+
+        return id;
+    }
+
+    /**
+     * Releases the id of a removed series, so that it can be assigned to another one.
+     */
+    final void release(int id) {
+        if ((getFlags(id) & IN_USE) == 0) {
+            return;
+        }
+
+        setFlags(id, (byte) 0);
+        size--;
+
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, 2 * freeCount);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    /**
+     * Returns the number of series having an id.
+     */
+    final int size() {
+        return size;
+    }
+
+    /**
+     * Records the value written into the given series.
+     */
+    final void write(int id, long cycle, double value) {
+        set(id, cycle, value);
+        setFlags(id, (byte) (IN_USE | HAS_VALUE));
+    }
+
+    final boolean hasValue(int id) {
+        return (getFlags(id) & HAS_VALUE) != 0;
+    }
+
+    /**
+     * Returns the last value written into the given series, or {@code NaN} if there's none.
+     */
+    abstract double getValue(int id);
+
+    /**
+     * Returns the cycle the given series was last written in, or {@code -1} if there's none.
+     */
+    abstract long getCycle(int id);
+
+    abstract void set(int id, long cycle, double value);
+
+    abstract byte getFlags(int id);
+
+    abstract void setFlags(int id, byte flags);
+
+    abstract void grow(int capacity);
+
+    private static final class HeapSeriesTable extends SeriesTable {
+
+        private double[] values;
+        private long[] cycles;
+        private byte[] flags;
+
+        HeapSeriesTable(int capacity) {
+            super(capacity);
+            values = new double[capacity];
+            cycles = new long[capacity];
+            flags = new byte[capacity];
+        }
+
+        @Override
+        double getValue(int id) {
+            return values[id];
+        }
+
+        @Override
+        long getCycle(int id) {
+            return cycles[id];
+        }
+
+        @Override
+        void set(int id, long cycle, double value) {
+            cycles[id] = cycle;
+            values[id] = value;
+        }
+
+        @Override
+        byte getFlags(int id) {
+            return flags[id];
+        }
+
+        @Override
+        void setFlags(int id, byte flags) {
+            this.flags[id] = flags;
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+            cycles = Arrays.copyOf(cycles, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+        }
+
+    }
+
+    /**
+     * Keeps the arrays one after the other in a single buffer, so that a series takes exactly 17
+     * bytes.
+     */
+    private static final class DirectSeriesTable extends SeriesTable {
+
+        private ByteBuffer buffer;
+
+        // The length of every array in the buffer
+        private int length;
+
+        DirectSeriesTable(int capacity) {
+            super(capacity);
+            this.buffer = ByteBuffer.allocateDirect(17 * capacity);
+            this.length = capacity;
+        }
+
+        @Override
+        double getValue(int id) {
+            return buffer.getDouble(8 * id);
+        }
+
+        @Override
+        long getCycle(int id) {
+            return buffer.getLong(8 * (length + id));
+        }
+
+        @Override
+        void set(int id, long cycle, double value) {
+            buffer.putDouble(8 * id, value);
+            buffer.putLong(8 * (length + id), cycle);
+        }
+
+        @Override
+        byte getFlags(int id) {
+            return buffer.get(16 * length + id);
+        }
+
+        @Override
+        void setFlags(int id, byte flags) {
+            buffer.put(16 * length + id, flags);
+        }
+
+        @Override
+        void grow(int capacity) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(17 * capacity);
+
+            // Copies every array to its offset in the grown buffer
+            int[] sizes = {8, 8, 1};
+            int offset = 0;
+            int grownOffset = 0;
+            for (int size : sizes) {
+                ByteBuffer array = buffer.duplicate();
+                array.limit(offset + size * length).position(offset);
+                grown.position(grownOffset);
+                grown.put(array);
+
+                offset += size * length;
+                grownOffset += size * capacity;
+            }
+
+            grown.clear();
+            buffer = grown;
+            this.length = capacity;
+        }
+
+    }
+
+}
@@ -0,0 +1,463 @@
+package com.wizenoze.prometheus;
+
+import io.prometheus.client.CollectorRegistry;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pushes to a Prometheus Push Gateway on behalf of all reporters of the JVM targeting it, e.g.
+ * the reporters of the workers of a {@code LocalCluster}, so that they share a single sending
+ * thread, with its connection kept alive, and a single circuit breaker.
+ *
+ * Pushes are queued and sent in the background. Pushes of the same group by several reporters
+ * which are queued at the same time are merged into a single request, while a group pushed again
+ * by the same reporter before it has been sent only keeps its latest metrics. Pushes sharing
+ * metric families (e.g. the metrics of the reporters themselves) aren't merged, as the gateway
+ * rejects families appearing twice in a request, but sent one after the other instead, the first
+ * one replacing the group if it was pushed with PUT, the others adding to it.
+ *
+ * Once {@link #FAILURE_THRESHOLD} requests in a row have failed, the circuit breaker opens:
+ * further pushes are rejected and queued ones are dropped for {@link #OPEN_MILLIS}, after which
+ * requests are tried again.
+ *
+ * Engines are reference counted: {@link #acquire(String)} returns a client of the engine of the
+ * given gateway, which is created if needed, and closing the last client of an engine sends
+ * whatever is still queued and shuts the engine down.
+ */
+public final class SharedPushEngine implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedPushEngine.class);
+
+    static final int FAILURE_THRESHOLD = 5;
+    static final long OPEN_MILLIS = 30 * 1000;
+
+    // Beyond this, further groups are rejected until the queue has been sent
+    private static final int MAX_QUEUED_GROUPS = 10000;
+
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10 * 1000;
+
+    private static final String POST = "POST";
+    private static final String PUT = "PUT";
+    private static final String DELETE = "DELETE";
+
+    private static final byte[] TYPE = "# TYPE ".getBytes(StandardCharsets.UTF_8);
+
+    private static final Map<String, SharedPushEngine> ENGINES = new HashMap<>();
+
+    private final String httpAddress;
+    private final PushGatewayWrapper pushGatewayWrapper;
+
+    // Guarded by this
+    private Map<Request, Map<Client, byte[]>> queue = new LinkedHashMap<>();
+    private int references;
+    private boolean closed;
+    private int failures;
+    private long openUntilNanos;
+
+    private Thread thread;
+
+    SharedPushEngine(String httpAddress, PushGatewayWrapper pushGatewayWrapper) {
+        this.httpAddress = httpAddress;
+        this.pushGatewayWrapper = pushGatewayWrapper;
+    }
+
+    /**
+     * Returns a new client of the engine pushing to the given gateway, creating the engine if
+     * there isn't one yet.
+     *
+     * @param httpAddress the address of the gateway, e.g. {@code http://localhost:9091}
+     * @return a client, which must be closed once it's no longer used
+     */
+    public static Client acquire(String httpAddress) {
+        synchronized (ENGINES) {
+            SharedPushEngine engine = ENGINES.get(httpAddress);
+            if (engine == null) {
+                engine = new SharedPushEngine(httpAddress, new PushGatewayWrapperImpl(httpAddress));
+                engine.start();
+                ENGINES.put(httpAddress, engine);
+            }
+
+            return engine.newClient();
+        }
+    }
+
+    void start() {
+        thread = new DaemonThreadFactory("prometheus-push-engine").newThread(this);
+        thread.start();
+    }
+
+    synchronized Client newClient() {
+        references++;
+        return new Client(this);
+    }
+
+    /**
+     * Sends the queued requests until the last client has been closed and the queue is empty.
+     */
+    @Override
+    public void run() {
+        try {
+            boolean running = true;
+            while (running) {
+                running = sendQueued(true);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends the requests queued so far.
+     *
+     * @param await whether to wait for requests to be queued first
+     * @return {@code false} if the engine has been closed and there's nothing left to send
+     */
+    boolean sendQueued(boolean await) throws InterruptedException {
+        Map<Request, Map<Client, byte[]>> requests;
+        synchronized (this) {
+            while (await && queue.isEmpty() && !closed) {
+                wait();
+            }
+
+            if (queue.isEmpty()) {
+                return !closed;
+            }
+
+            requests = queue;
+            queue = new LinkedHashMap<>();
+        }
+
+        for (Map.Entry<Request, Map<Client, byte[]>> entry : requests.entrySet()) {
+            send(entry.getKey(), entry.getValue().values());
+        }
+
+        return true;
+    }
+
+    private void send(Request request, Collection<byte[]> parts) {
+        if (isOpen()) {
+            LOGGER.debug("Dropping {} of {}, the circuit breaker is open.", request.method,
+                    request.groupingKey);
+            return;
+        }
+
+        try {
+            if (DELETE.equals(request.method)) {
+                pushGatewayWrapper.delete(request.job, request.groupingKey);
+            } else {
+                List<ExpositionBuffer> bodies = merge(parts);
+                for (int index = 0; index < bodies.size(); index++) {
+                    if (PUT.equals(request.method) && index == 0) {
+                        pushGatewayWrapper.push(bodies.get(index), request.job,
+                                request.groupingKey);
+                    } else {
+                        pushGatewayWrapper.pushAdd(bodies.get(index), request.job,
+                                request.groupingKey);
+                    }
+                }
+            }
+
+            recordSuccess();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Unable to push to Prometheus", e);
+            recordFailure();
+        }
+    }
+
+    /**
+     * Merges the given parts into as few bodies as possible, such that no two parts of a body
+     * share a metric family.
+     */
+    static List<ExpositionBuffer> merge(Collection<byte[]> parts) {
+        List<ExpositionBuffer> bodies = new ArrayList<>();
+        if (parts.size() == 1) {
+            ExpositionBuffer body = new ExpositionBuffer();
+            body.append(parts.iterator().next());
+            bodies.add(body);
+            return bodies;
+        }
+
+        List<Set<String>> bodyFamilies = new ArrayList<>();
+        for (byte[] part : parts) {
+            Set<String> families = getFamilies(part);
+
+            int index = 0;
+            while (index < bodies.size()
+                    && !Collections.disjoint(bodyFamilies.get(index), families)) {
+                index++;
+            }
+
+            if (index == bodies.size()) {
+                bodies.add(new ExpositionBuffer());
+                bodyFamilies.add(new HashSet<String>());
+            }
+
+            bodies.get(index).append(part);
+            bodyFamilies.get(index).addAll(families);
+        }
+
+        return bodies;
+    }
+
+    /**
+     * Returns the names of the families declared by {@code # TYPE} lines of the given metrics,
+     * along with the names of their samples, which may come without one.
+     */
+    private static Set<String> getFamilies(byte[] metrics) {
+        Set<String> families = new HashSet<>();
+
+        int start = 0;
+        while (start < metrics.length) {
+            int end = start;
+            while (end < metrics.length && metrics[end] != '\n') {
+                end++;
+            }
+
+            if (startsWith(metrics, start, end, TYPE)) {
+                families.add(readName(metrics, start + TYPE.length, end));
+            } else if (start < end && metrics[start] != '#') {
+                families.add(readName(metrics, start, end));
+            }
+
+            start = end + 1;
+        }
+
+        return families;
+    }
+
+    private static boolean startsWith(byte[] bytes, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+
+        for (int index = 0; index < prefix.length; index++) {
+            if (bytes[start + index] != prefix[index]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static String readName(byte[] bytes, int start, int end) {
+        int position = start;
+        while (position < end && bytes[position] != ' ' && bytes[position] != '{') {
+            position++;
+        }
+
+        return new String(bytes, start, position - start, StandardCharsets.UTF_8);
+    }
+
+    private synchronized boolean isOpen() {
+        return failures >= FAILURE_THRESHOLD && System.nanoTime() - openUntilNanos < 0;
+    }
+
+    private synchronized void recordSuccess() {
+        failures = 0;
+    }
+
+    private synchronized void recordFailure() {
+        failures++;
+        if (failures >= FAILURE_THRESHOLD) {
+            if (failures == FAILURE_THRESHOLD) {
+                LOGGER.warn("{} requests to {} failed in a row, pausing pushes for {} ms.",
+                        failures, httpAddress, OPEN_MILLIS);
+            }
+            openUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OPEN_MILLIS);
+        }
+    }
+
+    /**
+     * Queues the metrics of a group pushed by the given client, replacing those it has queued
+     * before for the same group, if they haven't been sent yet.
+     */
+    private synchronized void enqueue(Client client, String method, String job,
+            Map<String, String> groupingKey, byte[] metrics) throws IOException {
+
+        if (isOpen()) {
+            throw new IOException("Not pushing to " + httpAddress
+                    + ", the circuit breaker is open after " + failures + " failures.");
+        }
+
+        Request request = new Request(method, job, groupingKey);
+        Map<Client, byte[]> parts = queue.get(request);
+        if (parts == null) {
+            if (queue.size() >= MAX_QUEUED_GROUPS) {
+                throw new IOException("Not pushing to " + httpAddress + ", "
+                        + MAX_QUEUED_GROUPS + " groups are queued already.");
+            }
+
+            parts = new LinkedHashMap<>();
+            queue.put(request, parts);
+        }
+
+        parts.put(client, metrics);
+        notifyAll();
+    }
+
+    /**
+     * Queues the deletion of a group, dropping the pushes of the group the given client has
+     * queued before.
+     */
+    private synchronized void enqueueDelete(Client client, String job,
+            Map<String, String> groupingKey) throws IOException {
+
+        Iterator<Map.Entry<Request, Map<Client, byte[]>>> iterator = queue.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Request, Map<Client, byte[]>> entry = iterator.next();
+            Request request = entry.getKey();
+            if (!DELETE.equals(request.method) && request.job.equals(job)
+                    && request.groupingKey.equals(groupingKey)) {
+
+                entry.getValue().remove(client);
+                if (entry.getValue().isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        enqueue(client, DELETE, job, groupingKey, null);
+    }
+
+    private void release() {
+        synchronized (ENGINES) {
+            synchronized (this) {
+                if (--references > 0) {
+                    return;
+                }
+
+                closed = true;
+                notifyAll();
+            }
+
+            if (ENGINES.get(httpAddress) == this) {
+                ENGINES.remove(httpAddress);
+            }
+        }
+
+        if (thread != null) {
+            try {
+                thread.join(SHUTDOWN_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A reporter's handle on a shared engine. Pushes of {@link ExpositionBuffer}s and deletions
+     * are queued, whereas pushes of {@link CollectorRegistry}s are sent right away.
+     */
+    public static final class Client implements PushGatewayWrapper, Closeable {
+
+        private final SharedPushEngine engine;
+
+        private boolean closed;
+
+        private Client(SharedPushEngine engine) {
+            this.engine = engine;
+        }
+
+        SharedPushEngine getEngine() {
+            return engine;
+        }
+
+        @Override
+        public void pushAdd(CollectorRegistry registry, String job) throws IOException {
+            engine.pushGatewayWrapper.pushAdd(registry, job);
+        }
+
+        @Override
+        public void pushAdd(CollectorRegistry registry, String job,
+                Map<String, String> groupingKey) throws IOException {
+
+            engine.pushGatewayWrapper.pushAdd(registry, job, groupingKey);
+        }
+
+        @Override
+        public void push(CollectorRegistry registry, String job, Map<String, String> groupingKey)
+                throws IOException {
+
+            engine.pushGatewayWrapper.push(registry, job, groupingKey);
+        }
+
+        @Override
+        public void pushAdd(ExpositionBuffer metrics, String job, Map<String, String> groupingKey)
+                throws IOException {
+
+            engine.enqueue(this, POST, job, groupingKey, metrics.toByteArray());
+        }
+
+        @Override
+        public void push(ExpositionBuffer metrics, String job, Map<String, String> groupingKey)
+                throws IOException {
+
+            engine.enqueue(this, PUT, job, groupingKey, metrics.toByteArray());
+        }
+
+        @Override
+        public void delete(String job, Map<String, String> groupingKey) throws IOException {
+            engine.enqueueDelete(this, job, groupingKey);
+        }
+
+        /**
+         * Releases the engine, which is shut down once all of its clients have been closed.
+         */
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                engine.release();
+            }
+        }
+
+    }
+
+    /**
+     * A request to the gateway, which the pushes of all clients are merged into.
+     */
+    private static final class Request {
+
+        final String method;
+        final String job;
+        final Map<String, String> groupingKey;
+
+        Request(String method, String job, Map<String, String> groupingKey) {
+            this.method = method;
+            this.job = job;
+            this.groupingKey = groupingKey;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Request)) {
+                return false;
+            }
+
+            Request other = (Request) obj;
+            return method.equals(other.method) && job.equals(other.job)
+                    && groupingKey.equals(other.groupingKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return (method.hashCode() * 31 + job.hashCode()) * 31 + groupingKey.hashCode();
+        }
+
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.wizenoze.prometheus;
+
+import com.codahale.metrics.Metric;
+
+/**
+ * A metric along with its parsed name and grouping key, so that they're calculated only once,
+ * when the metric gets registered, instead of on every report.
+ *
+ * @param <T> the type of the metric
+ */
+class TrackedMetric<T extends Metric> {
+
+    private final String originalName;
+    private final MetricNameAndGroupingKey key;
+    private final MetricNameAndGroupingKey aggregateKey;
+    private final T metric;
+
+    private Series[] series;
+    private AggregatedMetric aggregate;
+    private int tier = -1;
+    private int slice = -1;
+    private GaugeEvaluator.Evaluation evaluation;
+
+    TrackedMetric(String originalName, MetricNameAndGroupingKey key, T metric) {
+        this.originalName = originalName;
+        this.key = key;
+        this.aggregateKey = key.hasTaskId() ? key.withoutTaskId() : null;
+        this.metric = metric;
+    }
+
+    String getOriginalName() {
+        return originalName;
+    }
+
+    MetricNameAndGroupingKey getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the key identifying the same metric of all tasks of the component (and stream), or
+     * {@code null} if the metric doesn't belong to a task.
+     */
+    MetricNameAndGroupingKey getAggregateKey() {
+        return aggregateKey;
+    }
+
+    T getMetric() {
+        return metric;
+    }
+
+    /**
+     * Returns the series the metric is written into, or {@code null} if they haven't been looked
+     * up yet.
+     */
+    Series[] getSeries() {
+        return series;
+    }
+
+    void setSeries(Series[] series) {
+        this.series = series;
+    }
+
+    /**
+     * Returns the aggregate the metric is added to, or {@code null} if it hasn't been looked up
+     * yet.
+     */
+    AggregatedMetric getAggregate() {
+        return aggregate;
+    }
+
+    void setAggregate(AggregatedMetric aggregate) {
+        this.aggregate = aggregate;
+    }
+
+    /**
+     * Returns the index of the tier the metric is reported in, or {@code -1} if it hasn't been
+     * looked up yet.
+     */
+    int getTier() {
+        return tier;
+    }
+
+    void setTier(int tier) {
+        this.tier = tier;
+    }
+
+    /**
+     * Returns the index of the slice of the first tier the metric is reported in, or {@code -1}
+     * if it hasn't been looked up yet.
+     */
+    int getSlice() {
+        return slice;
+    }
+
+    void setSlice(int slice) {
+        this.slice = slice;
+    }
+
+    /**
+     * Returns the evaluation of the gauge on the pool of the reporter, or {@code null} if it
+     * hasn't been created yet.
+     */
+    GaugeEvaluator.Evaluation getEvaluation() {
+        return evaluation;
+    }
+
+    void setEvaluation(GaugeEvaluator.Evaluation evaluation) {
+        this.evaluation = evaluation;
+    }
+
+}
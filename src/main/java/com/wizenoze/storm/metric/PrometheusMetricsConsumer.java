@@ -0,0 +1,151 @@
+package com.wizenoze.storm.metric;
+
+import com.wizenoze.prometheus.ExpositionBuffer;
+import com.wizenoze.prometheus.PushGatewayWrapper;
+import com.wizenoze.prometheus.PushGatewayWrapperImpl;
+import com.wizenoze.prometheus.SampleBatch;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.storm.metric.api.IMetricsConsumer;
+import org.apache.storm.task.IErrorReporter;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link IMetricsConsumer} pushing the metrics of the metrics v1 API (e.g. the built-in
+ * executor metrics {@code __execute-latency}, {@code __capacity} or {@code __sendqueue}) to a
+ * Prometheus Push Gateway, with one request per batch of data points, i.e. per task and interval.
+ *
+ * Metrics are named like the topology metrics of {@link
+ * com.wizenoze.storm.metrics2.reporters.PrometheusStormReporter}, and grouped by topology, host,
+ * component, task and worker port. Data points whose values are maps get a series per entry:
+ * entries keyed by {@code <component>:<stream>} (e.g. those of {@code __execute-latency}) are
+ * labelled with {@code source_component_id} and {@code stream_id}, while other keys (e.g. {@code
+ * population} of {@code __sendqueue}) are appended to the name. Values which aren't numbers are
+ * skipped.
+ *
+ * <pre>
+ * topology.metrics.consumer.register:
+ *   - class: "com.wizenoze.storm.metric.PrometheusMetricsConsumer"
+ *     parallelism.hint: 1
+ *     argument:
+ *       prometheus.host: "localhost"
+ *       prometheus.port: 9091
+ * </pre>
+ */
+public class PrometheusMetricsConsumer implements IMetricsConsumer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PrometheusMetricsConsumer.class);
+
+    private static final String JOB_NAME = "storm";
+
+    private static final String PROMETHEUS_PREFIXED_WITH = "prometheus.prefixed.with";
+    private static final String PROMETHEUS_HOST = "prometheus.host";
+    private static final String PROMETHEUS_PORT = "prometheus.port";
+    private static final String PROMETHEUS_SCHEME = "prometheus.scheme";
+    private static final String PROMETHEUS_REPLACE_GROUPS = "prometheus.replace.groups";
+
+    private static final String SOURCE_COMPONENT_ID = "source_component_id";
+    private static final String STREAM_ID = "stream_id";
+
+    private final SampleBatch batch = new SampleBatch();
+    private final ExpositionBuffer buffer = new ExpositionBuffer();
+
+    private PushGatewayWrapper pushGatewayWrapper;
+    private String prefix;
+    private boolean replaceGroups;
+    private String topologyId;
+
+    @Override
+    public void prepare(Map stormConf, Object registrationArgument, TopologyContext context,
+            IErrorReporter errorReporter) {
+
+        Map consumerConf =
+                registrationArgument instanceof Map ? (Map) registrationArgument : stormConf;
+
+        String host = Utils.getString(consumerConf.get(PROMETHEUS_HOST), "localhost");
+        Integer port = Utils.getInt(consumerConf.get(PROMETHEUS_PORT), 9091);
+        String scheme = Utils.getString(consumerConf.get(PROMETHEUS_SCHEME), "http");
+
+        prepare(consumerConf, context.getStormId(),
+                new PushGatewayWrapperImpl(scheme + "://" + host + ":" + port));
+    }
+
+    void prepare(Map consumerConf, String topologyId, PushGatewayWrapper pushGatewayWrapper) {
+        this.pushGatewayWrapper = pushGatewayWrapper;
+        this.prefix = Utils.getString(consumerConf.get(PROMETHEUS_PREFIXED_WITH), null);
+        this.replaceGroups =
+                Utils.getBoolean(consumerConf.get(PROMETHEUS_REPLACE_GROUPS), false);
+        this.topologyId = topologyId;
+    }
+
+    @Override
+    public void handleDataPoints(TaskInfo taskInfo, Collection<DataPoint> dataPoints) {
+        batch.reset();
+        for (DataPoint dataPoint : dataPoints) {
+            add(SampleBatch.metricName(prefix, dataPoint.name), dataPoint.name,
+                    Collections.<String, String>emptyMap(), dataPoint.value);
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        buffer.reset();
+        batch.writeTo(buffer);
+
+        Map<String, String> groupingKey = new LinkedHashMap<>();
+        groupingKey.put("topology_id", topologyId);
+        groupingKey.put("host_name", taskInfo.srcWorkerHost);
+        groupingKey.put("component_id", taskInfo.srcComponentId);
+        groupingKey.put("task_id", Integer.toString(taskInfo.srcTaskId));
+        groupingKey.put("worker_port", Integer.toString(taskInfo.srcWorkerPort));
+
+        try {
+            if (replaceGroups) {
+                pushGatewayWrapper.push(buffer, JOB_NAME, groupingKey);
+            } else {
+                pushGatewayWrapper.pushAdd(buffer, JOB_NAME, groupingKey);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Unable to push to Prometheus", e);
+        }
+    }
+
+    @Override
+    public void cleanup() {
+    }
+
+    private void add(String name, String help, Map<String, String> labels, Object value) {
+        if (value instanceof Number) {
+            batch.add(name, help, labels, ((Number) value).doubleValue());
+            return;
+        }
+
+        if (!(value instanceof Map)) {
+            LOGGER.debug("Skipping {}, its value isn't a number.", help);
+            return;
+        }
+
+        for (Object item : ((Map) value).entrySet()) {
+            Map.Entry entry = (Map.Entry) item;
+            String key = String.valueOf(entry.getKey());
+
+            int separator = key.indexOf(':');
+            if (separator > 0 && labels.isEmpty()) {
+                Map<String, String> streamLabels = new LinkedHashMap<>();
+                streamLabels.put(SOURCE_COMPONENT_ID, key.substring(0, separator));
+                streamLabels.put(STREAM_ID, key.substring(separator + 1));
+                add(name, help, streamLabels, entry.getValue());
+            } else {
+                add(SampleBatch.partName(name, key), help, labels, entry.getValue());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.wizenoze.storm.metrics2.filters;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.storm.metrics2.filters.StormMetricsFilter;
+
+/**
+ * A {@link StormMetricsFilter} which compiles include and exclude rules into a {@link
+ * SegmentTrie} over the dotted structure of Storm's metric names, instead of evaluating a
+ * backtracking regular expression.
+ *
+ * A metric is reported if it matches any of the {@code include} rules (or there are none) and
+ * none of the {@code exclude} rules. Decisions are memoized per metric name; registering this
+ * filter as a {@link MetricRegistryListener} evicts them when the metric is removed.
+ *
+ * <pre>
+ * filter:
+ *   class: "com.wizenoze.storm.metrics2.filters.PrefixTrieFilter"
+ *   include:
+ *     - "storm.worker.*.*.*.**.*-emitted"
+ *     - "storm.worker.*.*.*.**.*-disruptor-executor*-queue-percent-full"
+ *   exclude:
+ *     - "storm.worker.*.*.__system.**"
+ * </pre>
+ */
+public class PrefixTrieFilter implements StormMetricsFilter, MetricRegistryListener {
+
+    private static final String INCLUDE = "include";
+    private static final String EXCLUDE = "exclude";
+
+    private final ConcurrentMap<String, Boolean> decisions = new ConcurrentHashMap<>();
+
+    private SegmentTrie includes = new SegmentTrie();
+    private SegmentTrie excludes = new SegmentTrie();
+
+    private static Collection<?> getRules(Map<String, Object> config, String key) {
+        Object rules = config.get(key);
+        if (rules == null) {
+            return Collections.emptyList();
+        }
+
+        if (rules instanceof Collection) {
+            return (Collection<?>) rules;
+        }
+
+        return Collections.singletonList(rules);
+    }
+
+    private static SegmentTrie compile(Collection<?> rules) {
+        SegmentTrie trie = new SegmentTrie();
+        for (Object rule : rules) {
+            trie.add(String.valueOf(rule));
+        }
+        return trie;
+    }
+
+    @Override
+    public void prepare(Map<String, Object> config) {
+        Collection<?> includeRules = getRules(config, INCLUDE);
+        Collection<?> excludeRules = getRules(config, EXCLUDE);
+
+        if (includeRules.isEmpty() && excludeRules.isEmpty()) {
+            throw new IllegalStateException(
+                    "PrefixTrieFilter requires an 'include' or an 'exclude' parameter.");
+        }
+
+        includes = compile(includeRules);
+        excludes = compile(excludeRules);
+        decisions.clear();
+    }
+
+    @Override
+    public boolean matches(String name, Metric metric) {
+        Boolean decision = decisions.get(name);
+        if (decision == null) {
+            decision = (includes.isEmpty() || includes.matches(name)) && !excludes.matches(name);
+            decisions.put(name, decision);
+        }
+
+        return decision;
+    }
+
+    /**
+     * Returns the number of memoized decisions.
+     */
+    int getDecisionCount() {
+        return decisions.size();
+    }
+
+    private void evict(String name) {
+        decisions.remove(name);
+    }
+
+    @Override
+    public void onGaugeAdded(String name, Gauge<?> gauge) {
+    }
+
+    @Override
+    public void onGaugeRemoved(String name) {
+        evict(name);
+    }
+
+    @Override
+    public void onCounterAdded(String name, Counter counter) {
+    }
+
+    @Override
+    public void onCounterRemoved(String name) {
+        evict(name);
+    }
+
+    @Override
+    public void onHistogramAdded(String name, Histogram histogram) {
+    }
+
+    @Override
+    public void onHistogramRemoved(String name) {
+        evict(name);
+    }
+
+    @Override
+    public void onMeterAdded(String name, Meter meter) {
+    }
+
+    @Override
+    public void onMeterRemoved(String name) {
+        evict(name);
+    }
+
+    @Override
+    public void onTimerAdded(String name, Timer timer) {
+    }
+
+    @Override
+    public void onTimerRemoved(String name) {
+        evict(name);
+    }
+
+}
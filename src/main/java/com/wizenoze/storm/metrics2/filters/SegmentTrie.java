@@ -0,0 +1,198 @@
+package com.wizenoze.storm.metrics2.filters;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A trie over the dot separated segments of metric names.
+ *
+ * Rules are added as dotted patterns, where each segment is either a literal (e.g. {@code
+ * storm}), a single segment wildcard ({@code *}), a multi segment wildcard ({@code **}) matching
+ * zero or more segments, or a glob (e.g. {@code *-emitted}) supporting {@code *} and {@code ?}
+ * within a single segment.
+ *
+ * Literal segments are looked up through a hash map, so rules sharing a common prefix, like
+ * {@code storm.worker.}, are evaluated only once.
+ */
+class SegmentTrie {
+
+    private static final String ANY_SEGMENT = "*";
+    private static final String ANY_SEGMENTS = "**";
+
+    private final Node root = new Node();
+
+    private boolean empty = true;
+
+    void add(String rule) {
+        if (rule == null || rule.isEmpty()) {
+            throw new IllegalArgumentException("Rule must not be empty.");
+        }
+
+        Node node = root;
+        for (String segment : split(rule)) {
+            node = node.child(segment);
+        }
+
+        node.terminal = true;
+        empty = false;
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    boolean matches(String name) {
+        return matches(root, split(name), 0);
+    }
+
+    private static boolean matches(Node node, List<String> segments, int index) {
+        if (node.anySegments != null && matchesAnySegments(node.anySegments, segments, index)) {
+            return true;
+        }
+
+        if (index == segments.size()) {
+            return node.terminal;
+        }
+
+        String segment = segments.get(index);
+
+        Node literal = node.literals.get(segment);
+        if (literal != null && matches(literal, segments, index + 1)) {
+            return true;
+        }
+
+        if (node.anySegment != null && matches(node.anySegment, segments, index + 1)) {
+            return true;
+        }
+
+        for (GlobEdge glob : node.globs) {
+            if (glob.matches(segment) && matches(glob.node, segments, index + 1)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean matchesAnySegments(Node node, List<String> segments, int index) {
+        for (int next = index; next <= segments.size(); next++) {
+            if (matches(node, segments, next)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static List<String> split(String name) {
+        List<String> segments = new ArrayList<>();
+
+        int start = 0;
+        int end;
+        while ((end = name.indexOf('.', start)) >= 0) {
+            segments.add(name.substring(start, end));
+            start = end + 1;
+        }
+
+        segments.add(name.substring(start));
+
+        return segments;
+    }
+
+    private static boolean isGlob(String segment) {
+        return segment.indexOf('*') >= 0 || segment.indexOf('?') >= 0;
+    }
+
+    private static class Node {
+
+        final Map<String, Node> literals = new HashMap<>();
+        final List<GlobEdge> globs = new ArrayList<>();
+
+        Node anySegment;
+        Node anySegments;
+        boolean terminal;
+
+        Node child(String segment) {
+            if (ANY_SEGMENTS.equals(segment)) {
+                if (anySegments == null) {
+                    anySegments = new Node();
+                }
+                return anySegments;
+            }
+
+            if (ANY_SEGMENT.equals(segment)) {
+                if (anySegment == null) {
+                    anySegment = new Node();
+                }
+                return anySegment;
+            }
+
+            if (isGlob(segment)) {
+                for (GlobEdge glob : globs) {
+                    if (glob.pattern.equals(segment)) {
+                        return glob.node;
+                    }
+                }
+
+                GlobEdge glob = new GlobEdge(segment);
+                globs.add(glob);
+                return glob.node;
+            }
+
+            Node child = literals.get(segment);
+            if (child == null) {
+                child = new Node();
+                literals.put(segment, child);
+            }
+
+            return child;
+        }
+
+    }
+
+    private static class GlobEdge {
+
+        final String pattern;
+        final Node node = new Node();
+
+        GlobEdge(String pattern) {
+            this.pattern = pattern;
+        }
+
+        boolean matches(String segment) {
+            return matches(segment, 0, 0);
+        }
+
+        private boolean matches(String segment, int segmentIndex, int patternIndex) {
+            while (patternIndex < pattern.length()) {
+                char p = pattern.charAt(patternIndex);
+
+                if (p == '*') {
+                    for (int next = segmentIndex; next <= segment.length(); next++) {
+                        if (matches(segment, next, patternIndex + 1)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+
+                if (segmentIndex == segment.length()) {
+                    return false;
+                }
+
+                if (p != '?' && p != segment.charAt(segmentIndex)) {
+                    return false;
+                }
+
+                segmentIndex++;
+                patternIndex++;
+            }
+
+            return segmentIndex == segment.length();
+        }
+
+    }
+
+}
@@ -1,9 +1,26 @@
 package com.wizenoze.storm.metrics2.reporters;
 
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.wizenoze.prometheus.HistogramBuckets;
+import com.wizenoze.prometheus.NameFallback;
+import com.wizenoze.prometheus.OtlpExporter;
 import com.wizenoze.prometheus.PrometheusReporter;
 import com.wizenoze.prometheus.PushGatewayWrapper;
 import com.wizenoze.prometheus.PushGatewayWrapperImpl;
+import com.wizenoze.prometheus.RemoteWriteExporter;
+import com.wizenoze.prometheus.ReportTier;
+import com.wizenoze.prometheus.ScrapeExporter;
+import com.wizenoze.prometheus.SegmentExporter;
+import com.wizenoze.prometheus.SegmentPusher;
+import com.wizenoze.prometheus.SharedPushEngine;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import org.apache.storm.daemon.metrics.MetricsUtils;
@@ -17,10 +34,62 @@ public class PrometheusStormReporter extends ScheduledStormReporter {
 
     private final static Logger LOGGER = LoggerFactory.getLogger(PrometheusStormReporter.class);
 
+    // Set by the supervisor when launching workers
+    private static final String WORKER_PORT_PROPERTY = "worker.port";
+
+    // Slots not written for this many report periods are stale
+    private static final int SEGMENT_STALE_PERIODS = 6;
+
+    private SegmentPusher segmentPusher;
+
     private static final String PROMETHEUS_PREFIXED_WITH = "prometheus.prefixed.with";
     private static final String PROMETHEUS_HOST = "prometheus.host";
     private static final String PROMETHEUS_PORT = "prometheus.port";
     private static final String PROMETHEUS_SCHEME = "prometheus.scheme";
+    private static final String PROMETHEUS_NAME_TEMPLATES = "prometheus.name.templates";
+    private static final String PROMETHEUS_NAME_FALLBACK = "prometheus.name.fallback";
+    private static final String PROMETHEUS_AGGREGATE_TASKS = "prometheus.aggregate.tasks";
+    private static final String PROMETHEUS_AGGREGATE_KEEP_PER_TASK =
+            "prometheus.aggregate.keep.per.task";
+    private static final String PROMETHEUS_DELETE_STALE_GROUPS = "prometheus.delete.stale.groups";
+    private static final String PROMETHEUS_REPLACE_GROUPS = "prometheus.replace.groups";
+    private static final String PROMETHEUS_RAW_COUNTERS = "prometheus.raw.counters";
+    private static final String PROMETHEUS_HISTOGRAM_BUCKETS = "prometheus.histogram.buckets";
+    private static final String PROMETHEUS_HISTOGRAM_BUCKETS_EXPONENTIAL =
+            "prometheus.histogram.buckets.exponential";
+    private static final String BUCKETS_START = "start";
+    private static final String BUCKETS_FACTOR = "factor";
+    private static final String BUCKETS_COUNT = "count";
+    private static final String PROMETHEUS_SERIES_OFF_HEAP = "prometheus.series.off.heap";
+    private static final String PROMETHEUS_GAUGE_TIMEOUT_MS = "prometheus.gauge.timeout.ms";
+    private static final String PROMETHEUS_GAUGE_THREADS = "prometheus.gauge.threads";
+    private static final String PROMETHEUS_SLICES = "prometheus.slices";
+    private static final String PROMETHEUS_CYCLE_DEADLINE_MS = "prometheus.cycle.deadline.ms";
+    private static final String PROMETHEUS_SHARED_PUSH_ENGINE = "prometheus.shared.push.engine";
+    private static final String PROMETHEUS_REMOTE_WRITE_URL = "prometheus.remote.write.url";
+    private static final String PROMETHEUS_REMOTE_WRITE_MAX_IN_FLIGHT =
+            "prometheus.remote.write.max.in.flight";
+    private static final String PROMETHEUS_REMOTE_WRITE_MAX_RETRIES =
+            "prometheus.remote.write.max.retries";
+    private static final String PROMETHEUS_TIERS = "prometheus.tiers";
+    private static final String TIER_PERIOD = "period";
+    private static final String TIER_TYPES = "types";
+    private static final String TIER_NAMES = "names";
+    private static final String TIER_LABELS = "labels";
+    private static final String PROMETHEUS_ADAPTIVE_MAX_PERIOD = "prometheus.adaptive.max.period";
+    private static final String PROMETHEUS_ADAPTIVE_LATENCY_THRESHOLD_MS =
+            "prometheus.adaptive.latency.threshold.ms";
+    private static final String PROMETHEUS_ADAPTIVE_ERROR_RATE_THRESHOLD =
+            "prometheus.adaptive.error.rate.threshold";
+    private static final String PROMETHEUS_SCRAPE_PORT = "prometheus.scrape.port";
+    private static final String PROMETHEUS_SCRAPE_PORT_RANGE = "prometheus.scrape.port.range";
+    private static final String PROMETHEUS_SEGMENT_FILE = "prometheus.segment.file";
+    private static final String PROMETHEUS_SEGMENT_SLOTS = "prometheus.segment.slots";
+    private static final String PROMETHEUS_SEGMENT_SLOT_SIZE = "prometheus.segment.slot.size";
+    private static final String PROMETHEUS_OTLP_URL = "prometheus.otlp.url";
+    private static final String PROMETHEUS_OTLP_SERVICE_NAME = "prometheus.otlp.service.name";
+    private static final String PROMETHEUS_OTLP_MAX_IN_FLIGHT = "prometheus.otlp.max.in.flight";
+    private static final String PROMETHEUS_OTLP_MAX_RETRIES = "prometheus.otlp.max.retries";
 
     private static String getMetricsPrefixedWith(Map reporterConf) {
         return Utils.getString(reporterConf.get(PROMETHEUS_PREFIXED_WITH), null);
@@ -38,6 +107,280 @@ public class PrometheusStormReporter extends ScheduledStormReporter {
         return Utils.getString(reporterConf.get(PROMETHEUS_SCHEME), "http");
     }
 
+    private static boolean isAggregateTasks(Map reporterConf) {
+        return Utils.getBoolean(reporterConf.get(PROMETHEUS_AGGREGATE_TASKS), false);
+    }
+
+    private static List<String> getAggregateKeepPerTask(Map reporterConf) {
+        return Utils.getStrings(reporterConf.get(PROMETHEUS_AGGREGATE_KEEP_PER_TASK));
+    }
+
+    private static boolean isDeleteStaleGroups(Map reporterConf) {
+        return Utils.getBoolean(reporterConf.get(PROMETHEUS_DELETE_STALE_GROUPS), true);
+    }
+
+    private static boolean isReplaceGroups(Map reporterConf) {
+        return Utils.getBoolean(reporterConf.get(PROMETHEUS_REPLACE_GROUPS), false);
+    }
+
+    /**
+     * Parses the tiers, whose periods are in the same unit as the report period.
+     */
+    private static List<ReportTier> getTiers(Map reporterConf, TimeUnit unit) {
+        Object tiers = reporterConf.get(PROMETHEUS_TIERS);
+        if (tiers == null) {
+            return new ArrayList<>();
+        }
+
+        if (!(tiers instanceof Collection)) {
+            throw new IllegalArgumentException(PROMETHEUS_TIERS + " must be a list.");
+        }
+
+        List<ReportTier> reportTiers = new ArrayList<>();
+        for (Object tier : (Collection) tiers) {
+            if (!(tier instanceof Map)) {
+                throw new IllegalArgumentException(PROMETHEUS_TIERS + " must be a list of maps.");
+            }
+
+            reportTiers.add(getTier((Map) tier, unit));
+        }
+
+        return reportTiers;
+    }
+
+    private static ReportTier getTier(Map tier, TimeUnit unit) {
+        Integer period = Utils.getInt(tier.get(TIER_PERIOD), null);
+        if (period == null) {
+            throw new IllegalArgumentException(
+                    "Every tier of " + PROMETHEUS_TIERS + " requires a " + TIER_PERIOD + ".");
+        }
+
+        ReportTier.Builder builder = ReportTier.every(period, unit);
+
+        for (String type : Utils.getStrings(tier.get(TIER_TYPES))) {
+            builder.ofTypes(ReportTier.MetricType.valueOf(type.toUpperCase()));
+        }
+
+        builder.named(Utils.getStrings(tier.get(TIER_NAMES)));
+
+        Object labels = tier.get(TIER_LABELS);
+        if (labels instanceof Map) {
+            for (Object label : ((Map) labels).entrySet()) {
+                Map.Entry entry = (Map.Entry) label;
+                builder.labelled(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+            }
+        }
+
+        return builder.build();
+    }
+
+    private static Integer getAdaptiveMaxPeriod(Map reporterConf) {
+        return Utils.getInt(reporterConf.get(PROMETHEUS_ADAPTIVE_MAX_PERIOD), null);
+    }
+
+    private static Integer getAdaptiveLatencyThresholdMs(Map reporterConf) {
+        return Utils.getInt(reporterConf.get(PROMETHEUS_ADAPTIVE_LATENCY_THRESHOLD_MS), 1000);
+    }
+
+    private static Double getAdaptiveErrorRateThreshold(Map reporterConf) {
+        return Utils.getDouble(reporterConf.get(PROMETHEUS_ADAPTIVE_ERROR_RATE_THRESHOLD), 0.1);
+    }
+
+    private static List<String> getNameTemplates(Map reporterConf) {
+        return Utils.getStrings(reporterConf.get(PROMETHEUS_NAME_TEMPLATES));
+    }
+
+    private static NameFallback getNameFallback(Map reporterConf) {
+        String nameFallback = Utils.getString(reporterConf.get(PROMETHEUS_NAME_FALLBACK), "skip");
+        try {
+            return NameFallback.valueOf(nameFallback.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(PROMETHEUS_NAME_FALLBACK + " is invalid.", e);
+        }
+    }
+
+    private static boolean isRawCounters(Map reporterConf) {
+        return Utils.getBoolean(reporterConf.get(PROMETHEUS_RAW_COUNTERS), false);
+    }
+
+    /**
+     * Parses the buckets of histograms, given either as a list of bounds or as a map with the
+     * start, factor and count of exponential buckets.
+     */
+    private static HistogramBuckets getHistogramBuckets(Map reporterConf) {
+        Object bounds = reporterConf.get(PROMETHEUS_HISTOGRAM_BUCKETS);
+        if (bounds instanceof Collection) {
+            double[] values = new double[((Collection) bounds).size()];
+            int index = 0;
+            for (Object bound : (Collection) bounds) {
+                values[index++] = Utils.getDouble(bound, null);
+            }
+
+            return HistogramBuckets.of(values);
+        }
+
+        if (bounds != null) {
+            throw new IllegalArgumentException(PROMETHEUS_HISTOGRAM_BUCKETS + " must be a list.");
+        }
+
+        Object exponential = reporterConf.get(PROMETHEUS_HISTOGRAM_BUCKETS_EXPONENTIAL);
+        if (exponential instanceof Map) {
+            Map buckets = (Map) exponential;
+            Double start = Utils.getDouble(buckets.get(BUCKETS_START), null);
+            Double factor = Utils.getDouble(buckets.get(BUCKETS_FACTOR), null);
+            Integer count = Utils.getInt(buckets.get(BUCKETS_COUNT), null);
+            if (start == null || factor == null || count == null) {
+                throw new IllegalArgumentException(PROMETHEUS_HISTOGRAM_BUCKETS_EXPONENTIAL
+                        + " requires a " + BUCKETS_START + ", a " + BUCKETS_FACTOR + " and a "
+                        + BUCKETS_COUNT + ".");
+            }
+
+            return HistogramBuckets.exponential(start, factor, count);
+        }
+
+        if (exponential != null) {
+            throw new IllegalArgumentException(
+                    PROMETHEUS_HISTOGRAM_BUCKETS_EXPONENTIAL + " must be a map.");
+        }
+
+        return null;
+    }
+
+    private static boolean isSeriesOffHeap(Map reporterConf) {
+        return Utils.getBoolean(reporterConf.get(PROMETHEUS_SERIES_OFF_HEAP), false);
+    }
+
+    private static Integer getGaugeTimeoutMs(Map reporterConf) {
+        return Utils.getInt(reporterConf.get(PROMETHEUS_GAUGE_TIMEOUT_MS), null);
+    }
+
+    private static Integer getGaugeThreads(Map reporterConf) {
+        return Utils.getInt(reporterConf.get(PROMETHEUS_GAUGE_THREADS), 2);
+    }
+
+    private static Integer getSlices(Map reporterConf) {
+        return Utils.getInt(reporterConf.get(PROMETHEUS_SLICES), 1);
+    }
+
+    private static Integer getCycleDeadlineMs(Map reporterConf) {
+        return Utils.getInt(reporterConf.get(PROMETHEUS_CYCLE_DEADLINE_MS), null);
+    }
+
+    private static boolean isSharedPushEngine(Map reporterConf) {
+        return Utils.getBoolean(reporterConf.get(PROMETHEUS_SHARED_PUSH_ENGINE), false);
+    }
+
+    private static String getRemoteWriteUrl(Map reporterConf) {
+        return Utils.getString(reporterConf.get(PROMETHEUS_REMOTE_WRITE_URL), null);
+    }
+
+    private static Integer getRemoteWriteMaxInFlight(Map reporterConf) {
+        return Utils.getInt(reporterConf.get(PROMETHEUS_REMOTE_WRITE_MAX_IN_FLIGHT), 2);
+    }
+
+    private static Integer getRemoteWriteMaxRetries(Map reporterConf) {
+        return Utils.getInt(reporterConf.get(PROMETHEUS_REMOTE_WRITE_MAX_RETRIES), 3);
+    }
+
+    private static RemoteWriteExporter createRemoteWriteExporter(String url, Map reporterConf) {
+        try {
+            return RemoteWriteExporter.forEndpoint(new URL(url))
+                    .maxInFlight(getRemoteWriteMaxInFlight(reporterConf))
+                    .maxRetries(getRemoteWriteMaxRetries(reporterConf))
+                    .build();
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(PROMETHEUS_REMOTE_WRITE_URL + " is invalid.", e);
+        }
+    }
+
+    private static Integer getScrapePort(Map reporterConf) {
+        return Utils.getInt(reporterConf.get(PROMETHEUS_SCRAPE_PORT), null);
+    }
+
+    private static Integer getScrapePortRange(Map reporterConf) {
+        return Utils.getInt(reporterConf.get(PROMETHEUS_SCRAPE_PORT_RANGE), 1);
+    }
+
+    private static ScrapeExporter createScrapeExporter(int port, Map reporterConf) {
+        try {
+            return ScrapeExporter.forPort(port)
+                    .portRange(getScrapePortRange(reporterConf))
+                    .build();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to serve metrics on port " + port + ".", e);
+        }
+    }
+
+    private static String getSegmentFile(Map reporterConf) {
+        return Utils.getString(reporterConf.get(PROMETHEUS_SEGMENT_FILE), null);
+    }
+
+    private static Integer getSegmentSlots(Map reporterConf) {
+        return Utils.getInt(reporterConf.get(PROMETHEUS_SEGMENT_SLOTS), 16);
+    }
+
+    private static Integer getSegmentSlotSize(Map reporterConf) {
+        return Utils.getInt(reporterConf.get(PROMETHEUS_SEGMENT_SLOT_SIZE), 1024 * 1024);
+    }
+
+    private static SegmentExporter createSegmentExporter(String path, int workerPort,
+            Map reporterConf) {
+
+        try {
+            return SegmentExporter.forFile(new File(path), workerPort)
+                    .slots(getSegmentSlots(reporterConf))
+                    .slotSize(getSegmentSlotSize(reporterConf))
+                    .rawCounters(isRawCounters(reporterConf))
+                    .build();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open segment file " + path + ".", e);
+        }
+    }
+
+    private static SegmentPusher createSegmentPusher(String path, long staleAfter, TimeUnit unit,
+            PushGatewayWrapper pushGatewayWrapper, Map reporterConf) {
+
+        try {
+            return SegmentPusher.forFile(new File(path))
+                    .slots(getSegmentSlots(reporterConf))
+                    .slotSize(getSegmentSlotSize(reporterConf))
+                    .replaceGroups(isReplaceGroups(reporterConf))
+                    .deleteStaleGroups(isDeleteStaleGroups(reporterConf))
+                    .staleAfter(staleAfter, unit)
+                    .build(pushGatewayWrapper);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open segment file " + path + ".", e);
+        }
+    }
+
+    private static String getOtlpUrl(Map reporterConf) {
+        return Utils.getString(reporterConf.get(PROMETHEUS_OTLP_URL), null);
+    }
+
+    private static String getOtlpServiceName(Map reporterConf) {
+        return Utils.getString(reporterConf.get(PROMETHEUS_OTLP_SERVICE_NAME), "storm");
+    }
+
+    private static Integer getOtlpMaxInFlight(Map reporterConf) {
+        return Utils.getInt(reporterConf.get(PROMETHEUS_OTLP_MAX_IN_FLIGHT), 2);
+    }
+
+    private static Integer getOtlpMaxRetries(Map reporterConf) {
+        return Utils.getInt(reporterConf.get(PROMETHEUS_OTLP_MAX_RETRIES), 3);
+    }
+
+    private static OtlpExporter createOtlpExporter(String url, Map reporterConf) {
+        try {
+            return OtlpExporter.forEndpoint(new URL(url))
+                    .withServiceName(getOtlpServiceName(reporterConf))
+                    .maxInFlight(getOtlpMaxInFlight(reporterConf))
+                    .maxRetries(getOtlpMaxRetries(reporterConf))
+                    .build();
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(PROMETHEUS_OTLP_URL + " is invalid.", e);
+        }
+    }
+
     @Override
     public void prepare(MetricRegistry metricsRegistry, Map stormConf, Map reporterConf) {
         LOGGER.info("Preparing...");
@@ -56,29 +399,127 @@ public class PrometheusStormReporter extends ScheduledStormReporter {
         StormMetricsFilter filter = getMetricsFilter(reporterConf);
         if (filter != null) {
             builder.filter(filter);
+
+            // Lets filters with memoized decisions evict them, when metrics go away
+            if (filter instanceof MetricRegistryListener) {
+                metricsRegistry.addListener((MetricRegistryListener) filter);
+            }
         }
+
         String prefix = getMetricsPrefixedWith(reporterConf);
         if (prefix != null) {
             builder.prefixedWith(prefix);
         }
 
+        builder.nameTemplates(getNameTemplates(reporterConf));
+        builder.nameFallback(getNameFallback(reporterConf));
+
+        if (isAggregateTasks(reporterConf)) {
+            builder.aggregateTasks(true);
+            builder.keepPerTask(getAggregateKeepPerTask(reporterConf));
+        }
+
+        builder.deleteStaleGroups(isDeleteStaleGroups(reporterConf));
+        builder.replaceGroups(isReplaceGroups(reporterConf));
+        builder.rawCounters(isRawCounters(reporterConf));
+        builder.histogramBuckets(getHistogramBuckets(reporterConf));
+        builder.offHeapSeries(isSeriesOffHeap(reporterConf));
+
+        Integer gaugeTimeoutMs = getGaugeTimeoutMs(reporterConf);
+        if (gaugeTimeoutMs != null) {
+            builder.gaugeTimeout(gaugeTimeoutMs, TimeUnit.MILLISECONDS);
+            builder.gaugeThreads(getGaugeThreads(reporterConf));
+        }
+
+        builder.slices(getSlices(reporterConf));
+
+        Integer cycleDeadlineMs = getCycleDeadlineMs(reporterConf);
+        if (cycleDeadlineMs != null) {
+            builder.cycleDeadline(cycleDeadlineMs, TimeUnit.MILLISECONDS);
+        }
+
         //defaults to 10
         reportingPeriod = getReportPeriod(reporterConf);
 
         //defaults to seconds
         reportingPeriodUnit = getReportPeriodUnit(reporterConf);
 
+        for (ReportTier tier : getTiers(reporterConf, reportingPeriodUnit)) {
+            builder.addTier(tier);
+        }
+
+        // In the same unit as the report period
+        Integer adaptiveMaxPeriod = getAdaptiveMaxPeriod(reporterConf);
+        if (adaptiveMaxPeriod != null) {
+            builder.adaptivePeriod(adaptiveMaxPeriod, reportingPeriodUnit);
+            builder.latencyThreshold(getAdaptiveLatencyThresholdMs(reporterConf),
+                    TimeUnit.MILLISECONDS);
+            builder.errorRateThreshold(getAdaptiveErrorRateThreshold(reporterConf));
+        }
+
         // Not exposed:
         // * withClock(Clock)
 
+        String remoteWriteUrl = getRemoteWriteUrl(reporterConf);
+        if (remoteWriteUrl != null) {
+            reporter = builder.build(createRemoteWriteExporter(remoteWriteUrl, reporterConf));
+            return;
+        }
+
+        String otlpUrl = getOtlpUrl(reporterConf);
+        if (otlpUrl != null) {
+            reporter = builder.build(createOtlpExporter(otlpUrl, reporterConf));
+            return;
+        }
+
+        Integer scrapePort = getScrapePort(reporterConf);
+        if (scrapePort != null) {
+            reporter = builder.build(createScrapeExporter(scrapePort, reporterConf));
+            return;
+        }
+
         String host = getMetricsTargetHost(reporterConf);
         Integer port = getMetricsTargetPort(reporterConf);
         String scheme = getMetricsTargetScheme(reporterConf);
 
         String httpAddress = scheme + "://" + host + ":" + port;
 
-        PushGatewayWrapper pushGatewayWrapper = new PushGatewayWrapperImpl(httpAddress);
+        PushGatewayWrapper pushGatewayWrapper = isSharedPushEngine(reporterConf)
+                ? SharedPushEngine.acquire(httpAddress)
+                : new PushGatewayWrapperImpl(httpAddress);
+
+        // Workers write into the segment file, which the worker holding its lock pushes
+        String segmentFile = getSegmentFile(reporterConf);
+        String workerPort = System.getProperty(WORKER_PORT_PROPERTY);
+        if (segmentFile != null && workerPort != null) {
+            reporter = builder.build(
+                    createSegmentExporter(segmentFile, Integer.parseInt(workerPort), reporterConf));
+            segmentPusher = createSegmentPusher(segmentFile,
+                    SEGMENT_STALE_PERIODS * reportingPeriod, reportingPeriodUnit,
+                    pushGatewayWrapper, reporterConf);
+            return;
+        }
+
         reporter = builder.build(pushGatewayWrapper);
     }
 
+    @Override
+    public void start() {
+        super.start();
+
+        if (segmentPusher != null) {
+            segmentPusher.start(reportingPeriod, reportingPeriodUnit);
+        }
+    }
+
+    @Override
+    public void stop() {
+        // Frees the slot of the worker first, so that the last push deletes its groups
+        super.stop();
+
+        if (segmentPusher != null) {
+            segmentPusher.stop();
+        }
+    }
+
 }
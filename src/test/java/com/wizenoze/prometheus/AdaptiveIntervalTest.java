@@ -0,0 +1,71 @@
+package com.wizenoze.prometheus;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class AdaptiveIntervalTest {
+
+    private AdaptiveInterval interval;
+
+    @BeforeEach
+    void setUp() {
+        interval = new AdaptiveInterval(60000, SECONDS.toNanos(1), 0.1);
+        interval.setNominalMillis(10000);
+    }
+
+    @Test
+    void givenHealthyGateway_whenUpdate_thenNominal() {
+        interval.update(SECONDS.toNanos(0), 10, 0);
+
+        assertEquals(10000, interval.getMillis());
+    }
+
+    @Test
+    void givenManyFastPushes_whenUpdate_thenNominal() {
+        // 60 groups at 20 ms each take longer than the threshold, but no push does
+        for (int report = 0; report < 3; report++) {
+            interval.update(MILLISECONDS.toNanos(60 * 20), 60, 0);
+        }
+
+        assertEquals(10000, interval.getMillis());
+    }
+
+    @Test
+    void givenSlowGateway_whenUpdate_thenStretchedUpToMaximum() {
+        interval.update(SECONDS.toNanos(20), 10, 0);
+        assertEquals(20000, interval.getMillis());
+
+        interval.update(SECONDS.toNanos(20), 10, 0);
+        assertEquals(40000, interval.getMillis());
+
+        interval.update(SECONDS.toNanos(20), 10, 0);
+        assertEquals(60000, interval.getMillis());
+    }
+
+    @Test
+    void givenFailingGateway_whenUpdate_thenStretched() {
+        interval.update(0, 10, 5);
+
+        assertEquals(20000, interval.getMillis());
+    }
+
+    @Test
+    void givenRecoveredGateway_whenUpdate_thenBackToNominal() {
+        interval.update(SECONDS.toNanos(20), 10, 0);
+        interval.update(SECONDS.toNanos(20), 10, 0);
+        assertEquals(40000, interval.getMillis());
+
+        // The smoothed latency drops to 1 second, which doesn't exceed the threshold
+        interval.update(0, 10, 0);
+        assertEquals(20000, interval.getMillis());
+
+        interval.update(0, 10, 0);
+        interval.update(0, 10, 0);
+        assertEquals(10000, interval.getMillis());
+    }
+
+}
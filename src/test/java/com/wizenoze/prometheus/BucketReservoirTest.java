@@ -0,0 +1,101 @@
+package com.wizenoze.prometheus;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.codahale.metrics.Snapshot;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+class BucketReservoirTest {
+
+    @Test
+    void givenValues_whenGetSnapshot_thenCountedIntoBuckets() {
+        BucketReservoir reservoir = new BucketReservoir(HistogramBuckets.of(1, 5, 10));
+        for (long value : new long[]{0, 1, 3, 7, 20}) {
+            reservoir.update(value);
+        }
+
+        BucketSnapshot snapshot = (BucketSnapshot) reservoir.getSnapshot();
+
+        assertEquals(5, snapshot.getCount());
+        assertEquals(31, snapshot.getSum());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(20, snapshot.getMax());
+        assertEquals(2, snapshot.getCumulativeCount(1));
+        assertEquals(3, snapshot.getCumulativeCount(5));
+        assertEquals(4, snapshot.getCumulativeCount(10));
+        assertEquals(5, snapshot.getCumulativeCount(Double.POSITIVE_INFINITY));
+    }
+
+    @Test
+    void givenValues_whenGetValue_thenInterpolatedWithinBucket() {
+        BucketReservoir reservoir = new BucketReservoir(HistogramBuckets.of(10, 20));
+        for (long value = 11; value <= 20; value++) {
+            reservoir.update(value);
+        }
+
+        Snapshot snapshot = reservoir.getSnapshot();
+
+        assertEquals(11.0, snapshot.getValue(0));
+        assertEquals(15.5, snapshot.getMedian());
+        assertEquals(20.0, snapshot.getValue(1));
+        assertEquals(15.5, snapshot.getMean());
+    }
+
+    @Test
+    void givenTimerBuckets_whenUpdate_thenBoundsConvertedToNanoseconds() {
+        BucketReservoir reservoir =
+                new BucketReservoir(HistogramBuckets.exponential(1, 2, 3), MILLISECONDS);
+        reservoir.update(MILLISECONDS.toNanos(2));
+        reservoir.update(MILLISECONDS.toNanos(3));
+
+        BucketSnapshot snapshot = (BucketSnapshot) reservoir.getSnapshot();
+
+        assertEquals(0, snapshot.getCumulativeCount(1e6));
+        assertEquals(1, snapshot.getCumulativeCount(2e6));
+        assertEquals(2, snapshot.getCumulativeCount(4e6));
+    }
+
+    @Test
+    void givenSnapshotsWithOtherBounds_whenMerge_thenCountedIntoNextLargerBucket() {
+        BucketReservoir reservoir = new BucketReservoir(HistogramBuckets.of(1, 10));
+        reservoir.update(1);
+        BucketReservoir otherReservoir = new BucketReservoir(HistogramBuckets.of(1, 5, 100));
+        otherReservoir.update(1);
+        otherReservoir.update(4);
+        otherReservoir.update(50);
+
+        BucketSnapshot snapshot = BucketSnapshot.merge((BucketSnapshot) reservoir.getSnapshot(),
+                (BucketSnapshot) otherReservoir.getSnapshot());
+
+        assertEquals(4, snapshot.getCount());
+        assertEquals(56, snapshot.getSum());
+        assertEquals(2, snapshot.getCumulativeCount(1));
+        assertEquals(3, snapshot.getCumulativeCount(10));
+        assertEquals(1, snapshot.getMin());
+        assertEquals(50, snapshot.getMax());
+    }
+
+    @Test
+    void givenInvalidBounds_whenCreateBuckets_thenRejected() {
+        assertArrayEquals(new double[]{0.5, 1.0, 1.5},
+                HistogramBuckets.linear(0.5, 0.5, 3).getBounds());
+
+        assertThrows(IllegalArgumentException.class, new Executable() {
+            @Override
+            public void execute() {
+                HistogramBuckets.of(1, 1);
+            }
+        });
+        assertThrows(IllegalArgumentException.class, new Executable() {
+            @Override
+            public void execute() {
+                HistogramBuckets.of(1, Double.POSITIVE_INFINITY);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.wizenoze.prometheus;
+
+import io.prometheus.client.Collector;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Compares formatting sample values with {@link DoubleFormat} to {@code Double.toString(double)}
+ * used by the Prometheus client library's text writer.
+ *
+ * It's not a unit test, run it with {@code java -cp ... ExpositionBufferBenchmark}.
+ */
+public class ExpositionBufferBenchmark {
+
+    private static final int SAMPLES = 50000;
+    private static final int ROUNDS = 50;
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+
+        double[] counters = new double[SAMPLES];
+        double[] rates = new double[SAMPLES];
+        for (int index = 0; index < SAMPLES; index++) {
+            counters[index] = random.nextInt(1000000);
+            rates[index] = random.nextDouble() * 100;
+        }
+
+        for (int warmUp = 0; warmUp < 3; warmUp++) {
+            run("Double.toString, counters", counters, false);
+            run("Double.toString, rates", rates, false);
+            run("DoubleFormat, counters", counters, true);
+            run("DoubleFormat, rates", rates, true);
+            System.out.println();
+        }
+    }
+
+    private static void run(String name, double[] values, boolean doubleFormat) {
+        ExpositionBuffer buffer = new ExpositionBuffer(SAMPLES * 32);
+
+        long allocatedBytes = THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long startTime = System.nanoTime();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            buffer.reset();
+            for (double value : values) {
+                if (doubleFormat) {
+                    DoubleFormat.write(buffer, value);
+                } else {
+                    buffer.appendAscii(Collector.doubleToGoString(value));
+                }
+                buffer.append((byte) '\n');
+            }
+        }
+
+        long elapsedTime = System.nanoTime() - startTime;
+        allocatedBytes =
+                THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId())
+                        - allocatedBytes;
+
+        long operations = (long) ROUNDS * values.length;
+
+        System.out.printf("%-30s %8.1f ns/sample %8.1f bytes/sample%n",
+                name, (double) elapsedTime / operations, (double) allocatedBytes / operations);
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.wizenoze.prometheus;
+
+import static com.wizenoze.test.ExpositionParser.parseSamples;
+import static com.wizenoze.test.ExpositionParser.parseValue;
+import static io.prometheus.client.Collector.doubleToGoString;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.TextFormat;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class ExpositionBufferTest {
+
+    private static final double[] EDGE_VALUES = {
+            0.0, -0.0, 1.0, -1.0, 0.1, 0.2, 0.3, 1.0 / 3, 2.0 / 3, 123.456, -123.456,
+            0.001, 1.0E-7, 1.0E-20, 1.0E7, 1.0E15, 1.0E16, 1.0E22, 1.0E300, 9007199254740991.0,
+            9007199254740993.0, Long.MAX_VALUE, Long.MIN_VALUE, Double.MIN_VALUE,
+            Double.MIN_NORMAL, Double.MAX_VALUE, Double.NaN, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY
+    };
+
+    @Test
+    void givenValues_whenWriteSample_thenParsedAsTextFormat() {
+        Random random = new Random(42);
+
+        List<Double> values = new ArrayList<>();
+        for (double value : EDGE_VALUES) {
+            values.add(value);
+        }
+
+        for (int index = 0; index < 100000; index++) {
+            values.add(Double.longBitsToDouble(random.nextLong()));
+            values.add(random.nextDouble() * 1000);
+            values.add((double) random.nextInt());
+            values.add(Math.round(random.nextDouble() * 1000000) / 1000.0);
+        }
+
+        ExpositionBuffer buffer = new ExpositionBuffer();
+        for (double value : values) {
+            buffer.reset();
+            DoubleFormat.write(buffer, value);
+
+            double expected = parseValue(doubleToGoString(value));
+            double actual = parseValue(buffer.toString());
+
+            assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(actual),
+                    buffer.toString() + " != " + doubleToGoString(value));
+        }
+    }
+
+    @Test
+    void givenIntegralValues_whenWriteSample_thenWrittenAsIntegers() {
+        ExpositionBuffer buffer = new ExpositionBuffer();
+
+        buffer.writeSample("a", 42).writeSample("b", -7).writeSample("c", 0.25)
+                .writeSample("d", Double.NaN).writeSample("e", Double.NEGATIVE_INFINITY);
+
+        assertEquals("a 42\nb -7\nc 0.25\nd NaN\ne -Inf\n", buffer.toString());
+    }
+
+    @Test
+    void givenGauge_whenWriteFamily_thenSameAsTextFormat() throws IOException {
+        String help = "storm.worker.topology.null.component.1.6700-disruptor[1 1]-\\ünïcødé\n";
+
+        CollectorRegistry registry = new CollectorRegistry();
+        Gauge.build().name("test_gauge").help(help).register(registry).set(0.1);
+
+        StringWriter writer = new StringWriter();
+        TextFormat.write004(writer, registry.metricFamilySamples());
+
+        ExpositionBuffer buffer = new ExpositionBuffer(1);
+        buffer.writeFamily("test_gauge", help, "gauge").writeSample("test_gauge", 0.1);
+
+        assertEquals(writer.toString(), buffer.toString());
+        assertEquals(parseSamples(writer.toString()), parseSamples(buffer.toString()));
+    }
+
+}
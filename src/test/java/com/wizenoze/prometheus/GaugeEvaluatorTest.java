@@ -0,0 +1,97 @@
+package com.wizenoze.prometheus;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.Gauge;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class GaugeEvaluatorTest {
+
+    @Test
+    void givenFullQueue_whenSubmit_thenMissedWithoutEvaluating() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger evaluations = new AtomicInteger();
+        Gauge<Integer> gauge = new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                evaluations.incrementAndGet();
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 7;
+            }
+        };
+
+        GaugeEvaluator evaluator = new GaugeEvaluator(1, 1, TimeUnit.SECONDS.toNanos(10));
+        GaugeEvaluator.Evaluation running = new GaugeEvaluator.Evaluation(gauge, "running");
+        GaugeEvaluator.Evaluation queued = new GaugeEvaluator.Evaluation(gauge, "queued");
+        GaugeEvaluator.Evaluation rejected = new GaugeEvaluator.Evaluation(gauge, "rejected");
+
+        long deadline = evaluator.deadline();
+        evaluator.submit(running, deadline);
+        evaluator.submit(queued, deadline);
+
+        long start = System.nanoTime();
+        evaluator.submit(rejected, deadline);
+        assertFalse(rejected.await());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(0, rejected.getTimeouts());
+
+        latch.countDown();
+        assertTrue(running.await());
+        assertTrue(queued.await());
+        assertEquals(2, evaluations.get());
+
+        evaluator.close();
+    }
+
+    @Test
+    void givenGaugeQueuedBehindBlockingOne_whenAwait_thenOnlyBlockingOneTimesOut()
+            throws InterruptedException {
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        Gauge<Integer> blocking = new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+                return 7;
+            }
+        };
+        Gauge<Integer> fast = new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return 8;
+            }
+        };
+
+        GaugeEvaluator evaluator = new GaugeEvaluator(1, 10, TimeUnit.MILLISECONDS.toNanos(200));
+        GaugeEvaluator.Evaluation slow = new GaugeEvaluator.Evaluation(blocking, "slow");
+        GaugeEvaluator.Evaluation queued = new GaugeEvaluator.Evaluation(fast, "queued");
+
+        long deadline = evaluator.deadline();
+        evaluator.submit(slow, deadline);
+        evaluator.submit(queued, deadline);
+
+        assertFalse(slow.await());
+        assertEquals(1, slow.getTimeouts());
+
+        assertTrue(queued.await());
+        assertEquals(8, queued.getValue());
+        assertEquals(0, queued.getTimeouts());
+        assertTrue(interrupted.get());
+
+        evaluator.close();
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.wizenoze.prometheus;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class HostNameTest {
+
+    @Test
+    void givenLookup_whenGetTwice_thenLookedUpOnce() {
+        final AtomicInteger lookups = new AtomicInteger();
+        HostName hostName = new HostName(new Callable<String>() {
+            @Override
+            public String call() {
+                lookups.incrementAndGet();
+                return "worker-1";
+            }
+        }, 1000);
+
+        assertEquals("worker-1", hostName.get());
+        assertEquals("worker-1", hostName.get());
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    void givenBlockingLookup_whenGet_thenFallbackKeptAfterTimeout() {
+        final CountDownLatch resolver = new CountDownLatch(1);
+        HostName hostName = new HostName(new Callable<String>() {
+            @Override
+            public String call() throws InterruptedException {
+                resolver.await();
+                return "worker-1";
+            }
+        }, 50);
+
+        long start = System.nanoTime();
+        hostName.start();
+        assertTrue(System.nanoTime() - start < 50 * 1000 * 1000);
+
+        String fallback = System.getenv("HOSTNAME");
+        assertEquals(fallback != null ? fallback : "", hostName.get());
+
+        // The labels of series don't change once the lookup completes
+        resolver.countDown();
+        assertEquals(fallback != null ? fallback : "", hostName.get());
+    }
+
+}
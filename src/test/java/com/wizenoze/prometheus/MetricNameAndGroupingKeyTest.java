@@ -1,6 +1,8 @@
 package com.wizenoze.prometheus;
 
+import static com.wizenoze.prometheus.MetricNameAndGroupingKey.fallbackMetric;
 import static com.wizenoze.prometheus.MetricNameAndGroupingKey.parseMetric;
+import static com.wizenoze.prometheus.MetricNameAndGroupingKey.parseStormMetric;
 import static org.apache.storm.metrics2.StormMetricRegistry.metricName;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.allOf;
@@ -8,6 +10,8 @@ import static org.hamcrest.Matchers.hasEntry;
 import static org.hamcrest.Matchers.hasKey;
 import static org.hamcrest.Matchers.not;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.Test;
 
@@ -125,4 +129,27 @@ class MetricNameAndGroupingKeyTest {
         );
     }
 
+    @Test
+    void givenForeignMetricName_whenParseStormMetric_thenNull() {
+        assertNull(parseStormMetric("supervisor.slots-used"));
+    }
+
+    @Test
+    void givenForeignMetricName_whenFallbackMetric_thenNameEscapedWithoutGroupingKey() {
+        MetricNameAndGroupingKey metricNameAndGroupingKey =
+                fallbackMetric("supervisor.slots-used");
+
+        assertEquals("supervisor_slots_used", metricNameAndGroupingKey.getName());
+        assertTrue(metricNameAndGroupingKey.getGroupingKey().isEmpty());
+
+        assertEquals("_2xx_responses", fallbackMetric("2xx-responses").getName());
+    }
+
+    @Test
+    void givenNonAsciiMetricName_whenFallbackMetric_thenNonAsciiCharactersEscaped() {
+        assertEquals("caf__latency", fallbackMetric("caf\u00e9.latency").getName());
+        assertEquals("___count", fallbackMetric("\u0662\u0663.count").getName());
+        assertEquals("_requests", fallbackMetric("\u8bf7requests").getName());
+    }
+
 }
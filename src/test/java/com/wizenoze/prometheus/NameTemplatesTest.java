@@ -0,0 +1,83 @@
+package com.wizenoze.prometheus;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.not;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+class NameTemplatesTest {
+
+    private final NameTemplates nameTemplates = NameTemplates.compile(asList(
+            "app.{service}.{endpoint}.{name}",
+            "app.{service}.jvm.{name}",
+            "batch.{batch_job}.{name}"));
+
+    @Test
+    void givenMatchingName_whenParse_thenLabelsExtracted() {
+        MetricNameAndGroupingKey metric = nameTemplates.parse("app.search.query.request-count");
+
+        assertEquals("request_count", metric.getName());
+        assertThat(metric.getGroupingKey(), allOf(
+                hasEntry("service", "search"),
+                hasEntry("endpoint", "query"),
+                not(hasKey("name"))));
+    }
+
+    @Test
+    void givenLiteralSegment_whenParse_thenPreferredOverPlaceholder() {
+        MetricNameAndGroupingKey metric = nameTemplates.parse("app.search.jvm.heap");
+
+        assertEquals("heap", metric.getName());
+        assertEquals(Collections.singletonMap("service", "search"), metric.getGroupingKey());
+    }
+
+    @Test
+    void givenNameStartingWithDigit_whenParse_thenUnderscorePrepended() {
+        MetricNameAndGroupingKey metric = nameTemplates.parse("app.svc.ep.5xx");
+
+        assertEquals("_5xx", metric.getName());
+        assertEquals("svc", metric.getGroupingKey().get("service"));
+        assertEquals("ep", metric.getGroupingKey().get("endpoint"));
+    }
+
+    @Test
+    void givenNonMatchingName_whenParse_thenNull() {
+        assertNull(nameTemplates.parse("app.search.heap"));
+        assertNull(nameTemplates.parse("app.search.query.requests.count"));
+        assertNull(nameTemplates.parse("batch..count"));
+        assertNull(nameTemplates.parse("other.search.query.requests"));
+    }
+
+    @Test
+    void givenInvalidTemplates_whenCompile_thenIllegalArgumentException() {
+        assertInvalid("app.{service}");
+        assertInvalid("app.{service}.{service}.{name}");
+        assertInvalid("app.{service}-api.{name}");
+        assertInvalid("app.{1st}.{name}");
+        assertInvalid("app.{s\u00e9rvice}.{name}");
+        assertInvalid("app.{\u0663}.{name}");
+        assertInvalid("app.{instance}.{name}");
+        assertInvalid("app.{job}.{name}");
+        assertInvalid("app.{le}.{name}");
+        assertInvalid("");
+    }
+
+    private static void assertInvalid(final String template) {
+        assertThrows(IllegalArgumentException.class, new Executable() {
+            @Override
+            public void execute() {
+                NameTemplates.compile(Collections.singletonList(template));
+            }
+        });
+    }
+
+}
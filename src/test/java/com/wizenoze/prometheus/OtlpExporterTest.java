@@ -0,0 +1,192 @@
+package com.wizenoze.prometheus;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.storm.metrics2.StormMetricRegistry.metricName;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.wizenoze.test.OtlpCollector;
+import com.wizenoze.test.OtlpCollector.Metric;
+import com.wizenoze.test.OtlpCollector.Request;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class OtlpExporterTest {
+
+    private static final long TIMESTAMP = 1546300800000L;
+
+    private OtlpCollector collector;
+    private MetricRegistry metricRegistry;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        collector = new OtlpCollector();
+
+        metricRegistry = new MetricRegistry();
+        metricRegistry.counter(metricName("emitted", "topology", "component", "stream", 1, 1))
+                .inc(2);
+        metricRegistry.counter(metricName("emitted", "topology", "component", "stream", 2, 1))
+                .inc(3);
+        metricRegistry.register(metricName("queue", "topology", "component", "stream", 1, 1),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return 7;
+                    }
+                });
+
+        for (int value = 1; value <= 3; value++) {
+            metricRegistry.histogram(metricName("latency", "topology", "component", "stream", 1, 1))
+                    .update(value);
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        collector.stop();
+    }
+
+    @Test
+    void givenMetrics_whenReport_thenSingleRequestSent() throws Exception {
+        PrometheusReporter reporter = createReporter();
+
+        reporter.report();
+
+        Request request = collector.takeRequest(10, SECONDS);
+        assertNotNull(request);
+
+        assertEquals("application/x-protobuf", request.contentType);
+        assertEquals("com.wizenoze.prometheus", request.scopeName);
+        assertEquals("storm", request.resourceAttributes.get("service.name"));
+        assertEquals("host", request.resourceAttributes.get("host.name"));
+
+        List<String> taskIds = new ArrayList<>();
+        for (Metric metric : request.getMetrics("storm_worker_emitted_count")) {
+            taskIds.add(metric.attributes.get("task_id"));
+        }
+        assertEquals(Arrays.asList("1", "2"), taskIds);
+
+        reporter.stop();
+    }
+
+    @Test
+    void givenCounter_whenReport_thenMonotonicCumulativeSum() throws Exception {
+        PrometheusReporter reporter = createReporter();
+
+        reporter.report();
+
+        Metric metric = collector.takeRequest(10, SECONDS)
+                .getMetrics("storm_worker_emitted_count").get(0);
+
+        assertEquals("sum", metric.type);
+        assertTrue(metric.monotonic);
+        assertEquals(2, metric.aggregationTemporality);
+        assertEquals(2.0, metric.value);
+        assertEquals(MILLISECONDS.toNanos(TIMESTAMP), metric.timeNanos);
+        assertTrue(metric.startTimeNanos > 0);
+        assertEquals("component", metric.attributes.get("component_id"));
+
+        reporter.stop();
+    }
+
+    @Test
+    void givenGauge_whenReport_thenGauge() throws Exception {
+        PrometheusReporter reporter = createReporter();
+
+        reporter.report();
+
+        List<Metric> metrics = collector.takeRequest(10, SECONDS)
+                .getMetrics("storm_worker_queue");
+
+        assertEquals(1, metrics.size());
+        assertEquals("gauge", metrics.get(0).type);
+        assertEquals(7.0, metrics.get(0).value);
+        assertEquals(MILLISECONDS.toNanos(TIMESTAMP), metrics.get(0).timeNanos);
+
+        reporter.stop();
+    }
+
+    @Test
+    void givenHistogram_whenReport_thenSummaryAndGauges() throws Exception {
+        PrometheusReporter reporter = createReporter();
+
+        reporter.report();
+
+        Request request = collector.takeRequest(10, SECONDS);
+
+        List<Metric> summaries = request.getMetrics("storm_worker_latency");
+        assertEquals(1, summaries.size());
+
+        Metric summary = summaries.get(0);
+        assertEquals("summary", summary.type);
+        assertEquals(3, summary.count);
+        assertEquals("1", summary.attributes.get("task_id"));
+        assertEquals(Arrays.asList(0.0, 0.5, 0.75, 0.95, 0.98, 0.99, 0.999, 1.0),
+                new ArrayList<>(summary.quantiles.keySet()));
+        assertEquals(1.0, summary.quantiles.get(0.0).doubleValue());
+        assertEquals(2.0, summary.quantiles.get(0.5).doubleValue());
+        assertEquals(3.0, summary.quantiles.get(1.0).doubleValue());
+
+        Metric mean = request.getMetrics("storm_worker_latency_mean").get(0);
+        assertEquals("gauge", mean.type);
+        assertEquals(2.0, mean.value);
+        assertEquals("gauge", request.getMetrics("storm_worker_latency_stddev").get(0).type);
+
+        reporter.stop();
+    }
+
+    @Test
+    void givenHistogramBuckets_whenReport_thenHistogram() throws Exception {
+        PrometheusReporter reporter = createReporter(HistogramBuckets.of(1, 2));
+
+        reporter.report();
+
+        Request request = collector.takeRequest(10, SECONDS);
+
+        List<Metric> histograms = request.getMetrics("storm_worker_latency");
+        assertEquals(1, histograms.size());
+
+        Metric histogram = histograms.get(0);
+        assertEquals("histogram", histogram.type);
+        assertEquals(2, histogram.aggregationTemporality);
+        assertEquals(3, histogram.count);
+        assertEquals(6.0, histogram.value);
+        assertEquals("1", histogram.attributes.get("task_id"));
+        assertEquals(Arrays.asList(1.0, 2.0), histogram.bounds);
+        assertEquals(Arrays.asList(1L, 1L, 1L), histogram.bucketCounts);
+
+        reporter.stop();
+    }
+
+    private PrometheusReporter createReporter() throws IOException {
+        return createReporter(null);
+    }
+
+    private PrometheusReporter createReporter(HistogramBuckets buckets) throws IOException {
+        return PrometheusReporter.forRegistry(metricRegistry)
+                .histogramBuckets(buckets)
+                .withClock(new Clock() {
+                    @Override
+                    public long getTick() {
+                        return 0;
+                    }
+
+                    @Override
+                    public long getTime() {
+                        return TIMESTAMP;
+                    }
+                })
+                .build(OtlpExporter.forEndpoint(collector.getUrl()).withHostName("host").build());
+    }
+
+}
@@ -4,34 +4,70 @@ import static com.wizenoze.test.MetricRegistryBuilder.COUNTER_NAME;
 import static com.wizenoze.test.MetricRegistryBuilder.GAUGE_NAME;
 import static com.wizenoze.test.MetricRegistryBuilder.HISTOGRAM_NAME;
 import static com.wizenoze.test.MetricRegistryBuilder.METER_NAME;
+import static com.wizenoze.test.ExpositionParser.parseSamples;
 import static com.wizenoze.test.MetricRegistryBuilder.TIMER_NAME;
+import static java.util.Collections.singleton;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.storm.metrics2.StormMetricRegistry.metricName;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import com.codahale.metrics.Clock;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingWindowReservoir;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
+import com.codahale.metrics.UniformSnapshot;
 import com.wizenoze.test.MetricRegistryBuilder;
 import io.prometheus.client.CollectorRegistry;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.function.Executable;
 import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.stubbing.Answer;
 
 @ExtendWith(MockitoExtension.class)
 class PrometheusReporterTest {
 
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
     private Histogram histogram;
     private Counter counter;
     private Meter meter;
@@ -67,207 +103,1120 @@ class PrometheusReporterTest {
     void testReport() throws IOException {
         prometheusReporter.report();
 
-        ArgumentCaptor<CollectorRegistry> collectorRegistryCaptor =
-                ArgumentCaptor.forClass(CollectorRegistry.class);
+        ArgumentCaptor<ExpositionBuffer> metricsCaptor =
+                ArgumentCaptor.forClass(ExpositionBuffer.class);
 
         ArgumentCaptor<String> jobNameCaptor =
                 ArgumentCaptor.forClass(String.class);
 
         ArgumentCaptor<Map<String, String>> groupingKeyCaptor = ArgumentCaptor.forClass(Map.class);
 
-        verify(pushGatewayWrapper, times(5)).pushAdd(
-                collectorRegistryCaptor.capture(),
+        // All the metrics share the same grouping key, hence they're pushed together
+        verify(pushGatewayWrapper).pushAdd(
+                metricsCaptor.capture(),
                 jobNameCaptor.capture(),
                 groupingKeyCaptor.capture());
 
-        List<CollectorRegistry> collectorRegistries = collectorRegistryCaptor.getAllValues();
+        Map<String, Double> samples = parseSamples(metricsCaptor.getValue().toString());
+
+        assertGauge(samples);
+        assertCounter(samples);
+        assertHistogram(samples);
+        assertMeter(samples);
+        assertTimer(samples);
+    }
+
+    @Test
+    void givenRawCounters_whenReport_thenCountsPushedAsCountersWithoutRates() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistryBuilder()
+                .incrementCount()
+                .updateTimer(1)
+                .updateHistogram(1)
+                .build();
+
+        Meter rawMeter = mock(Meter.class);
+        when(rawMeter.getCount()).thenReturn(5L);
+        metricRegistry.remove(METER_NAME);
+        metricRegistry.register(METER_NAME, rawMeter);
+
+        PrometheusReporter.forRegistry(metricRegistry)
+                .rawCounters(true)
+                .build(pushGatewayWrapper)
+                .report();
+
+        ArgumentCaptor<ExpositionBuffer> metricsCaptor =
+                ArgumentCaptor.forClass(ExpositionBuffer.class);
+
+        verify(pushGatewayWrapper).pushAdd(metricsCaptor.capture(), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        String text = metricsCaptor.getValue().toString();
+        assertTrue(text.contains("# TYPE storm_worker_counter_count counter\n"));
+        assertTrue(text.contains("# TYPE storm_worker_meter_count counter\n"));
+        assertTrue(text.contains("# TYPE storm_worker_timer_count counter\n"));
+        assertTrue(text.contains("# TYPE storm_worker_histogram_count counter\n"));
+        assertTrue(text.contains("# TYPE storm_worker_timer_mean gauge\n"));
+        assertFalse(text.contains("_rate"));
+
+        assertEquals(5.0, parseSamples(text).get("storm_worker_meter_count").doubleValue());
+
+        verify(rawMeter, never()).getOneMinuteRate();
+        verify(rawMeter, never()).getFiveMinuteRate();
+        verify(rawMeter, never()).getFifteenMinuteRate();
+        verify(rawMeter, never()).getMeanRate();
+    }
+
+    @Test
+    void givenReplaceGroups_whenReport_thenGroupsReplaced() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistryBuilder().incrementCount().build();
+
+        PrometheusReporter.forRegistry(metricRegistry)
+                .replaceGroups(true)
+                .build(pushGatewayWrapper)
+                .report();
+
+        ArgumentCaptor<ExpositionBuffer> metricsCaptor =
+                ArgumentCaptor.forClass(ExpositionBuffer.class);
+
+        verify(pushGatewayWrapper).push(metricsCaptor.capture(), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+        verify(pushGatewayWrapper, never()).pushAdd(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        assertEquals(1.0, parseSamples(metricsCaptor.getValue().toString())
+                .get("storm_worker_counter_count").doubleValue());
+    }
+
+    @Test
+    void givenAggregateTasks_whenReport_thenTasksAggregated() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        metricRegistry.counter(metricName("emitted", "topology", "component", "stream", 1, 1))
+                .inc(2);
+        metricRegistry.counter(metricName("emitted", "topology", "component", "stream", 2, 1))
+                .inc(3);
+        metricRegistry.counter(metricName("acked", "topology", "component", "stream", 1, 1))
+                .inc(4);
+        metricRegistry.counter(metricName("acked", "topology", "component", "stream", 2, 1))
+                .inc(5);
+
+        metricRegistry.histogram(metricName("latency", "topology", "component", "stream", 1, 1))
+                .update(1);
+        metricRegistry.histogram(metricName("latency", "topology", "component", "stream", 2, 1))
+                .update(3);
+
+        PrometheusReporter.forRegistry(metricRegistry)
+                .aggregateTasks(true)
+                .keepPerTask(singleton("storm_worker_acked"))
+                .build(pushGatewayWrapper)
+                .report();
+
+        ArgumentCaptor<ExpositionBuffer> metricsCaptor =
+                ArgumentCaptor.forClass(ExpositionBuffer.class);
+
+        ArgumentCaptor<Map<String, String>> groupingKeyCaptor = ArgumentCaptor.forClass(Map.class);
+
+        // Task 1, task 2 and the aggregate of both
+        verify(pushGatewayWrapper, times(3)).pushAdd(
+                metricsCaptor.capture(),
+                anyString(),
+                groupingKeyCaptor.capture());
+
+        List<ExpositionBuffer> metrics = metricsCaptor.getAllValues();
+        List<Map<String, String>> groupingKeys = groupingKeyCaptor.getAllValues();
+
+        // acked is kept per task
+        assertEquals(4.0, parseSamples(metrics.get(0).toString())
+                .get("storm_worker_acked_count").doubleValue());
+        assertEquals("1", groupingKeys.get(0).get("task_id"));
+        assertEquals(5.0, parseSamples(metrics.get(1).toString())
+                .get("storm_worker_acked_count").doubleValue());
+        assertEquals("2", groupingKeys.get(1).get("task_id"));
+
+        Map<String, Double> samples = parseSamples(metrics.get(2).toString());
+        assertEquals(5.0, samples.get("storm_worker_emitted_count").doubleValue());
+        assertEquals(2.0, samples.get("storm_worker_latency_count").doubleValue());
+        assertEquals(1.0, samples.get("storm_worker_latency_min").doubleValue());
+        assertEquals(3.0, samples.get("storm_worker_latency_max").doubleValue());
+        assertEquals(2.0, samples.get("storm_worker_latency_mean").doubleValue());
+        assertFalse(groupingKeys.get(2).containsKey("task_id"));
+    }
+
+    @Test
+    void givenMetricsRegisteredAfterwards_whenReport_thenTracked() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .build(pushGatewayWrapper);
+
+        String emittedName = metricName("emitted", "topology", "component", "stream", 1, 1);
+        String ackedName = metricName("acked", "topology", "component", "stream", 1, 1);
+
+        metricRegistry.counter(emittedName).inc();
+        metricRegistry.counter(ackedName).inc();
+        metricRegistry.counter("not.a.storm.metric").inc();
+        metricRegistry.remove(ackedName);
+
+        reporter.report();
+
+        ArgumentCaptor<ExpositionBuffer> metricsCaptor =
+                ArgumentCaptor.forClass(ExpositionBuffer.class);
+
+        verify(pushGatewayWrapper).pushAdd(metricsCaptor.capture(), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        assertEquals(1.0, parseSamples(metricsCaptor.getValue().toString())
+                .get("storm_worker_emitted_count").doubleValue());
+    }
+
+    @Test
+    void givenMetricsRemoved_whenReport_thenStaleGroupDeleted() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        String task1Name = metricName("emitted", "topology", "component", "stream", 1, 1);
+        String task2Name = metricName("emitted", "topology", "component", "stream", 2, 1);
+
+        metricRegistry.counter(task1Name).inc();
+        metricRegistry.counter(task2Name).inc();
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .build(pushGatewayWrapper);
+
+        reporter.report();
+        verify(pushGatewayWrapper, never()).delete(anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        metricRegistry.remove(task2Name);
+        reporter.report();
+
+        ArgumentCaptor<Map<String, String>> groupingKeyCaptor = ArgumentCaptor.forClass(Map.class);
+
+        verify(pushGatewayWrapper).delete(anyString(), groupingKeyCaptor.capture());
+        assertEquals("2", groupingKeyCaptor.getValue().get("task_id"));
+
+        reporter.stop();
+
+        verify(pushGatewayWrapper, times(2)).delete(anyString(), groupingKeyCaptor.capture());
+        assertEquals("1", groupingKeyCaptor.getValue().get("task_id"));
+
+        // Two cycles and the final flush for task 1, one cycle for task 2
+        verify(pushGatewayWrapper, times(4)).pushAdd(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+    }
+
+    @Test
+    void givenForeignMetricName_whenReport_thenOtherMetricsReported() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        metricRegistry.counter("supervisor.slots-used").inc();
+        metricRegistry.counter(metricName("emitted", "topology", "component", "stream", 1, 1))
+                .inc();
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .build(pushGatewayWrapper);
+
+        // Parses the names on every report
+        reporter.report(metricRegistry.getGauges(), metricRegistry.getCounters(),
+                metricRegistry.getHistograms(), metricRegistry.getMeters(),
+                metricRegistry.getTimers());
+
+        ArgumentCaptor<ExpositionBuffer> metricsCaptor =
+                ArgumentCaptor.forClass(ExpositionBuffer.class);
+
+        verify(pushGatewayWrapper).pushAdd(metricsCaptor.capture(), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        Map<String, Double> samples = parseSamples(metricsCaptor.getValue().toString());
+        assertEquals(1, samples.size());
+        assertEquals(1.0, samples.get("storm_worker_emitted_count").doubleValue());
+    }
+
+    @Test
+    void givenEscapedNameFallback_whenReport_thenReportedWithoutGroupingKey() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .nameFallback(NameFallback.ESCAPED_NAME)
+                .build(pushGatewayWrapper);
+
+        metricRegistry.counter("supervisor.slots-used").inc(3);
+
+        reporter.report();
+
+        ArgumentCaptor<ExpositionBuffer> metricsCaptor =
+                ArgumentCaptor.forClass(ExpositionBuffer.class);
+        ArgumentCaptor<Map<String, String>> groupingKeyCaptor = ArgumentCaptor.forClass(Map.class);
+
+        verify(pushGatewayWrapper).pushAdd(metricsCaptor.capture(), anyString(),
+                groupingKeyCaptor.capture());
+
+        assertEquals(3.0, parseSamples(metricsCaptor.getValue().toString())
+                .get("supervisor_slots_used_count").doubleValue());
+        assertTrue(groupingKeyCaptor.getValue().isEmpty());
+    }
+
+    @Test
+    void givenNameTemplates_whenReport_thenUserMetricsLabelled() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .nameTemplates(singleton("app.{service}.{endpoint}.{name}"))
+                .build(pushGatewayWrapper);
+
+        metricRegistry.counter("app.search.query.requests").inc(2);
+
+        reporter.report();
+
+        ArgumentCaptor<ExpositionBuffer> metricsCaptor =
+                ArgumentCaptor.forClass(ExpositionBuffer.class);
+        ArgumentCaptor<Map<String, String>> groupingKeyCaptor = ArgumentCaptor.forClass(Map.class);
+
+        verify(pushGatewayWrapper).pushAdd(metricsCaptor.capture(), anyString(),
+                groupingKeyCaptor.capture());
+
+        assertEquals(2.0, parseSamples(metricsCaptor.getValue().toString())
+                .get("requests_count").doubleValue());
+        assertEquals("search", groupingKeyCaptor.getValue().get("service"));
+        assertEquals("query", groupingKeyCaptor.getValue().get("endpoint"));
+    }
+
+    @Test
+    void givenBlockingGauge_whenReport_thenLastValueAndTimeoutsPushed()
+            throws IOException, InterruptedException {
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger evaluations = new AtomicInteger();
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        metricRegistry.register(metricName("slow", "topology", "component", "stream", 1, 1),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        if (evaluations.incrementAndGet() > 1) {
+                            // Ignores being interrupted, so keeps blocking until released
+                            boolean interrupted = false;
+                            while (latch.getCount() > 0) {
+                                try {
+                                    latch.await();
+                                } catch (InterruptedException e) {
+                                    interrupted = true;
+                                }
+                            }
+                            if (interrupted) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        return 7;
+                    }
+                });
+        metricRegistry.register(metricName("fast", "topology", "component", "stream", 1, 1),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return 3;
+                    }
+                });
+
+        final List<Map<String, Double>> pushes = new ArrayList<>();
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                pushes.add(parseSamples(invocation.getArgument(0).toString()));
+                return null;
+            }
+        }).when(pushGatewayWrapper).pushAdd(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .gaugeTimeout(50, MILLISECONDS)
+                .build(pushGatewayWrapper);
+
+        try {
+            for (int report = 0; report < 4; report++) {
+                reporter.report();
+            }
+        } finally {
+            latch.countDown();
+        }
+
+        assertEquals(4, pushes.size());
+        for (Map<String, Double> samples : pushes) {
+            assertEquals(Double.valueOf(7), samples.get("storm_worker_slow"));
+            assertEquals(Double.valueOf(3), samples.get("storm_worker_fast"));
+        }
+
+        // Not evaluated again while blocking, and reported as slow after 3 timeouts
+        assertEquals(2, evaluations.get());
+        assertFalse(pushes.get(2).containsKey("storm_worker_slow_evaluation_timeouts"));
+        assertEquals(Double.valueOf(3), pushes.get(3).get("storm_worker_slow_evaluation_timeouts"));
+        assertFalse(pushes.get(3).containsKey("storm_worker_fast_evaluation_timeouts"));
+
+        reporter.stop();
+    }
+
+    @Test
+    void givenTiers_whenReportTier_thenOnlyMetricsOfTierPushed() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        metricRegistry.counter(metricName("emitted", "topology", "component", "stream", 1, 1))
+                .inc();
+        metricRegistry.counter(metricName("queue-overflow", "topology", "component", "stream", 1,
+                1)).inc(2);
+
+        final List<Map<String, Double>> pushes = new ArrayList<>();
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                pushes.add(parseSamples(invocation.getArgument(0).toString()));
+                return null;
+            }
+        }).when(pushGatewayWrapper).pushAdd(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .addTier(ReportTier.every(5, SECONDS).named(singleton("*_overflow")).build())
+                .build(pushGatewayWrapper);
+
+        reporter.report();
+        reporter.reportTier(1);
+        reporter.report();
+
+        assertEquals(3, pushes.size());
+        assertEquals(singleton("storm_worker_emitted_count"), pushes.get(0).keySet());
+        assertEquals(singleton("storm_worker_queue_overflow_count"), pushes.get(1).keySet());
+        assertEquals(singleton("storm_worker_emitted_count"), pushes.get(2).keySet());
+
+        // The same group in the other tier isn't stale
+        verify(pushGatewayWrapper, never()).delete(anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+    }
+
+    @Test
+    void givenGroupInTwoTiers_whenStaleInOne_thenDeletedOnceStaleInBoth() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        String emitted = metricName("emitted", "topology", "component", "stream", 1, 1);
+        String overflow = metricName("queue-overflow", "topology", "component", "stream", 1, 1);
+        metricRegistry.counter(emitted).inc();
+        metricRegistry.counter(overflow).inc(2);
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .addTier(ReportTier.every(5, SECONDS).named(singleton("*_overflow")).build())
+                .build(pushGatewayWrapper);
+
+        reporter.report();
+        reporter.reportTier(1);
+
+        metricRegistry.remove(emitted);
+        reporter.report();
+        verify(pushGatewayWrapper, never()).delete(anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        metricRegistry.remove(overflow);
+        reporter.reportTier(1);
+        verify(pushGatewayWrapper).delete(anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+    }
+
+    @Test
+    void givenTiers_whenBuildReplacingGroups_thenIllegalArgumentException() {
+        final PrometheusReporter.Builder builder =
+                PrometheusReporter.forRegistry(new MetricRegistry())
+                        .replaceGroups(true)
+                        .addTier(ReportTier.every(5, SECONDS).build());
+
+        assertThrows(IllegalArgumentException.class, new Executable() {
+            @Override
+            public void execute() {
+                builder.build(pushGatewayWrapper);
+            }
+        });
+    }
+
+    @Test
+    void givenSlices_whenReport_thenEveryGroupPushedOncePerPeriod() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        for (int task = 1; task <= 8; task++) {
+            metricRegistry.counter(metricName("emitted", "topology", "component", "stream", task,
+                    6700)).inc(task);
+        }
+
+        final List<String> taskIds = new ArrayList<>();
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Map<String, String> groupingKey = invocation.getArgument(2);
+                taskIds.add(groupingKey.get("task_id"));
+                return null;
+            }
+        }).when(pushGatewayWrapper).pushAdd(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .slices(3)
+                .build(pushGatewayWrapper);
+
+        reporter.report();
+        int firstSlice = taskIds.size();
+        reporter.report();
+        reporter.report();
+
+        assertTrue(firstSlice < 8);
+        assertEquals(8, taskIds.size());
+        assertEquals(8, new HashSet<>(taskIds).size());
+
+        // The next period starts over with the first slice
+        reporter.report();
+        assertEquals(taskIds.subList(0, firstSlice), taskIds.subList(8, 8 + firstSlice));
+
+        // Groups of the other slices aren't stale
+        verify(pushGatewayWrapper, never()).delete(anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+    }
+
+    @Test
+    void givenWarmedUp_whenReport_thenNoSeriesEncoded() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistryBuilder()
+                .incrementCount()
+                .updateTimer(1)
+                .setGaugeValue(1)
+                .build();
+
+        PushGatewayExporter exporter = spy(new PushGatewayExporter(pushGatewayWrapper, false));
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .build(exporter);
+
+        reporter.warmUp();
+        verify(exporter, atLeastOnce()).encodeSeries(any(SeriesDescriptor.class));
+        verify(pushGatewayWrapper, never()).pushAdd(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        clearInvocations(exporter);
+        reporter.report();
 
-        assertGauge(collectorRegistries.get(0));
-        assertCounter(collectorRegistries.get(1));
-        assertHistogram(collectorRegistries.get(2));
-        assertMeter(collectorRegistries.get(3));
-        assertTimer(collectorRegistries.get(4));
+        verify(exporter, never()).encodeSeries(any(SeriesDescriptor.class));
+        verify(pushGatewayWrapper).pushAdd(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
     }
 
-    private void assertHistogram(CollectorRegistry collectorRegistry) {
+    @Test
+    void givenHistogramBuckets_whenReport_thenCumulativeBucketsPushed() throws IOException {
+        HistogramBuckets buckets = HistogramBuckets.of(1, 5, 10);
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        Histogram latency = metricRegistry.register(
+                metricName("latency", "topology", "component", "stream", 1, 1),
+                new Histogram(new BucketReservoir(buckets)));
+        for (long value : new long[]{1, 3, 7, 20}) {
+            latency.update(value);
+        }
+
+        Timer duration = metricRegistry.register(
+                metricName("duration", "topology", "component", "stream", 1, 1),
+                new Timer(new BucketReservoir(buckets, MILLISECONDS)));
+        duration.update(2, MILLISECONDS);
+        duration.update(8, MILLISECONDS);
+
+        // Not bucketed, hence estimated from its sampled values
+        metricRegistry.histogram(metricName("size", "topology", "component", "stream", 1, 1))
+                .update(4);
+
+        PrometheusReporter.forRegistry(metricRegistry)
+                .histogramBuckets(buckets)
+                .build(pushGatewayWrapper)
+                .report();
+
+        ArgumentCaptor<ExpositionBuffer> metricsCaptor =
+                ArgumentCaptor.forClass(ExpositionBuffer.class);
+
+        verify(pushGatewayWrapper).pushAdd(metricsCaptor.capture(), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        String text = metricsCaptor.getValue().toString();
+        assertTrue(text.contains("# TYPE storm_worker_latency histogram\n"));
+        assertTrue(text.contains("# TYPE storm_worker_duration histogram\n"));
+        assertFalse(text.contains("_p99"));
+
+        Map<String, Double> samples = parseSamples(text);
+        assertEquals(4.0, samples.get("storm_worker_latency_count").doubleValue());
+        assertEquals(31.0, samples.get("storm_worker_latency_sum").doubleValue());
+        assertEquals(1.0, samples.get("storm_worker_latency_bucket{le=\"1.0\"}").doubleValue());
+        assertEquals(2.0, samples.get("storm_worker_latency_bucket{le=\"5.0\"}").doubleValue());
+        assertEquals(3.0, samples.get("storm_worker_latency_bucket{le=\"10.0\"}").doubleValue());
+        assertEquals(4.0, samples.get("storm_worker_latency_bucket{le=\"+Inf\"}").doubleValue());
+
+        assertEquals(2.0, samples.get("storm_worker_duration_count").doubleValue());
+        assertEquals(10.0, samples.get("storm_worker_duration_sum").doubleValue());
+        assertEquals(1.0, samples.get("storm_worker_duration_bucket{le=\"5.0\"}").doubleValue());
+        assertEquals(2.0, samples.get("storm_worker_duration_bucket{le=\"10.0\"}").doubleValue());
+        assertTrue(samples.containsKey("storm_worker_duration_m1_rate"));
+
+        assertEquals(0.0, samples.get("storm_worker_size_bucket{le=\"1.0\"}").doubleValue());
+        assertEquals(1.0, samples.get("storm_worker_size_bucket{le=\"5.0\"}").doubleValue());
+        assertEquals(4.0, samples.get("storm_worker_size_sum").doubleValue());
+    }
+
+    @Test
+    void givenSampledHistogramBuckets_whenSamplesMove_thenBucketsDontGoDown()
+            throws IOException {
+
+        HistogramBuckets buckets = HistogramBuckets.of(1, 5);
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        Histogram latency = metricRegistry.register(
+                metricName("latency", "topology", "component", "stream", 1, 1),
+                new Histogram(new SlidingWindowReservoir(2)));
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .histogramBuckets(buckets)
+                .build(pushGatewayWrapper);
+
+        latency.update(1);
+        latency.update(1);
+        reporter.report();
+
+        // The window no longer holds the values of the first report
+        latency.update(3);
+        latency.update(3);
+        reporter.report();
+
+        ArgumentCaptor<ExpositionBuffer> metricsCaptor =
+                ArgumentCaptor.forClass(ExpositionBuffer.class);
+
+        verify(pushGatewayWrapper, times(2)).pushAdd(metricsCaptor.capture(), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        Map<String, Double> samples = parseSamples(metricsCaptor.getValue().toString());
+        assertEquals(4.0, samples.get("storm_worker_latency_count").doubleValue());
+        assertEquals(12.0, samples.get("storm_worker_latency_sum").doubleValue());
+        assertEquals(2.0, samples.get("storm_worker_latency_bucket{le=\"1.0\"}").doubleValue());
+        assertEquals(4.0, samples.get("storm_worker_latency_bucket{le=\"5.0\"}").doubleValue());
+    }
+
+    @Test
+    void givenHistogramBucketsAndAggregateTasks_whenReport_thenBucketsSummedUp()
+            throws IOException {
+
+        HistogramBuckets buckets = HistogramBuckets.of(1, 5);
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        for (int task = 1; task <= 2; task++) {
+            String name = metricName("latency", "topology", "component", "stream", task, 1);
+            metricRegistry.register(name, new Histogram(new BucketReservoir(buckets)))
+                    .update(task * 3 - 2);
+        }
+
+        PrometheusReporter.forRegistry(metricRegistry)
+                .aggregateTasks(true)
+                .histogramBuckets(buckets)
+                .build(pushGatewayWrapper)
+                .report();
+
+        ArgumentCaptor<ExpositionBuffer> metricsCaptor =
+                ArgumentCaptor.forClass(ExpositionBuffer.class);
+
+        verify(pushGatewayWrapper).pushAdd(metricsCaptor.capture(), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        Map<String, Double> samples = parseSamples(metricsCaptor.getValue().toString());
+        assertEquals(2.0, samples.get("storm_worker_latency_count").doubleValue());
+        assertEquals(5.0, samples.get("storm_worker_latency_sum").doubleValue());
+        assertEquals(1.0, samples.get("storm_worker_latency_bucket{le=\"1.0\"}").doubleValue());
+        assertEquals(2.0, samples.get("storm_worker_latency_bucket{le=\"5.0\"}").doubleValue());
+    }
+
+    @Test
+    void givenFailingPushes_whenReport_thenIntervalStretched() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        metricRegistry.counter(metricName("emitted", "topology", "component", "stream", 1, 1))
+                .inc();
+
+        final List<Double> intervals = new ArrayList<>();
+        final List<Map<String, String>> groupingKeys = new ArrayList<>();
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws IOException {
+                Double interval = parseSamples(invocation.getArgument(0).toString())
+                        .get("storm_reporter_interval_seconds");
+                if (interval != null) {
+                    intervals.add(interval);
+                    groupingKeys.add(invocation.<Map<String, String>>getArgument(2));
+                }
+
+                throw new IOException("Gateway unavailable");
+            }
+        }).when(pushGatewayWrapper).pushAdd(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .adaptivePeriod(40, SECONDS)
+                .build(pushGatewayWrapper);
+
+        reporter.start(10, SECONDS);
+
+        for (int report = 0; report < 4; report++) {
+            reporter.report();
+        }
+
+        // Doubled after every failed report, up to the maximum period
+        assertEquals(Arrays.asList(10.0, 20.0, 40.0, 40.0), intervals);
+        assertEquals(new HashSet<>(Arrays.asList("topology_id", "host_name", "worker_port")),
+                groupingKeys.get(0).keySet());
+
+        reporter.stop();
+    }
+
+    @Test
+    void givenManyFastGroups_whenReport_thenIntervalNominal() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        for (int task = 1; task <= 60; task++) {
+            metricRegistry.counter(metricName("emitted", "topology", "component", "stream", task,
+                    1)).inc();
+        }
+
+        final AtomicLong ticks = new AtomicLong();
+        final List<Double> intervals = new ArrayList<>();
+
+        // Every push takes 20 ms, all of them together longer than the latency threshold
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Double interval = parseSamples(invocation.getArgument(0).toString())
+                        .get("storm_reporter_interval_seconds");
+                if (interval != null) {
+                    intervals.add(interval);
+                }
+
+                ticks.addAndGet(MILLISECONDS.toNanos(20));
+                return null;
+            }
+        }).when(pushGatewayWrapper).pushAdd(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .withClock(new Clock() {
+                    @Override
+                    public long getTick() {
+                        return ticks.get();
+                    }
+                })
+                .adaptivePeriod(40, SECONDS)
+                .build(pushGatewayWrapper);
+
+        reporter.start(10, SECONDS);
+
+        for (int report = 0; report < 4; report++) {
+            reporter.report();
+        }
+
+        assertEquals(Arrays.asList(10.0, 10.0, 10.0, 10.0), intervals);
+
+        reporter.stop();
+    }
+
+    @Test
+    void givenCycleDeadline_whenPushesSlow_thenRemainingGroupsCarriedOver() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        for (int task = 1; task <= 3; task++) {
+            metricRegistry.counter(metricName("emitted", "topology", "component", "stream", task,
+                    6700)).inc(task);
+        }
+
+        final AtomicLong ticks = new AtomicLong();
+        final List<String> taskIds = new ArrayList<>();
+        final List<Map<String, Double>> reporterPushes = new ArrayList<>();
+
+        // Every push takes 60 ms
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Map<String, String> groupingKey = invocation.getArgument(2);
+                taskIds.add(groupingKey.get("task_id"));
+                if (!groupingKey.containsKey("task_id")) {
+                    reporterPushes.add(parseSamples(invocation.getArgument(0).toString()));
+                }
+
+                ticks.addAndGet(MILLISECONDS.toNanos(60));
+                return null;
+            }
+        }).when(pushGatewayWrapper).pushAdd(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .withClock(new Clock() {
+                    @Override
+                    public long getTick() {
+                        return ticks.get();
+                    }
+                })
+                .cycleDeadline(100, MILLISECONDS)
+                .build(pushGatewayWrapper);
+
+        reporter.report();
+        assertEquals(Arrays.asList("1", "2"), taskIds);
+
+        // The left over group first, followed by the group of the reporter
+        reporter.report();
+        assertEquals(Arrays.asList("1", "2", "3", null), taskIds);
+
+        Map<String, Double> samples = reporterPushes.get(0);
+        assertEquals(Double.valueOf(1), samples.get("storm_reporter_cycle_overruns_count"));
+        assertEquals(Double.valueOf(1), samples.get("storm_reporter_cycle_duration_seconds_count"));
+        assertEquals(0.12, samples.get("storm_reporter_cycle_duration_seconds_sum"), 1e-9);
+        assertEquals(Double.valueOf(0), samples.get(
+                "storm_reporter_cycle_duration_seconds_bucket{le=\"0.064\"}"));
+        assertEquals(Double.valueOf(1), samples.get(
+                "storm_reporter_cycle_duration_seconds_bucket{le=\"0.256\"}"));
+    }
+
+    @Test
+    void givenCycleDeadline_whenCollectionSlow_thenGroupsStillPushedInTurn() throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        for (int task = 1; task <= 3; task++) {
+            metricRegistry.counter(metricName("emitted", "topology", "component", "stream", task,
+                    6700)).inc(task);
+        }
+
+        final AtomicLong ticks = new AtomicLong();
+        final List<String> taskIds = new ArrayList<>();
+
+        // Collecting the gauge alone takes longer than the deadline
+        metricRegistry.register(metricName("queue", "topology", "component", "stream", 1, 6700),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        ticks.addAndGet(MILLISECONDS.toNanos(200));
+                        return 42;
+                    }
+                });
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Map<String, String> groupingKey = invocation.getArgument(2);
+                taskIds.add(groupingKey.get("task_id"));
+                return null;
+            }
+        }).when(pushGatewayWrapper).pushAdd(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .withClock(new Clock() {
+                    @Override
+                    public long getTick() {
+                        return ticks.get();
+                    }
+                })
+                .cycleDeadline(100, MILLISECONDS)
+                .build(pushGatewayWrapper);
+
+        reporter.report();
+        assertEquals(Arrays.asList("1"), taskIds);
+
+        reporter.report();
+        reporter.report();
+        assertEquals(Arrays.asList("1", "2", "3"), taskIds);
+    }
+
+    @Test
+    void givenSteadyState_whenReport_thenNothingAllocated() {
+        assumeTrue(THREAD_MX_BEAN.isThreadAllocatedMemorySupported());
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        for (int task = 1; task <= 10; task++) {
+            for (int stream = 1; stream <= 10; stream++) {
+                metricRegistry.counter(metricName("emitted", "topology", "component",
+                        "stream" + stream, task, 1)).inc(task);
+                metricRegistry.meter(metricName("acked", "topology", "component",
+                        "stream" + stream, task, 1)).mark(stream);
+                metricRegistry.register(metricName("queue", "topology", "component",
+                        "stream" + stream, task, 1), new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return 42;
+                    }
+                });
+            }
+        }
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .prefixedWith("test")
+                .aggregateTasks(true)
+                .keepPerTask(singleton("storm_worker_queue"))
+                .build(new NoOpPushGatewayWrapper());
+
+        for (int cycle = 0; cycle < 1000; cycle++) {
+            reporter.report();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long allocatedBytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+
+        for (int cycle = 0; cycle < 100; cycle++) {
+            reporter.report();
+        }
+
+        allocatedBytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - allocatedBytes;
+
+        // A few iterators over the registered metrics at most, but nothing per series
+        assertTrue(allocatedBytes / 100 < 512, allocatedBytes / 100 + " bytes per report");
+    }
+
+    @Test
+    void givenAggregatedHistograms_whenReport_thenSamplesCopiedOncePerTask() {
+        assumeTrue(THREAD_MX_BEAN.isThreadAllocatedMemorySupported());
+
+        long[] values = new long[1000];
+        for (int index = 0; index < values.length; index++) {
+            values[index] = index;
+        }
+        final Snapshot snapshot = new UniformSnapshot(values);
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        for (int task = 1; task <= 100; task++) {
+            metricRegistry.register(metricName("latency", "topology", "component", "stream", task,
+                    1), new Histogram(new UniformReservoir()) {
+                @Override
+                public Snapshot getSnapshot() {
+                    return snapshot;
+                }
+            });
+        }
+
+        PrometheusReporter reporter = PrometheusReporter.forRegistry(metricRegistry)
+                .aggregateTasks(true)
+                .build(new NoOpPushGatewayWrapper());
+
+        for (int cycle = 0; cycle < 100; cycle++) {
+            reporter.report();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long allocatedBytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+
+        for (int cycle = 0; cycle < 10; cycle++) {
+            reporter.report();
+        }
+
+        allocatedBytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - allocatedBytes;
+
+        // The values of every task are copied out of its snapshot, but not over and over again
+        long valueBytes = 100 * values.length * 8;
+        assertTrue(allocatedBytes / 10 < 2 * valueBytes, allocatedBytes / 10 + " bytes per report");
+    }
+
+    private void assertHistogram(Map<String, Double> samples) {
         final Snapshot snapshot = histogram.getSnapshot();
 
         assertEquals(
                 histogram.getCount(),
-                collectorRegistry.getSampleValue("test_storm_worker_histogram_count").longValue(),
+                samples.get("test_storm_worker_histogram_count").longValue(),
                 "test_storm_worker_histogram_count"
         );
 
         assertEquals(
                 snapshot.getMax(),
-                collectorRegistry.getSampleValue("test_storm_worker_histogram_max").longValue(),
+                samples.get("test_storm_worker_histogram_max").longValue(),
                 "test_storm_worker_histogram_max"
         );
 
         assertEquals(
                 snapshot.getMean(),
-                collectorRegistry.getSampleValue("test_storm_worker_histogram_mean").doubleValue(),
+                samples.get("test_storm_worker_histogram_mean").doubleValue(),
                 "test_storm_worker_histogram_mean"
         );
 
         assertEquals(
                 snapshot.getMin(),
-                collectorRegistry.getSampleValue("test_storm_worker_histogram_min").longValue(),
+                samples.get("test_storm_worker_histogram_min").longValue(),
                 "test_storm_worker_histogram_min"
         );
 
         assertEquals(
                 snapshot.getStdDev(),
-                collectorRegistry.getSampleValue("test_storm_worker_histogram_stddev")
+                samples.get("test_storm_worker_histogram_stddev")
                         .doubleValue(),
                 "test_storm_worker_histogram_stddev"
         );
 
         assertEquals(
                 snapshot.getMedian(),
-                collectorRegistry.getSampleValue("test_storm_worker_histogram_p50").doubleValue(),
+                samples.get("test_storm_worker_histogram_p50").doubleValue(),
                 "test_storm_worker_histogram_p50"
         );
 
         assertEquals(
                 snapshot.get75thPercentile(),
-                collectorRegistry.getSampleValue("test_storm_worker_histogram_p75").doubleValue(),
+                samples.get("test_storm_worker_histogram_p75").doubleValue(),
                 "test_storm_worker_histogram_p75"
         );
 
         assertEquals(
                 snapshot.get95thPercentile(),
-                collectorRegistry.getSampleValue("test_storm_worker_histogram_p95").doubleValue(),
+                samples.get("test_storm_worker_histogram_p95").doubleValue(),
                 "test_storm_worker_histogram_p95"
         );
 
         assertEquals(
                 snapshot.get98thPercentile(),
-                collectorRegistry.getSampleValue("test_storm_worker_histogram_p98").doubleValue(),
+                samples.get("test_storm_worker_histogram_p98").doubleValue(),
                 "test_storm_worker_histogram_p98"
         );
 
         assertEquals(
                 snapshot.get99thPercentile(),
-                collectorRegistry.getSampleValue("test_storm_worker_histogram_p99").doubleValue(),
+                samples.get("test_storm_worker_histogram_p99").doubleValue(),
                 "test_storm_worker_histogram_p99"
         );
 
         assertEquals(
                 snapshot.get999thPercentile(),
-                collectorRegistry.getSampleValue("test_storm_worker_histogram_p999").doubleValue(),
+                samples.get("test_storm_worker_histogram_p999").doubleValue(),
                 "test_storm_worker_histogram_p999"
         );
     }
 
-    private void assertCounter(CollectorRegistry collectorRegistry) {
+    private void assertCounter(Map<String, Double> samples) {
         assertEquals(
                 counter.getCount(),
-                collectorRegistry.getSampleValue("test_storm_worker_counter_count").longValue(),
+                samples.get("test_storm_worker_counter_count").longValue(),
                 "test_storm_worker_counter_count"
         );
     }
 
-    private void assertMeter(CollectorRegistry collectorRegistry) {
+    private void assertMeter(Map<String, Double> samples) {
         assertEquals(
                 meter.getCount(),
-                collectorRegistry.getSampleValue("test_storm_worker_meter_count").longValue(),
+                samples.get("test_storm_worker_meter_count").longValue(),
                 "test_storm_worker_meter_count"
         );
 
         assertEquals(
                 meter.getOneMinuteRate(),
-                collectorRegistry.getSampleValue("test_storm_worker_meter_m1_rate").doubleValue(),
+                samples.get("test_storm_worker_meter_m1_rate").doubleValue(),
                 "test_storm_worker_meter_m1_rate"
         );
 
         assertEquals(
                 meter.getFiveMinuteRate(),
-                collectorRegistry.getSampleValue("test_storm_worker_meter_m5_rate").doubleValue(),
+                samples.get("test_storm_worker_meter_m5_rate").doubleValue(),
                 "test_storm_worker_meter_m5_rate"
         );
 
         assertEquals(
                 meter.getFifteenMinuteRate(),
-                collectorRegistry.getSampleValue("test_storm_worker_meter_m15_rate").doubleValue(),
+                samples.get("test_storm_worker_meter_m15_rate").doubleValue(),
                 "test_storm_worker_meter_m15_rate"
         );
 
         assertEquals(
                 meter.getMeanRate(),
-                collectorRegistry.getSampleValue("test_storm_worker_meter_mean_rate").doubleValue(),
+                samples.get("test_storm_worker_meter_mean_rate").doubleValue(),
                 "test_storm_worker_meter_mean_rate"
         );
     }
 
-    private void assertTimer(CollectorRegistry collectorRegistry) {
+    private void assertTimer(Map<String, Double> samples) {
         final Snapshot snapshot = timer.getSnapshot();
 
         assertEquals(
                 snapshot.getMax(),
-                collectorRegistry.getSampleValue("test_storm_worker_timer_max").longValue(),
+                samples.get("test_storm_worker_timer_max").longValue(),
                 "test_storm_worker_timer_max"
         );
 
         assertEquals(
                 snapshot.getMean(),
-                collectorRegistry.getSampleValue("test_storm_worker_timer_mean").doubleValue(),
+                samples.get("test_storm_worker_timer_mean").doubleValue(),
                 "test_storm_worker_timer_mean"
         );
 
         assertEquals(
                 snapshot.getMin(),
-                collectorRegistry.getSampleValue("test_storm_worker_timer_min").longValue(),
+                samples.get("test_storm_worker_timer_min").longValue(),
                 "test_storm_worker_timer_min"
         );
 
         assertEquals(
                 snapshot.getStdDev(),
-                collectorRegistry.getSampleValue("test_storm_worker_timer_stddev").doubleValue(),
+                samples.get("test_storm_worker_timer_stddev").doubleValue(),
                 "test_storm_worker_timer_stddev"
         );
 
         assertEquals(
                 snapshot.getMedian(),
-                collectorRegistry.getSampleValue("test_storm_worker_timer_p50").doubleValue(),
+                samples.get("test_storm_worker_timer_p50").doubleValue(),
                 "test_storm_worker_timer_p50"
         );
 
         assertEquals(
                 snapshot.get75thPercentile(),
-                collectorRegistry.getSampleValue("test_storm_worker_timer_p75").doubleValue(),
+                samples.get("test_storm_worker_timer_p75").doubleValue(),
                 "test_storm_worker_timer_p75"
         );
 
         assertEquals(
                 snapshot.get95thPercentile(),
-                collectorRegistry.getSampleValue("test_storm_worker_timer_p95").doubleValue(),
+                samples.get("test_storm_worker_timer_p95").doubleValue(),
                 "test_storm_worker_timer_p95"
         );
 
         assertEquals(
                 snapshot.get98thPercentile(),
-                collectorRegistry.getSampleValue("test_storm_worker_timer_p98").doubleValue(),
+                samples.get("test_storm_worker_timer_p98").doubleValue(),
                 "test_storm_worker_timer_p98"
         );
 
         assertEquals(
                 snapshot.get99thPercentile(),
-                collectorRegistry.getSampleValue("test_storm_worker_timer_p99").doubleValue(),
+                samples.get("test_storm_worker_timer_p99").doubleValue(),
                 "test_storm_worker_timer_p99"
         );
 
         assertEquals(
                 snapshot.get999thPercentile(),
-                collectorRegistry.getSampleValue("test_storm_worker_timer_p999").doubleValue(),
+                samples.get("test_storm_worker_timer_p999").doubleValue(),
                 "test_storm_worker_timer_p999"
         );
     }
 
-    private void assertGauge(CollectorRegistry collectorRegistry) {
+    private static class NoOpPushGatewayWrapper implements PushGatewayWrapper {
+
+        @Override
+        public void pushAdd(CollectorRegistry registry, String job) {
+        }
+
+        @Override
+        public void pushAdd(CollectorRegistry registry, String job,
+                Map<String, String> groupingKey) {
+        }
+
+        @Override
+        public void push(CollectorRegistry registry, String job,
+                Map<String, String> groupingKey) {
+        }
+
+        @Override
+        public void pushAdd(ExpositionBuffer metrics, String job,
+                Map<String, String> groupingKey) {
+        }
+
+        @Override
+        public void push(ExpositionBuffer metrics, String job, Map<String, String> groupingKey) {
+        }
+
+        @Override
+        public void delete(String job, Map<String, String> groupingKey) {
+        }
+
+    }
+
+    private void assertGauge(Map<String, Double> samples) {
         assertEquals(
                 gauge.getValue().intValue(),
-                collectorRegistry.getSampleValue("test_storm_worker_gauge").intValue(),
+                samples.get("test_storm_worker_gauge").intValue(),
                 "test_storm_worker_gauge"
         );
     }
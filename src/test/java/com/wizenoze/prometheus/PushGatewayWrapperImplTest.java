@@ -0,0 +1,77 @@
+package com.wizenoze.prometheus;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PushGatewayWrapperImplTest {
+
+    private HttpServer server;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    private PushGatewayWrapperImpl pushGatewayWrapper;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI());
+                exchange.sendResponseHeaders(202, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        pushGatewayWrapper =
+                new PushGatewayWrapperImpl("http://localhost:" + server.getAddress().getPort());
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void givenGroup_whenPushedTwice_thenSameEncodedPath() throws IOException {
+        Map<String, String> groupingKey = new LinkedHashMap<>();
+        groupingKey.put("topology_id", "topology 1");
+        groupingKey.put("stream_id", "a/b");
+
+        ExpositionBuffer metrics = new ExpositionBuffer().writeSample("emitted", 1);
+        pushGatewayWrapper.pushAdd(metrics, "storm", groupingKey);
+        pushGatewayWrapper.push(metrics, "storm", new LinkedHashMap<>(groupingKey));
+
+        assertEquals(2, requests.size());
+        assertTrue(requests.get(0).startsWith(
+                "POST /metrics/job/storm/topology_id/topology+1/stream_id@base64/YS9i/instance/"));
+        assertEquals(requests.get(0).replace("POST", "PUT"), requests.get(1));
+    }
+
+    @Test
+    void givenPushedGroup_whenDelete_thenDeletedAtSamePath() throws IOException {
+        Map<String, String> groupingKey = Collections.singletonMap("task_id", "1");
+
+        pushGatewayWrapper.pushAdd(new ExpositionBuffer().writeSample("emitted", 1), "storm",
+                groupingKey);
+        pushGatewayWrapper.delete("storm", groupingKey);
+
+        assertEquals(2, requests.size());
+        assertEquals(requests.get(0).replace("POST", "DELETE"), requests.get(1));
+    }
+
+}
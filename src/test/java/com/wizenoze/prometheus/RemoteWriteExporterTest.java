@@ -0,0 +1,169 @@
+package com.wizenoze.prometheus;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.storm.metrics2.StormMetricRegistry.metricName;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import com.wizenoze.test.RemoteWriteReceiver;
+import com.wizenoze.test.RemoteWriteReceiver.TimeSeries;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RemoteWriteExporterTest {
+
+    private static final long TIMESTAMP = 1546300800000L;
+
+    private RemoteWriteReceiver receiver;
+    private MetricRegistry metricRegistry;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        receiver = new RemoteWriteReceiver();
+
+        metricRegistry = new MetricRegistry();
+        metricRegistry.counter(metricName("emitted", "topology", "component", "stream", 1, 1))
+                .inc(2);
+        metricRegistry.counter(metricName("emitted", "topology", "component", "stream", 2, 1))
+                .inc(3);
+    }
+
+    @AfterEach
+    void tearDown() {
+        receiver.stop();
+    }
+
+    @Test
+    void givenMetrics_whenReport_thenSingleWriteRequestSent() throws Exception {
+        PrometheusReporter reporter = createReporter(
+                RemoteWriteExporter.forEndpoint(receiver.getUrl()).withInstance("host").build());
+
+        reporter.report();
+
+        List<TimeSeries> request = receiver.takeRequest(10, SECONDS);
+        assertNotNull(request);
+        assertEquals(Arrays.asList("snappy"), receiver.getContentEncodings());
+
+        // Both groups in a single request
+        assertEquals(2, request.size());
+
+        TimeSeries timeSeries = request.get(0);
+
+        // Sorted by name, as required by the protocol
+        assertEquals(Arrays.asList("__name__", "component_id", "host_name", "instance", "job",
+                "stream_id", "task_id", "topology_id", "worker_port"),
+                new ArrayList<>(timeSeries.labels.keySet()));
+        assertEquals("storm_worker_emitted_count", timeSeries.labels.get("__name__"));
+        assertEquals("host", timeSeries.labels.get("instance"));
+        assertEquals("storm", timeSeries.labels.get("job"));
+        assertEquals("1", timeSeries.labels.get("task_id"));
+        assertEquals(Arrays.asList(2.0), timeSeries.values);
+        assertEquals(Arrays.asList(TIMESTAMP), timeSeries.timestamps);
+
+        assertEquals("2", request.get(1).labels.get("task_id"));
+        assertEquals(Arrays.asList(3.0), request.get(1).values);
+
+        reporter.stop();
+    }
+
+    @Test
+    void givenServerError_whenReport_thenRetried() throws Exception {
+        receiver.respondWith(503, 429);
+
+        PrometheusReporter reporter = createReporter(
+                RemoteWriteExporter.forEndpoint(receiver.getUrl())
+                        .retryBackoff(1, MILLISECONDS)
+                        .build());
+
+        reporter.report();
+
+        assertNotNull(receiver.takeRequest(10, SECONDS));
+        assertEquals(3, receiver.getContentEncodings().size());
+
+        reporter.stop();
+    }
+
+    @Test
+    void givenClientError_whenReport_thenNotRetried() throws Exception {
+        receiver.respondWith(400);
+
+        PrometheusReporter reporter = createReporter(
+                RemoteWriteExporter.forEndpoint(receiver.getUrl())
+                        .retryBackoff(1, MILLISECONDS)
+                        .build());
+
+        reporter.report();
+
+        assertNull(receiver.takeRequest(100, MILLISECONDS));
+        assertEquals(1, receiver.getContentEncodings().size());
+
+        reporter.stop();
+    }
+
+    @Test
+    void givenTooManyRequestsInFlight_whenReport_thenDropped() throws Exception {
+        CountDownLatch latch = receiver.hold();
+
+        PrometheusReporter reporter = createReporter(
+                RemoteWriteExporter.forEndpoint(receiver.getUrl()).maxInFlight(1).build());
+
+        reporter.report();
+        reporter.report();
+
+        latch.countDown();
+
+        assertNotNull(receiver.takeRequest(10, SECONDS));
+        assertNull(receiver.takeRequest(100, MILLISECONDS));
+
+        reporter.stop();
+    }
+
+    @Test
+    void givenMaxRequestSize_whenReport_thenSplitByGroup() throws Exception {
+        PrometheusReporter reporter = createReporter(
+                RemoteWriteExporter.forEndpoint(receiver.getUrl()).maxRequestSize(1).build());
+
+        reporter.report();
+
+        Map<String, Double> values = new LinkedHashMap<>();
+        for (int index = 0; index < 2; index++) {
+            List<TimeSeries> request = receiver.takeRequest(10, SECONDS);
+            assertEquals(1, request.size());
+            values.put(request.get(0).labels.get("task_id"), request.get(0).values.get(0));
+        }
+
+        assertEquals(2.0, values.get("1").doubleValue());
+        assertEquals(3.0, values.get("2").doubleValue());
+
+        reporter.stop();
+    }
+
+    private PrometheusReporter createReporter(MetricsExporter exporter) {
+        return PrometheusReporter.forRegistry(metricRegistry)
+                .withClock(new Clock() {
+                    @Override
+                    public long getTick() {
+                        return 0;
+                    }
+
+                    @Override
+                    public long getTime() {
+                        return TIMESTAMP;
+                    }
+                })
+                .build(exporter);
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.wizenoze.prometheus;
+
+import static com.wizenoze.prometheus.MetricNameAndGroupingKey.parseMetric;
+import static java.util.Collections.singleton;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.storm.metrics2.StormMetricRegistry.metricName;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.wizenoze.prometheus.ReportTier.MetricType;
+import org.junit.jupiter.api.Test;
+
+class ReportTierTest {
+
+    private static final MetricNameAndGroupingKey QUEUE_METRIC = parseMetric(
+            metricName("disruptor-executor[28 28]-send-queue-percent-full", "topology", "spout",
+                    28, 6701));
+
+    private static final MetricNameAndGroupingKey EMITTED_METRIC = parseMetric(
+            metricName("emitted", "topology", "bolt", "default", 19, 6701));
+
+    @Test
+    void givenNoSelectors_whenMatches_thenTrue() {
+        ReportTier tier = ReportTier.every(5, SECONDS).build();
+
+        assertEquals(5000, tier.getPeriodMillis());
+        assertTrue(tier.matches(MetricType.GAUGE, QUEUE_METRIC));
+        assertTrue(tier.matches(MetricType.COUNTER, EMITTED_METRIC));
+    }
+
+    @Test
+    void givenTypesAndNames_whenMatches_thenBothRequired() {
+        ReportTier tier = ReportTier.every(5, SECONDS)
+                .ofTypes(MetricType.GAUGE)
+                .named(singleton("*_percent_full"))
+                .build();
+
+        assertTrue(tier.matches(MetricType.GAUGE, QUEUE_METRIC));
+        assertFalse(tier.matches(MetricType.COUNTER, QUEUE_METRIC));
+        assertFalse(tier.matches(MetricType.GAUGE, EMITTED_METRIC));
+    }
+
+    @Test
+    void givenLabels_whenMatches_thenValuesMatched() {
+        ReportTier tier = ReportTier.every(5, SECONDS)
+                .labelled("component_id", "sp?ut")
+                .build();
+
+        assertTrue(tier.matches(MetricType.GAUGE, QUEUE_METRIC));
+        assertFalse(tier.matches(MetricType.COUNTER, EMITTED_METRIC));
+
+        // Metrics without the label aren't selected
+        assertFalse(ReportTier.every(5, SECONDS).labelled("stream_id", "*").build()
+                .matches(MetricType.GAUGE, QUEUE_METRIC));
+    }
+
+    @Test
+    void givenGlobs_whenMatchesGlob_thenWildcardsApplied() {
+        assertTrue(ReportTier.matchesGlob("storm_*_overflow", "storm_worker_queue_overflow"));
+        assertTrue(ReportTier.matchesGlob("*", ""));
+        assertFalse(ReportTier.matchesGlob("storm_?", "storm_worker"));
+        assertFalse(ReportTier.matchesGlob("storm", "storm_worker"));
+    }
+
+}
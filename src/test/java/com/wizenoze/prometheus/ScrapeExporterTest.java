@@ -0,0 +1,134 @@
+package com.wizenoze.prometheus;
+
+import static com.wizenoze.test.ExpositionParser.parseSamples;
+import static org.apache.storm.metrics2.StormMetricRegistry.metricName;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ScrapeExporterTest {
+
+    private MetricRegistry metricRegistry;
+    private PrometheusReporter reporter;
+    private ScrapeExporter exporter;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        metricRegistry = new MetricRegistry();
+        metricRegistry.counter(metricName("emitted", "topology", "component", "stream", 1, 1))
+                .inc(2);
+        metricRegistry.counter(metricName("emitted", "topology", "component", "stream", 2, 1))
+                .inc(3);
+        metricRegistry.counter(metricName("acked", "topology", "component", "stream", 1, 1))
+                .inc(4);
+
+        exporter = ScrapeExporter.forPort(0).withHost("localhost").build();
+        reporter = PrometheusReporter.forRegistry(metricRegistry).build(exporter);
+    }
+
+    @AfterEach
+    void tearDown() {
+        reporter.stop();
+    }
+
+    @Test
+    void givenReport_whenScrape_thenFamiliesRenderedTogether() throws IOException {
+        reporter.report();
+
+        HttpURLConnection connection = connect();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(ExpositionBuffer.CONTENT_TYPE, connection.getContentType());
+        assertEquals("0", connection.getHeaderField("Age"));
+        assertNull(connection.getContentEncoding());
+
+        String body = read(connection.getInputStream());
+
+        // Series of different groups share the HELP and TYPE lines of their family
+        assertEquals(body.indexOf("# TYPE storm_worker_emitted_count counter"),
+                body.lastIndexOf("# TYPE storm_worker_emitted_count"));
+
+        Map<String, Double> samples = parseSamples(body);
+        assertEquals(Double.valueOf(2), samples.get(emittedSeries(1)));
+        assertEquals(Double.valueOf(3), samples.get(emittedSeries(2)));
+        assertTrue(samples.containsKey("storm_reporter_render_seconds"));
+    }
+
+    @Test
+    void givenGzipAccepted_whenScrape_thenGzippedResponse() throws IOException {
+        reporter.report();
+
+        HttpURLConnection connection = connect();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+
+        assertEquals("gzip", connection.getContentEncoding());
+
+        String body = read(new GZIPInputStream(connection.getInputStream()));
+        assertEquals(read(connect().getInputStream()), body);
+    }
+
+    @Test
+    void givenNoReport_whenScrape_thenSameResponseServed() throws IOException {
+        reporter.report();
+        String body = read(connect().getInputStream());
+
+        metricRegistry.counter(metricName("emitted", "topology", "component", "stream", 1, 1))
+                .inc();
+
+        // Rendered once per report, not per scrape
+        assertEquals(body, read(connect().getInputStream()));
+    }
+
+    @Test
+    void givenRemovedMetrics_whenReport_thenGroupNoLongerServed() throws IOException {
+        reporter.report();
+
+        metricRegistry.remove(metricName("emitted", "topology", "component", "stream", 2, 1));
+
+        // The group is found stale after rendering, hence served until the next report
+        reporter.report();
+        reporter.report();
+
+        String body = read(connect().getInputStream());
+        assertTrue(body.contains("task_id=\"1\""));
+        assertFalse(body.contains("task_id=\"2\""));
+    }
+
+    private static String emittedSeries(int taskId) {
+        return "storm_worker_emitted_count{topology_id=\"topology\",host_name=\"null\","
+                + "component_id=\"component\",stream_id=\"stream\",task_id=\"" + taskId
+                + "\",worker_port=\"1\"}";
+    }
+
+    private HttpURLConnection connect() throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + exporter.getPort() + "/metrics")
+                .openConnection();
+    }
+
+    private static String read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream input = inputStream) {
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = input.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, length);
+            }
+        }
+
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+}
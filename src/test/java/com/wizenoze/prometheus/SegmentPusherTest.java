@@ -0,0 +1,219 @@
+package com.wizenoze.prometheus;
+
+import static com.wizenoze.test.ExpositionParser.parseSamples;
+import static org.apache.storm.metrics2.StormMetricRegistry.metricName;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.codahale.metrics.MetricRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.function.Executable;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.stubbing.Answer;
+
+@ExtendWith(MockitoExtension.class)
+class SegmentPusherTest {
+
+    private static final int SLOTS = 2;
+    private static final int SLOT_SIZE = 64 * 1024;
+
+    @Mock
+    private PushGatewayWrapper pushGatewayWrapper;
+
+    private File path;
+    private SegmentPusher pusher;
+
+    private final Map<String, Map<String, Double>> pushedSamples = new HashMap<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        path = File.createTempFile("segments", ".bin");
+        path.deleteOnExit();
+
+        pusher = SegmentPusher.forFile(path)
+                .slots(SLOTS)
+                .slotSize(SLOT_SIZE)
+                .build(pushGatewayWrapper);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pusher.stop();
+        path.delete();
+    }
+
+    @Test
+    void givenTwoWorkers_whenPush_thenGroupsOfBothPushed() throws IOException {
+        capturePushes();
+
+        PrometheusReporter first = createReporter(6700, 2);
+        PrometheusReporter second = createReporter(6701, 3);
+
+        first.report();
+        second.report();
+        pusher.push();
+
+        assertEquals(2, pushedSamples.size());
+        assertEquals(Double.valueOf(2), pushedSamples.get("6700")
+                .get("storm_worker_emitted_count"));
+        assertEquals(Double.valueOf(3), pushedSamples.get("6701")
+                .get("storm_worker_emitted_count"));
+
+        first.stop();
+        second.stop();
+    }
+
+    @Test
+    void givenUnchangedSlots_whenPush_thenNotPushedAgain() throws IOException {
+        PrometheusReporter reporter = createReporter(6700, 2);
+
+        reporter.report();
+        pusher.push();
+        pusher.push();
+
+        verify(pushGatewayWrapper, times(1)).pushAdd(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        reporter.report();
+        pusher.push();
+
+        verify(pushGatewayWrapper, times(2)).pushAdd(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        reporter.stop();
+    }
+
+    @Test
+    void givenStoppedWorker_whenPush_thenGroupsDeleted() throws IOException {
+        PrometheusReporter reporter = createReporter(6700, 2);
+
+        reporter.report();
+        pusher.push();
+        verify(pushGatewayWrapper, never()).delete(anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        reporter.stop();
+        pusher.push();
+
+        verify(pushGatewayWrapper).delete(eq("storm"),
+                ArgumentMatchers.<String, String>anyMap());
+    }
+
+    @Test
+    void givenAllSlotsTaken_whenClaim_thenIOException() throws IOException {
+        final SegmentFile file = SegmentFile.open(path, SLOTS, SLOT_SIZE);
+
+        assertEquals(file.claim(6700), file.claim(6700));
+        file.claim(6701);
+
+        assertThrows(IOException.class, new Executable() {
+            @Override
+            public void execute() throws IOException {
+                file.claim(6702);
+            }
+        });
+
+        file.close();
+    }
+
+    @Test
+    void givenTwoWorkers_whenLockPusher_thenOnlyOneElectedUntilClosed() throws IOException {
+        SegmentFile file = SegmentFile.open(path, SLOTS, SLOT_SIZE);
+        SegmentFile otherFile = SegmentFile.open(path, SLOTS, SLOT_SIZE);
+
+        assertTrue(file.tryLockPusher());
+        assertTrue(file.tryLockPusher());
+        assertFalse(otherFile.tryLockPusher());
+
+        file.close();
+        assertTrue(otherFile.tryLockPusher());
+
+        otherFile.close();
+    }
+
+    @Test
+    void givenSlotLeftOdd_whenWrite_thenReadable() throws IOException {
+        SegmentFile file = SegmentFile.open(path, SLOTS, SLOT_SIZE);
+        int slot = file.claim(6700);
+
+        // As left by a worker which died while writing its slot
+        try (RandomAccessFile raw = new RandomAccessFile(path, "rw")) {
+            raw.seek(64 + slot * SLOT_SIZE);
+            raw.writeLong(1);
+        }
+        SegmentFile.Snapshot snapshot = new SegmentFile.Snapshot();
+        assertFalse(file.read(slot, snapshot));
+
+        file.write(slot, new ExpositionBuffer().writeSample("emitted", 1), 42);
+
+        assertTrue(file.read(slot, snapshot));
+        assertEquals(6700, snapshot.port);
+        assertEquals(42, snapshot.timestamp);
+        assertEquals("emitted 1\n", snapshot.data.toString());
+
+        file.close();
+    }
+
+    @Test
+    void givenDataNotMatchingChecksum_whenRead_thenNotRead() throws IOException {
+        SegmentFile file = SegmentFile.open(path, SLOTS, SLOT_SIZE);
+        int slot = file.claim(6700);
+        file.write(slot, new ExpositionBuffer().writeSample("emitted", 1), 42);
+
+        // As seen by a reader the data of a write isn't visible to yet
+        try (RandomAccessFile raw = new RandomAccessFile(path, "rw")) {
+            raw.seek(64 + slot * SLOT_SIZE + 32);
+            raw.write('E');
+        }
+
+        assertFalse(file.read(slot, new SegmentFile.Snapshot()));
+
+        file.close();
+    }
+
+    private PrometheusReporter createReporter(int workerPort, long emitted) throws IOException {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        metricRegistry.counter(metricName("emitted", "topology", "component", "stream", 1,
+                workerPort)).inc(emitted);
+
+        return PrometheusReporter.forRegistry(metricRegistry)
+                .build(SegmentExporter.forFile(path, workerPort)
+                        .slots(SLOTS)
+                        .slotSize(SLOT_SIZE)
+                        .build());
+    }
+
+    private void capturePushes() throws IOException {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Map<String, String> groupingKey = invocation.getArgument(2);
+                pushedSamples.put(groupingKey.get("worker_port"),
+                        parseSamples(invocation.getArgument(0).toString()));
+                return null;
+            }
+        }).when(pushGatewayWrapper).pushAdd(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.wizenoze.prometheus;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares the memory it takes to keep the last values of series in a {@link SeriesTable}, on the
+ * heap and off it, to a {@code HashMap<String, Double>} and to an object per series.
+ *
+ * It's not a unit test, run it with {@code java -cp ... SeriesTableBenchmark}.
+ */
+public class SeriesTableBenchmark {
+
+    private static final int SERIES = 100000;
+
+    public static void main(String[] args) {
+        String[] names = new String[SERIES];
+        for (int index = 0; index < SERIES; index++) {
+            names[index] = "storm_worker_emitted_count{component_id=\"bolt\",task_id=\"" + index
+                    + "\"}";
+        }
+
+        for (int warmUp = 0; warmUp < 3; warmUp++) {
+            runMap(names);
+            runObjects();
+            runTable(SeriesTable.onHeap(), "SeriesTable, on heap");
+            runTable(SeriesTable.offHeap(), "SeriesTable, off heap");
+            System.out.println();
+        }
+    }
+
+    private static void runMap(String[] names) {
+        long before = usedMemory();
+
+        Map<String, Double> values = new HashMap<>();
+        for (int index = 0; index < SERIES; index++) {
+            values.put(names[index], index * 1.5);
+        }
+
+        print("HashMap<String, Double>", usedMemory() - before, values.size());
+    }
+
+    private static void runObjects() {
+        long before = usedMemory();
+
+        LastValue[] values = new LastValue[SERIES];
+        for (int index = 0; index < SERIES; index++) {
+            values[index] = new LastValue(index, index * 1.5);
+        }
+
+        print("Object per series", usedMemory() - before, values.length);
+    }
+
+    private static void runTable(SeriesTable table, String name) {
+        long before = usedMemory();
+
+        for (int index = 0; index < SERIES; index++) {
+            table.write(table.add(), index, index * 1.5);
+        }
+
+        print(name, usedMemory() - before, table.size());
+    }
+
+    private static void print(String name, long bytes, int series) {
+        System.out.printf("%-30s %8.1f bytes/series%n", name, (double) bytes / series);
+    }
+
+    /**
+     * Returns the memory used on the heap and by direct buffers, after collecting garbage.
+     */
+    private static long usedMemory() {
+        for (int index = 0; index < 3; index++) {
+            System.gc();
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+
+        for (BufferPoolMXBean pool
+                : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                used += pool.getMemoryUsed();
+            }
+        }
+
+        return used;
+    }
+
+    private static class LastValue {
+
+        final long cycle;
+        final double value;
+
+        LastValue(long cycle, double value) {
+            this.cycle = cycle;
+            this.value = value;
+        }
+
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.wizenoze.prometheus;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class SeriesTableTest {
+
+    @Test
+    void givenNewSeries_whenAdd_thenNoValue() {
+        for (SeriesTable table : new SeriesTable[]{SeriesTable.onHeap(), SeriesTable.offHeap()}) {
+            int id = table.add();
+
+            assertEquals(1, table.size());
+            assertFalse(table.hasValue(id));
+            assertTrue(Double.isNaN(table.getValue(id)));
+            assertEquals(-1, table.getCycle(id));
+        }
+    }
+
+    @Test
+    void givenWrittenSeries_whenGet_thenLastValueReturned() {
+        for (SeriesTable table : new SeriesTable[]{SeriesTable.onHeap(), SeriesTable.offHeap()}) {
+            int id = table.add();
+
+            table.write(id, 1, 1.5);
+            table.write(id, 2, 2.5);
+
+            assertTrue(table.hasValue(id));
+            assertEquals(2.5, table.getValue(id));
+            assertEquals(2, table.getCycle(id));
+        }
+    }
+
+    @Test
+    void givenReleasedSeries_whenAdd_thenIdReusedWithoutValue() {
+        for (SeriesTable table : new SeriesTable[]{SeriesTable.onHeap(), SeriesTable.offHeap()}) {
+            int first = table.add();
+            int second = table.add();
+            table.write(first, 1, 1.5);
+
+            table.release(first);
+            table.release(first);
+            assertEquals(1, table.size());
+
+            int third = table.add();
+            assertEquals(first, third);
+            assertFalse(table.hasValue(third));
+            assertEquals(2, table.size());
+            assertEquals(second + 1, table.add());
+        }
+    }
+
+    @Test
+    void givenManySeries_whenAdd_thenValuesKeptWhileGrowing() {
+        for (SeriesTable table : new SeriesTable[]{SeriesTable.onHeap(), SeriesTable.offHeap()}) {
+            for (int index = 0; index < 1000; index++) {
+                int id = table.add();
+                assertEquals(index, id);
+                table.write(id, index, index / 2.0);
+            }
+
+            assertEquals(1000, table.size());
+            for (int id = 0; id < 1000; id++) {
+                assertTrue(table.hasValue(id));
+                assertEquals(id / 2.0, table.getValue(id));
+                assertEquals(id, table.getCycle(id));
+            }
+        }
+    }
+
+}
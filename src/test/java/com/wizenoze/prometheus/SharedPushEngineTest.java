@@ -0,0 +1,143 @@
+package com.wizenoze.prometheus;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.function.Executable;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class SharedPushEngineTest {
+
+    private static final Map<String, String> GROUPING_KEY =
+            Collections.singletonMap("worker_port", "6700");
+
+    @Mock
+    private PushGatewayWrapper pushGatewayWrapper;
+
+    private SharedPushEngine engine;
+
+    @BeforeEach
+    void setUp() {
+        engine = new SharedPushEngine("http://localhost:9091", pushGatewayWrapper);
+    }
+
+    @Test
+    void givenPushesOfSameGroup_whenSendQueued_thenMergedIntoSingleRequest() throws Exception {
+        SharedPushEngine.Client client = engine.newClient();
+        SharedPushEngine.Client otherClient = engine.newClient();
+
+        client.pushAdd(new ExpositionBuffer().writeSample("emitted", 1), "storm", GROUPING_KEY);
+        otherClient.pushAdd(new ExpositionBuffer().writeSample("acked", 2), "storm",
+                GROUPING_KEY);
+        // Replaces the metrics the client has queued before
+        client.pushAdd(new ExpositionBuffer().writeSample("emitted", 3), "storm", GROUPING_KEY);
+
+        engine.sendQueued(false);
+
+        ArgumentCaptor<ExpositionBuffer> metricsCaptor =
+                ArgumentCaptor.forClass(ExpositionBuffer.class);
+        verify(pushGatewayWrapper).pushAdd(metricsCaptor.capture(), eq("storm"),
+                eq(GROUPING_KEY));
+        assertEquals("emitted 3\nacked 2\n", metricsCaptor.getValue().toString());
+    }
+
+    @Test
+    void givenPushesSharingFamily_whenSendQueued_thenSentSeparately() throws Exception {
+        SharedPushEngine.Client client = engine.newClient();
+        SharedPushEngine.Client otherClient = engine.newClient();
+
+        client.push(new ExpositionBuffer()
+                .writeFamily("storm_reporter_interval_seconds", "interval", "gauge")
+                .writeSample("storm_reporter_interval_seconds", 10)
+                .writeSample("emitted", 1), "storm", GROUPING_KEY);
+        otherClient.push(new ExpositionBuffer()
+                .writeFamily("storm_reporter_interval_seconds", "interval", "gauge")
+                .writeSample("storm_reporter_interval_seconds", 10)
+                .writeSample("acked", 2), "storm", GROUPING_KEY);
+
+        engine.sendQueued(false);
+
+        // The first one replaces the group, the second one adds to it
+        ArgumentCaptor<ExpositionBuffer> metricsCaptor =
+                ArgumentCaptor.forClass(ExpositionBuffer.class);
+        verify(pushGatewayWrapper).push(metricsCaptor.capture(), eq("storm"), eq(GROUPING_KEY));
+        assertTrue(metricsCaptor.getValue().toString().contains("emitted 1\n"));
+        verify(pushGatewayWrapper).pushAdd(metricsCaptor.capture(), eq("storm"),
+                eq(GROUPING_KEY));
+        assertTrue(metricsCaptor.getValue().toString().contains("acked 2\n"));
+    }
+
+    @Test
+    void givenQueuedPush_whenDelete_thenOnlyDeleted() throws Exception {
+        SharedPushEngine.Client client = engine.newClient();
+
+        client.push(new ExpositionBuffer().writeSample("emitted", 1), "storm", GROUPING_KEY);
+        client.delete("storm", GROUPING_KEY);
+
+        engine.sendQueued(false);
+
+        verify(pushGatewayWrapper, never()).push(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+        verify(pushGatewayWrapper).delete("storm", GROUPING_KEY);
+    }
+
+    @Test
+    void givenFailingGateway_whenThresholdReached_thenPushesRejected() throws Exception {
+        doThrow(new IOException("Gateway unavailable")).when(pushGatewayWrapper).pushAdd(
+                any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+
+        final SharedPushEngine.Client client = engine.newClient();
+        for (int failure = 0; failure < SharedPushEngine.FAILURE_THRESHOLD; failure++) {
+            client.pushAdd(new ExpositionBuffer().writeSample("emitted", 1), "storm",
+                    GROUPING_KEY);
+            engine.sendQueued(false);
+        }
+
+        assertThrows(IOException.class, new Executable() {
+            @Override
+            public void execute() throws IOException {
+                client.pushAdd(new ExpositionBuffer().writeSample("emitted", 1), "storm",
+                        GROUPING_KEY);
+            }
+        });
+    }
+
+    @Test
+    void givenClients_whenLastClosed_thenEngineShutDown() {
+        SharedPushEngine.Client client = SharedPushEngine.acquire("http://localhost:9091");
+        SharedPushEngine.Client otherClient = SharedPushEngine.acquire("http://localhost:9091");
+        assertSame(client.getEngine(), otherClient.getEngine());
+
+        client.close();
+        client.close();
+        SharedPushEngine.Client laterClient = SharedPushEngine.acquire("http://localhost:9091");
+        assertSame(otherClient.getEngine(), laterClient.getEngine());
+
+        otherClient.close();
+        laterClient.close();
+        SharedPushEngine.Client newClient = SharedPushEngine.acquire("http://localhost:9091");
+        assertNotSame(otherClient.getEngine(), newClient.getEngine());
+        newClient.close();
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.wizenoze.storm.metric;
+
+import static com.wizenoze.test.ExpositionParser.parseSamples;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.wizenoze.prometheus.ExpositionBuffer;
+import com.wizenoze.prometheus.PushGatewayWrapper;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.storm.metric.api.IMetricsConsumer.DataPoint;
+import org.apache.storm.metric.api.IMetricsConsumer.TaskInfo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class PrometheusMetricsConsumerTest {
+
+    private static final TaskInfo TASK_INFO =
+            new TaskInfo("host", 6700, "bolt", 3, 1546300800L, 60);
+
+    @Mock
+    private PushGatewayWrapper pushGatewayWrapper;
+
+    private PrometheusMetricsConsumer consumer;
+
+    @BeforeEach
+    void setUp() {
+        consumer = new PrometheusMetricsConsumer();
+        consumer.prepare(new HashMap<String, Object>(), "topology-1-1", pushGatewayWrapper);
+    }
+
+    @Test
+    void givenDataPoints_whenHandle_thenSinglePushPerBatch() throws IOException {
+        Map<String, Object> executeLatency = new LinkedHashMap<>();
+        executeLatency.put("spout:default", 1.5);
+        executeLatency.put("spout:other", 2.5);
+
+        Map<String, Object> sendQueue = new LinkedHashMap<>();
+        sendQueue.put("population", 4L);
+        sendQueue.put("capacity", 1024L);
+
+        consumer.handleDataPoints(TASK_INFO, Arrays.asList(
+                new DataPoint("__capacity", 0.25),
+                new DataPoint("__execute-latency", executeLatency),
+                new DataPoint("__sendqueue", sendQueue),
+                new DataPoint("__name", "not a number")));
+
+        ArgumentCaptor<ExpositionBuffer> metricsCaptor =
+                ArgumentCaptor.forClass(ExpositionBuffer.class);
+        ArgumentCaptor<Map<String, String>> groupingKeyCaptor = ArgumentCaptor.forClass(Map.class);
+
+        verify(pushGatewayWrapper).pushAdd(metricsCaptor.capture(), anyString(),
+                groupingKeyCaptor.capture());
+
+        Map<String, String> groupingKey = groupingKeyCaptor.getValue();
+        assertEquals("topology-1-1", groupingKey.get("topology_id"));
+        assertEquals("host", groupingKey.get("host_name"));
+        assertEquals("bolt", groupingKey.get("component_id"));
+        assertEquals("3", groupingKey.get("task_id"));
+        assertEquals("6700", groupingKey.get("worker_port"));
+
+        String text = metricsCaptor.getValue().toString();
+        assertTrue(text.contains("# TYPE storm_topology___execute_latency gauge\n"));
+        assertFalse(text.contains("__name"));
+
+        Map<String, Double> samples = parseSamples(text);
+        assertEquals(0.25, samples.get("storm_topology___capacity").doubleValue());
+        assertEquals(1.5, samples.get("storm_topology___execute_latency"
+                + "{source_component_id=\"spout\",stream_id=\"default\"}").doubleValue());
+        assertEquals(2.5, samples.get("storm_topology___execute_latency"
+                + "{source_component_id=\"spout\",stream_id=\"other\"}").doubleValue());
+        assertEquals(4.0, samples.get("storm_topology___sendqueue_population").doubleValue());
+        assertEquals(1024.0, samples.get("storm_topology___sendqueue_capacity").doubleValue());
+    }
+
+    @Test
+    void givenNoNumbers_whenHandle_thenNothingPushed() throws IOException {
+        consumer.handleDataPoints(TASK_INFO,
+                Collections.singletonList(new DataPoint("__name", "not a number")));
+
+        verify(pushGatewayWrapper, never()).pushAdd(any(ExpositionBuffer.class), anyString(),
+                ArgumentMatchers.<String, String>anyMap());
+    }
+
+}
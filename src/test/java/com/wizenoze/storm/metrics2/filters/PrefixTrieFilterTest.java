@@ -0,0 +1,90 @@
+package com.wizenoze.storm.metrics2.filters;
+
+import static java.util.Arrays.asList;
+import static org.apache.storm.metrics2.StormMetricRegistry.metricName;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+class PrefixTrieFilterTest {
+
+    // storm.worker.topology.null.component.stream.1.6700-emitted
+    private static final String STREAM_METRIC_NAME =
+            metricName("emitted", "topology", "component", "stream", 1, 6700);
+
+    // storm.worker.topology.null.component.1.6700-emitted
+    private static final String COMPONENT_METRIC_NAME =
+            metricName("emitted", "topology", "component", 1, 6700);
+
+    // storm.worker.topology.null.component.1.6700-disruptor-executor[1 1]-send-queue-percent-full
+    private static final String DISRUPTOR_METRIC_NAME =
+            metricName("disruptor-executor[1 1]-send-queue-percent-full", "topology",
+                    "component", 1, 6700);
+
+    // storm.worker.topology.null.__system.-1.6700-emitted
+    private static final String SYSTEM_METRIC_NAME =
+            metricName("emitted", "topology", "__system", -1, 6700);
+
+    // storm.worker.topology.null.component.stream.1.6700-transferred
+    private static final String EXCLUDED_METRIC_NAME =
+            metricName("transferred", "topology", "component", "stream", 1, 6700);
+
+    private PrefixTrieFilter filter;
+
+    @BeforeEach
+    void setUp() {
+        Map<String, Object> config = new HashMap<>();
+        config.put("include", asList(
+                "storm.worker.*.*.*.**.*-emitted",
+                "storm.worker.*.*.*.**.*-disruptor-executor*-queue-percent-full"));
+        config.put("exclude", "storm.worker.*.*.__system.**");
+
+        filter = new PrefixTrieFilter();
+        filter.prepare(config);
+    }
+
+    @Test
+    void givenIncludedMetricNames_whenMatches_thenTrue() {
+        assertTrue(filter.matches(STREAM_METRIC_NAME, null), STREAM_METRIC_NAME);
+        assertTrue(filter.matches(COMPONENT_METRIC_NAME, null), COMPONENT_METRIC_NAME);
+        assertTrue(filter.matches(DISRUPTOR_METRIC_NAME, null), DISRUPTOR_METRIC_NAME);
+    }
+
+    @Test
+    void givenExcludedMetricNames_whenMatches_thenFalse() {
+        assertFalse(filter.matches(SYSTEM_METRIC_NAME, null), SYSTEM_METRIC_NAME);
+        assertFalse(filter.matches(EXCLUDED_METRIC_NAME, null), EXCLUDED_METRIC_NAME);
+        assertFalse(filter.matches("storm.worker", null), "storm.worker");
+    }
+
+    @Test
+    void givenMemoizedDecision_whenMetricRemoved_thenEvictedAndSameDecision() {
+        assertTrue(filter.matches(STREAM_METRIC_NAME, null), STREAM_METRIC_NAME);
+        assertFalse(filter.matches(EXCLUDED_METRIC_NAME, null), EXCLUDED_METRIC_NAME);
+        assertEquals(2, filter.getDecisionCount());
+
+        filter.onCounterRemoved(STREAM_METRIC_NAME);
+        assertEquals(1, filter.getDecisionCount());
+
+        assertTrue(filter.matches(STREAM_METRIC_NAME, null), STREAM_METRIC_NAME);
+        assertEquals(2, filter.getDecisionCount());
+    }
+
+    @Test
+    void givenNoRules_whenPrepare_thenIllegalStateException() {
+        assertThrows(IllegalStateException.class, new Executable() {
+            @Override
+            public void execute() {
+                new PrefixTrieFilter().prepare(new HashMap<String, Object>());
+            }
+        });
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.wizenoze.test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Scanner;
+
+/**
+ * Parses samples from Prometheus' text exposition format the same way as Prometheus does, i.e.
+ * values are parsed as {@code double}s regardless of how they're formatted.
+ */
+public class ExpositionParser {
+
+    private ExpositionParser() {
+    }
+
+    /**
+     * Returns the values of samples by their names, including their labels if there are any.
+     */
+    public static Map<String, Double> parseSamples(String text) {
+        Map<String, Double> samples = new LinkedHashMap<>();
+
+        Scanner scanner = new Scanner(text);
+        while (scanner.hasNextLine()) {
+            String line = scanner.nextLine();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            int separator = line.lastIndexOf(' ');
+            samples.put(line.substring(0, separator), parseValue(line.substring(separator + 1)));
+        }
+
+        scanner.close();
+
+        return samples;
+    }
+
+    public static double parseValue(String value) {
+        switch (value) {
+            case "+Inf":
+                return Double.POSITIVE_INFINITY;
+            case "-Inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                return Double.parseDouble(value);
+        }
+    }
+
+}
@@ -0,0 +1,260 @@
+package com.wizenoze.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local stand-in for an OpenTelemetry collector receiving metrics over OTLP/HTTP, which decodes
+ * the {@code ExportMetricsServiceRequest}s it receives.
+ */
+public class OtlpCollector implements HttpHandler {
+
+    private final HttpServer server;
+
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+
+    public OtlpCollector() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/v1/metrics", this);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    public URL getUrl() throws IOException {
+        return new URL("http://localhost:" + server.getAddress().getPort() + "/v1/metrics");
+    }
+
+    /**
+     * Returns the next request, or {@code null} if none arrives in time.
+     */
+    public Request takeRequest(long timeout, TimeUnit unit) throws InterruptedException {
+        return requests.poll(timeout, unit);
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        byte[] body = readFully(exchange.getRequestBody());
+
+        Request request = new Request();
+        request.contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+
+        ProtobufReader reader = new ProtobufReader(body);
+        while (reader.hasMore()) {
+            reader.readField();
+            parseResourceMetrics(reader.readMessage(), request);
+        }
+
+        requests.add(request);
+
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int length;
+        while ((length = inputStream.read(buffer)) >= 0) {
+            outputStream.write(buffer, 0, length);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static void parseResourceMetrics(ProtobufReader reader, Request request) {
+        while (reader.hasMore()) {
+            if (reader.readField() == 1) {
+                ProtobufReader resource = reader.readMessage();
+                while (resource.hasMore()) {
+                    resource.readField();
+                    parseAttribute(resource.readMessage(), request.resourceAttributes);
+                }
+            } else {
+                parseScopeMetrics(reader.readMessage(), request);
+            }
+        }
+    }
+
+    private static void parseScopeMetrics(ProtobufReader reader, Request request) {
+        while (reader.hasMore()) {
+            if (reader.readField() == 1) {
+                ProtobufReader scope = reader.readMessage();
+                scope.readField();
+                request.scopeName = scope.readString();
+            } else {
+                request.metrics.add(parseMetric(reader.readMessage()));
+            }
+        }
+    }
+
+    private static Metric parseMetric(ProtobufReader reader) {
+        Metric metric = new Metric();
+
+        while (reader.hasMore()) {
+            switch (reader.readField()) {
+                case 1:
+                    metric.name = reader.readString();
+                    break;
+                case 2:
+                    metric.description = reader.readString();
+                    break;
+                case 5:
+                    metric.type = "gauge";
+                    parseData(reader.readMessage(), metric);
+                    break;
+                case 7:
+                    metric.type = "sum";
+                    parseData(reader.readMessage(), metric);
+                    break;
+                case 9:
+                    metric.type = "histogram";
+                    parseData(reader.readMessage(), metric);
+                    break;
+                default:
+                    metric.type = "summary";
+                    parseData(reader.readMessage(), metric);
+            }
+        }
+
+        return metric;
+    }
+
+    private static void parseData(ProtobufReader reader, Metric metric) {
+        while (reader.hasMore()) {
+            switch (reader.readField()) {
+                case 1:
+                    parseDataPoint(reader.readMessage(), metric);
+                    break;
+                case 2:
+                    metric.aggregationTemporality = (int) reader.readVarint();
+                    break;
+                default:
+                    metric.monotonic = reader.readVarint() != 0;
+            }
+        }
+    }
+
+    private static void parseDataPoint(ProtobufReader reader, Metric metric) {
+        if ("histogram".equals(metric.type)) {
+            parseHistogramDataPoint(reader, metric);
+            return;
+        }
+
+        boolean summary = "summary".equals(metric.type);
+
+        while (reader.hasMore()) {
+            int field = reader.readField();
+            if (field == 2) {
+                metric.startTimeNanos = reader.readFixed64();
+            } else if (field == 3) {
+                metric.timeNanos = reader.readFixed64();
+            } else if (field == 4 && summary) {
+                metric.count = reader.readFixed64();
+            } else if (field == 4 || field == 5) {
+                metric.value = reader.readDouble();
+            } else if (field == 6) {
+                ProtobufReader valueAtQuantile = reader.readMessage();
+                valueAtQuantile.readField();
+                double quantile = valueAtQuantile.readDouble();
+                valueAtQuantile.readField();
+                metric.quantiles.put(quantile, valueAtQuantile.readDouble());
+            } else {
+                parseAttribute(reader.readMessage(), metric.attributes);
+            }
+        }
+    }
+
+    private static void parseHistogramDataPoint(ProtobufReader reader, Metric metric) {
+        while (reader.hasMore()) {
+            int field = reader.readField();
+            if (field == 2) {
+                metric.startTimeNanos = reader.readFixed64();
+            } else if (field == 3) {
+                metric.timeNanos = reader.readFixed64();
+            } else if (field == 4) {
+                metric.count = reader.readFixed64();
+            } else if (field == 5) {
+                metric.value = reader.readDouble();
+            } else if (field == 6) {
+                ProtobufReader counts = reader.readMessage();
+                while (counts.hasMore()) {
+                    metric.bucketCounts.add(counts.readFixed64());
+                }
+            } else if (field == 7) {
+                ProtobufReader bounds = reader.readMessage();
+                while (bounds.hasMore()) {
+                    metric.bounds.add(bounds.readDouble());
+                }
+            } else {
+                parseAttribute(reader.readMessage(), metric.attributes);
+            }
+        }
+    }
+
+    private static void parseAttribute(ProtobufReader reader, Map<String, String> attributes) {
+        reader.readField();
+        String key = reader.readString();
+        reader.readField();
+        ProtobufReader value = reader.readMessage();
+        value.readField();
+        attributes.put(key, value.readString());
+    }
+
+    public static class Request {
+
+        public String contentType;
+        public String scopeName;
+        public final Map<String, String> resourceAttributes = new LinkedHashMap<>();
+        public final List<Metric> metrics = new ArrayList<>();
+
+        /**
+         * Returns the metrics with the given name, in the order they were sent.
+         */
+        public List<Metric> getMetrics(String name) {
+            List<Metric> result = new ArrayList<>();
+            for (Metric metric : metrics) {
+                if (metric.name.equals(name)) {
+                    result.add(metric);
+                }
+            }
+            return result;
+        }
+
+    }
+
+    public static class Metric {
+
+        public String name;
+        public String description;
+        public String type;
+        public final Map<String, String> attributes = new LinkedHashMap<>();
+        public double value;
+        public long startTimeNanos;
+        public long timeNanos;
+        public int aggregationTemporality;
+        public boolean monotonic;
+        public long count;
+        public final Map<Double, Double> quantiles = new LinkedHashMap<>();
+        public final List<Double> bounds = new ArrayList<>();
+        public final List<Long> bucketCounts = new ArrayList<>();
+
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.wizenoze.test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads protocol buffers messages field by field, just enough to verify what the exporters send.
+ */
+public class ProtobufReader {
+
+    private final byte[] bytes;
+    private final int limit;
+    private int position;
+
+    public ProtobufReader(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    private ProtobufReader(byte[] bytes, int position, int limit) {
+        this.bytes = bytes;
+        this.position = position;
+        this.limit = limit;
+    }
+
+    public boolean hasMore() {
+        return position < limit;
+    }
+
+    /**
+     * Reads a tag and returns its field number.
+     */
+    public int readField() {
+        return (int) readVarint() >>> 3;
+    }
+
+    public long readVarint() {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = bytes[position++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    public long readFixed64() {
+        long value = 0;
+        for (int index = 0; index < 8; index++) {
+            value |= (long) (bytes[position++] & 0xff) << (8 * index);
+        }
+        return value;
+    }
+
+    public double readDouble() {
+        return Double.longBitsToDouble(readFixed64());
+    }
+
+    public ProtobufReader readMessage() {
+        int length = (int) readVarint();
+        ProtobufReader reader = new ProtobufReader(bytes, position, position + length);
+        position += length;
+        return reader;
+    }
+
+    public String readString() {
+        int length = (int) readVarint();
+        String value = new String(bytes, position, length, UTF_8);
+        position += length;
+        return value;
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.wizenoze.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.iq80.snappy.Snappy;
+
+/**
+ * A local stand-in for a Prometheus remote write endpoint, which decodes the {@code WriteRequest}s
+ * it receives.
+ */
+public class RemoteWriteReceiver implements HttpHandler {
+
+    private final HttpServer server;
+
+    private final BlockingQueue<List<TimeSeries>> requests = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<Integer> responseCodes = new ConcurrentLinkedQueue<>();
+    private final List<String> contentEncodings = new ArrayList<>();
+
+    private volatile CountDownLatch latch = new CountDownLatch(0);
+
+    public RemoteWriteReceiver() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/v1/write", this);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    public URL getUrl() throws IOException {
+        return new URL("http://localhost:" + server.getAddress().getPort() + "/api/v1/write");
+    }
+
+    /**
+     * Responds to the next requests with the given codes, and with {@code 200} afterwards.
+     */
+    public void respondWith(Integer... codes) {
+        for (Integer code : codes) {
+            responseCodes.add(code);
+        }
+    }
+
+    /**
+     * Holds requests until the returned latch is counted down.
+     */
+    public CountDownLatch hold() {
+        latch = new CountDownLatch(1);
+        return latch;
+    }
+
+    /**
+     * Returns the next request which was accepted, or {@code null} if none arrives in time.
+     */
+    public List<TimeSeries> takeRequest(long timeout, TimeUnit unit) throws InterruptedException {
+        return requests.poll(timeout, unit);
+    }
+
+    public synchronized List<String> getContentEncodings() {
+        return new ArrayList<>(contentEncodings);
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            contentEncodings.add(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        }
+
+        byte[] body = readFully(exchange.getRequestBody());
+
+        Integer responseCode = responseCodes.poll();
+        if (responseCode == null) {
+            responseCode = 200;
+        }
+
+        if (responseCode == 200) {
+            requests.add(parseWriteRequest(Snappy.uncompress(body, 0, body.length)));
+        }
+
+        exchange.sendResponseHeaders(responseCode, -1);
+        exchange.close();
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int length;
+        while ((length = inputStream.read(buffer)) >= 0) {
+            outputStream.write(buffer, 0, length);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static List<TimeSeries> parseWriteRequest(byte[] bytes) {
+        List<TimeSeries> timeSeries = new ArrayList<>();
+
+        ProtobufReader reader = new ProtobufReader(bytes);
+        while (reader.hasMore()) {
+            reader.readField();
+            timeSeries.add(parseTimeSeries(reader.readMessage()));
+        }
+
+        return timeSeries;
+    }
+
+    private static TimeSeries parseTimeSeries(ProtobufReader reader) {
+        TimeSeries timeSeries = new TimeSeries();
+
+        while (reader.hasMore()) {
+            if (reader.readField() == 1) {
+                ProtobufReader label = reader.readMessage();
+                String name = null;
+                String value = null;
+                while (label.hasMore()) {
+                    if (label.readField() == 1) {
+                        name = label.readString();
+                    } else {
+                        value = label.readString();
+                    }
+                }
+                timeSeries.labels.put(name, value);
+            } else {
+                ProtobufReader sample = reader.readMessage();
+                while (sample.hasMore()) {
+                    if (sample.readField() == 1) {
+                        timeSeries.values.add(sample.readDouble());
+                    } else {
+                        timeSeries.timestamps.add(sample.readVarint());
+                    }
+                }
+            }
+        }
+
+        return timeSeries;
+    }
+
+    public static class TimeSeries {
+
+        public final Map<String, String> labels = new LinkedHashMap<>();
+        public final List<Double> values = new ArrayList<>();
+        public final List<Long> timestamps = new ArrayList<>();
+
+    }
+
+}